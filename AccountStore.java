@@ -0,0 +1,341 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Stores accounts outside the Java heap, in fixed-width records found through a hash index keyed by the numeric
+// part of the account number (SDB-SXXXXX). Each 24 byte record holds the balance in cents, a reference to the
+// holder's name in a NameArena and the account key. Records live in direct buffers of RECORD_CHUNK_SIZE records
+// that are added as accounts are opened, and the slots of deleted accounts are reused, so the store only pays
+// for the accounts it holds, not for every number issued: a shard holding one account number in eight pays for
+// its own accounts only. An account costs its record, its index entry and its name off the heap and no objects
+// on it, however many accounts are loaded. Lookup, update and delete take constant time, and reading or
+// updating a balance never allocates.
+//
+// The index is an open-addressing table of 8 byte entries holding a key and its slot, probed linearly from a
+// hash of the key. Once its entries, counting those left by removed keys, fill three quarters of it, it is
+// rebuilt without the removed keys at a size that leaves it at most five eighths full. It has to fit one direct
+// buffer, which limits a store to MAX_ACCOUNTS, about 84 million accounts.
+//
+// Direct buffers count against -XX:MaxDirectMemorySize, which defaults to the maximum heap size, so a small
+// heap with many accounts needs it raised: about 40 bytes per open account plus its UTF-8 name.
+//
+// The store is not thread-safe except for balances: getBalance and compareAndSetBalance may be called from any
+// thread without a lock. Records never move once their chunk is added, and each record holds its key, so a
+// reader that finds the slot of an account deleted meanwhile sees it as not open, even if the slot has since
+// been given to another account. compareAndSetBalance relies on the account not being removed during the call.
+public class AccountStore {
+
+    // Receives each live account when iterating over the store.
+    public interface AccountVisitor {
+        void visit(int key, String name, long balance);
+    }
+
+    private static final String PREFIX = "SDB-S";
+    private static final int MIN_DIGITS = 5; // Account numbers are zero-padded to this width, and never longer when padded
+    private static final int FREE = 0; // Account keys start at 1
+    private static final int RECORD_SIZE = 24; // Balance, name reference, key
+    private static final int NAME = 8;
+    private static final int KEY = 16;
+    private static final int RECORD_CHUNK_BITS = 14;
+    private static final int RECORD_CHUNK_SIZE = 1 << RECORD_CHUNK_BITS;
+    private static final long NO_ACCOUNT = Long.MIN_VALUE; // Balance of a free record
+    private static final int MIN_INDEX_CAPACITY = 1 << 10;
+    private static final int MAX_ACCOUNTS = (1 << 27) / 8 * 5; // So the index fits one direct buffer
+    private static final long EMPTY = 0; // Index entries are the key in the high half and the slot + 1 in the low half
+    private static final long TOMBSTONE = -1; // The entry of a removed key, which no key matches
+
+    // Reads and writes the longs of records and index entries in a direct buffer with the same guarantees as an
+    // AtomicLongArray.
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    // Records by slot, in chunks that are added as accounts are opened.
+    private volatile ByteBuffer[] recordChunks = new ByteBuffer[0];
+    private volatile ByteBuffer index = newIndex(MIN_INDEX_CAPACITY);
+    private int indexCapacity = MIN_INDEX_CAPACITY;
+    private int indexUsed; // Live entries plus tombstones
+    private NameArena names = new NameArena();
+    private int size;
+
+    // Slots handed out so far, and the most recently freed slot, whose name field links to the one freed before.
+    private int slots;
+    private int freeSlot = -1;
+
+    // Account numbers are never reissued, even after the highest account is deleted.
+    private int nextKey = 1;
+
+    // Converts an account number such as SDB-S00042 into its numeric key, or returns -1 if the format is invalid.
+    // Numbers must be written the way formatAccountNumber writes them, so each key has exactly one account
+    // number: zero-padded to five digits, with no leading zero beyond that.
+    public static int parseKey(CharSequence accountNumber) {
+        if (accountNumber == null) return -1;
+        int length = accountNumber.length();
+        if (length < PREFIX.length() + MIN_DIGITS || length > PREFIX.length() + 9) return -1;
+        for (int i = 0; i < PREFIX.length(); i++) {
+            if (accountNumber.charAt(i) != PREFIX.charAt(i)) return -1;
+        }
+        if (length > PREFIX.length() + MIN_DIGITS && accountNumber.charAt(PREFIX.length()) == '0') return -1;
+
+        int key = 0;
+        for (int i = PREFIX.length(); i < length; i++) {
+            char c = accountNumber.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            key = key * 10 + (c - '0');
+        }
+        return key == FREE ? -1 : key;
+    }
+
+    // Formats a numeric key back into the SDB-SXXXXX account number format.
+    public static String formatAccountNumber(int key) {
+        return String.format(PREFIX + "%05d", key);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Returns the key the next opened account should use.
+    public int nextKey() {
+        return nextKey;
+    }
+
+    // Makes sure keys below the given one are never issued again, e.g. after restoring a snapshot.
+    public void reserveKeysBelow(int key) {
+        if (key > nextKey) nextKey = key;
+    }
+
+    public boolean contains(int key) {
+        return getBalance(key) >= 0;
+    }
+
+    // Returns the account holder name, or null if the account does not exist.
+    public String getName(int key) {
+        int slot = slotOf(key);
+        if (slot < 0) return null;
+        ByteBuffer records = recordChunks[slot >>> RECORD_CHUNK_BITS];
+        if (records.getLong(recordOffset(slot)) < 0) return null;
+        return names.get(records.getLong(recordOffset(slot) + NAME));
+    }
+
+    // Returns the balance in cents, or -1 if the account does not exist. Safe to call from any thread.
+    public long getBalance(int key) {
+        int slot = slotOf(key);
+        if (slot < 0) return -1;
+        ByteBuffer records = recordChunks[slot >>> RECORD_CHUNK_BITS];
+        long balance = (long) LONGS.getVolatile(records, recordOffset(slot));
+        // The key is read after the balance, so a slot given to another account since the lookup is caught
+        if (balance == NO_ACCOUNT || (long) LONGS.getVolatile(records, recordOffset(slot) + KEY) != key) return -1;
+        return balance;
+    }
+
+    // Sets the balance in cents and returns false if the account does not exist.
+    public boolean setBalance(int key, long balance) {
+        int slot = slotOf(key);
+        if (slot < 0) return false;
+        ByteBuffer records = recordChunks[slot >>> RECORD_CHUNK_BITS];
+        if ((long) LONGS.getVolatile(records, recordOffset(slot)) < 0) return false;
+        LONGS.setVolatile(records, recordOffset(slot), balance);
+        return true;
+    }
+
+    // Atomically replaces the balance if it still equals the expected one. Safe to call from any thread.
+    public boolean compareAndSetBalance(int key, long expected, long balance) {
+        int slot = slotOf(key);
+        if (slot < 0 || expected < 0) return false;
+        ByteBuffer records = recordChunks[slot >>> RECORD_CHUNK_BITS];
+        if ((long) LONGS.getVolatile(records, recordOffset(slot) + KEY) != key) return false;
+        return LONGS.compareAndSet(records, recordOffset(slot), expected, balance);
+    }
+
+    // Adds a new account with an opening balance in cents, replacing any existing account with the same key.
+    public void put(int key, String name, long balance) {
+        put(key, names.add(name), balance);
+    }
+
+    // Adds a new account whose name is given as UTF-8 bytes, e.g. straight from a snapshot, without
+    // decoding the name.
+    public void put(int key, byte[] nameUtf8, int offset, int length, long balance) {
+        put(key, names.add(nameUtf8, offset, length), balance);
+    }
+
+    // Removes an account and returns false if it does not exist.
+    public boolean remove(int key) {
+        int slot = liveSlot(key);
+        if (slot < 0) return false;
+        ByteBuffer records = recordChunks[slot >>> RECORD_CHUNK_BITS];
+        int offset = recordOffset(slot);
+        LONGS.setVolatile(records, offset, NO_ACCOUNT);
+        LONGS.setVolatile(index, indexPosition(key) * Long.BYTES, TOMBSTONE);
+        names.free(records.getLong(offset + NAME));
+        records.putLong(offset + NAME, freeSlot);
+        freeSlot = slot;
+        size--;
+        if (names.needsCompaction()) compactNames();
+        return true;
+    }
+
+    // Makes room for the given number of accounts more, e.g. before a bulk load.
+    public void ensureCapacity(int accounts) {
+        if (accounts <= 0) return;
+        int needed = (int) Math.min(MAX_ACCOUNTS, (long) size + accounts);
+        if ((long) indexUsed + accounts > indexCapacity / 4 * 3) rebuildIndex(needed);
+        recordSlots(Math.min(MAX_ACCOUNTS, slots + Math.min(accounts, MAX_ACCOUNTS)) - 1);
+    }
+
+    // Visits every live account in key order, which is the order the accounts were opened.
+    public void forEach(AccountVisitor visitor) {
+        for (int key = 1; key < nextKey; key++) {
+            int slot = slotOf(key);
+            if (slot < 0) continue;
+            ByteBuffer records = recordChunks[slot >>> RECORD_CHUNK_BITS];
+            long balance = records.getLong(recordOffset(slot));
+            if (balance >= 0) visitor.visit(key, names.get(records.getLong(recordOffset(slot) + NAME)), balance);
+        }
+    }
+
+    // Bytes held outside the heap by records, the index and names.
+    public long offHeapBytes() {
+        return (long) recordChunks.length * RECORD_CHUNK_SIZE * RECORD_SIZE + (long) indexCapacity * Long.BYTES
+                + names.capacityBytes();
+    }
+
+    private void put(int key, long name, long balance) {
+        int slot = liveSlot(key);
+        if (slot >= 0) {
+            ByteBuffer records = recordChunks[slot >>> RECORD_CHUNK_BITS];
+            names.free(records.getLong(recordOffset(slot) + NAME));
+            records.putLong(recordOffset(slot) + NAME, name);
+            LONGS.setVolatile(records, recordOffset(slot), balance);
+        } else {
+            if (indexUsed + 1 > indexCapacity / 4 * 3) rebuildIndex(size + 1);
+            slot = allocateSlot();
+            ByteBuffer records = recordSlots(slot);
+            int offset = recordOffset(slot);
+            // The key and name go in before the balance, and the record before its index entry, which is what
+            // makes the account visible to lock-free readers
+            LONGS.setVolatile(records, offset + KEY, (long) key);
+            records.putLong(offset + NAME, name);
+            LONGS.setVolatile(records, offset, balance);
+            int position = home(key, indexCapacity - 1);
+            while (true) {
+                long entry = (long) LONGS.getVolatile(index, position * Long.BYTES);
+                if (entry == EMPTY || entry == TOMBSTONE) {
+                    if (entry == EMPTY) indexUsed++;
+                    LONGS.setVolatile(index, position * Long.BYTES, (long) key << 32 | (slot + 1));
+                    break;
+                }
+                position = (position + 1) & (indexCapacity - 1);
+            }
+            size++;
+        }
+        if (key >= nextKey) nextKey = key + 1;
+        if (names.needsCompaction()) compactNames();
+    }
+
+    // Slot of a key's record, which may have been freed since if the caller does not hold the store, or -1.
+    private int slotOf(int key) {
+        if (key <= FREE) return -1;
+        ByteBuffer entries = index;
+        int mask = entries.capacity() / Long.BYTES - 1;
+        for (int position = home(key, mask); ; position = (position + 1) & mask) {
+            long entry = (long) LONGS.getVolatile(entries, position * Long.BYTES);
+            if (entry == EMPTY) return -1;
+            if ((int) (entry >>> 32) == key) return (int) entry - 1;
+        }
+    }
+
+    // Slot of an open account for callers that hold the store, or -1.
+    private int liveSlot(int key) {
+        int slot = slotOf(key);
+        if (slot < 0 || (long) LONGS.getVolatile(recordChunks[slot >>> RECORD_CHUNK_BITS], recordOffset(slot)) == NO_ACCOUNT) return -1;
+        return slot;
+    }
+
+    // Index entry holding a key that is in the index.
+    private int indexPosition(int key) {
+        int mask = indexCapacity - 1;
+        int position = home(key, mask);
+        while ((int) (index.getLong(position * Long.BYTES) >>> 32) != key) position = (position + 1) & mask;
+        return position;
+    }
+
+    // Copies the live entries into an index with room for the given number of keys at most five eighths full, and
+    // publishes it once filled, so lock-free readers see either the old index or the whole new one. Entries
+    // removed from the old one are dropped on the way.
+    private void rebuildIndex(int keys) {
+        if (keys > MAX_ACCOUNTS) throw new IllegalStateException("An account store holds at most " + MAX_ACCOUNTS + " accounts");
+        int capacity = MIN_INDEX_CAPACITY;
+        while (keys > capacity / 8 * 5) capacity <<= 1; // MAX_ACCOUNTS keys fill the largest index that fits
+        ByteBuffer rebuilt = newIndex(capacity);
+        ByteBuffer entries = index;
+        for (int position = 0; position < indexCapacity; position++) {
+            long entry = entries.getLong(position * Long.BYTES);
+            if (entry == EMPTY || entry == TOMBSTONE) continue;
+            int at = home((int) (entry >>> 32), capacity - 1);
+            while (rebuilt.getLong(at * Long.BYTES) != EMPTY) at = (at + 1) & (capacity - 1);
+            rebuilt.putLong(at * Long.BYTES, entry);
+        }
+        indexCapacity = capacity;
+        indexUsed = size;
+        index = rebuilt;
+    }
+
+    // Entry a key's probe starts from. Keys are scattered, as runs of consecutive keys would otherwise fill whole
+    // stretches of the index that every probe landing in them has to walk to the end.
+    private static int home(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static ByteBuffer newIndex(int capacity) {
+        // Over-allocated and sliced so every entry is 8 byte aligned, as atomic access requires. Direct buffers
+        // start out zeroed, i.e. EMPTY
+        return ByteBuffer.allocateDirect(capacity * Long.BYTES + 7).alignedSlice(8).order(ByteOrder.nativeOrder());
+    }
+
+    // Takes the most recently freed slot, or the next one never used.
+    private int allocateSlot() {
+        if (freeSlot < 0) return slots++;
+        int slot = freeSlot;
+        freeSlot = (int) recordChunks[slot >>> RECORD_CHUNK_BITS].getLong(recordOffset(slot) + NAME);
+        return slot;
+    }
+
+    // Returns the record chunk holding a slot, adding chunks up to it if needed. Only the chunks needed are
+    // added, as they take memory outside the heap; the directory of them is small enough to copy each time.
+    // Chunks are filled before the directory is published, so lock-free readers never see an unfilled chunk.
+    private ByteBuffer recordSlots(int slot) {
+        int chunk = slot >>> RECORD_CHUNK_BITS;
+        ByteBuffer[] chunks = recordChunks;
+        if (chunk >= chunks.length) {
+            ByteBuffer[] grown = Arrays.copyOf(chunks, chunk + 1);
+            for (int i = chunks.length; i < grown.length; i++) {
+                // Over-allocated and sliced so every balance is 8 byte aligned, as atomic access requires
+                grown[i] = ByteBuffer.allocateDirect(RECORD_CHUNK_SIZE * RECORD_SIZE + 7).alignedSlice(8).order(ByteOrder.nativeOrder());
+                for (int j = 0; j < RECORD_CHUNK_SIZE; j++) grown[i].putLong(j * RECORD_SIZE, NO_ACCOUNT);
+            }
+            recordChunks = grown;
+            chunks = grown;
+        }
+        return chunks[chunk];
+    }
+
+    // Copies the names of live accounts into a new arena and repoints their records at the copies, dropping
+    // the space of replaced and removed names. Runs once garbage outweighs live names, so its cost is
+    // amortised over the changes that caused it.
+    private void compactNames() {
+        NameArena compacted = new NameArena();
+        for (int slot = 0; slot < slots; slot++) {
+            ByteBuffer records = recordChunks[slot >>> RECORD_CHUNK_BITS];
+            int offset = recordOffset(slot);
+            if (records.getLong(offset) == NO_ACCOUNT) continue;
+            records.putLong(offset + NAME, compacted.copy(names, records.getLong(offset + NAME)));
+        }
+        names = compacted;
+    }
+
+    private static int recordOffset(int slot) {
+        return (slot & (RECORD_CHUNK_SIZE - 1)) * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,265 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
+import java.util.stream.IntStream;
+
+// Running totals over the balances of all accounts, updated by BankingEngine on every change so that reports
+// never have to look at every account:
+//   account count and total assets   LongAdders, read in O(1)
+//   balance histogram                one counter per bucket, read in O(buckets)
+//   top accounts                     a sorted board of the richest accounts, read in O(n)
+// Histogram buckets start at 0 and then at 1, 2 and 5 times each power of ten rupees.
+//
+// The board holds every account whose balance is above its threshold, and possibly some exactly at it, so
+// its first n entries are a top n as long as it has n entries. Only changes that leave a balance above the
+// threshold, or start at or above it, touch the board; once it holds twice TOP_CAPACITY entries the threshold
+// is raised to the TOP_CAPACITY-th balance and the rest are dropped. When the richest accounts fall away and
+// fewer entries remain than a report asks for, the board is rebuilt by a full scan.
+//
+// The static scan methods answer ad hoc questions with a parallel stream over every balance instead.
+public class BalanceAggregates {
+
+    public static final int TOP_CAPACITY = 100;
+
+    private static final long[] BUCKET_FLOORS = bucketFloors();
+    public static final int BUCKETS = BUCKET_FLOORS.length;
+
+    private final AccountStore store;
+    private final LongAdder accounts = new LongAdder();
+    private final LongAdder totalAssets = new LongAdder();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    // Sorted by balance, highest first. Guarded by this.
+    private final int[] topKeys = new int[TOP_CAPACITY * 2];
+    private final long[] topBalances = new long[TOP_CAPACITY * 2];
+    private int topCount;
+    private volatile long topThreshold = Long.MIN_VALUE; // Every account is on the board until it first fills up
+
+    // Account count, total assets and balance histogram at one point in time, or over a scan.
+    public static final class Summary {
+        public final long accounts;
+        public final long totalAssets;
+        public final long[] histogram;
+
+        Summary(long accounts, long totalAssets, long[] histogram) {
+            this.accounts = accounts;
+            this.totalAssets = totalAssets;
+            this.histogram = histogram;
+        }
+    }
+
+    private BalanceAggregates(AccountStore store) {
+        this.store = store;
+    }
+
+    // Works out the aggregates of every account in the store. The store must not change while this runs.
+    public static BalanceAggregates build(AccountStore store) {
+        BalanceAggregates aggregates = new BalanceAggregates(store);
+        Summary summary = scan(store, store.nextKey(), balance -> true);
+        aggregates.accounts.add(summary.accounts);
+        aggregates.totalAssets.add(summary.totalAssets);
+        for (int i = 0; i < BUCKETS; i++) aggregates.histogram.set(i, summary.histogram[i]);
+        aggregates.rebuildTop(store.nextKey());
+        return aggregates;
+    }
+
+    // Lowest balance in cents that falls into a histogram bucket.
+    public static long bucketFloor(int bucket) {
+        return BUCKET_FLOORS[bucket];
+    }
+
+    // Records that an account's balance changed, with -1 for the balance of an account that was not open
+    // before or is not open any more. Must be called after the change has been made to the store.
+    public void onChange(int key, long oldBalance, long newBalance) {
+        long delta = Math.max(newBalance, 0) - Math.max(oldBalance, 0);
+        if (delta != 0) totalAssets.add(delta);
+        if (oldBalance < 0) accounts.increment();
+        else if (newBalance < 0) accounts.decrement();
+
+        int from = oldBalance < 0 ? -1 : bucketOf(oldBalance);
+        int to = newBalance < 0 ? -1 : bucketOf(newBalance);
+        if (from != to) {
+            if (from >= 0) histogram.decrementAndGet(from);
+            if (to >= 0) histogram.incrementAndGet(to);
+        }
+
+        long threshold = topThreshold;
+        if (oldBalance >= threshold || newBalance > threshold) updateTop(key);
+    }
+
+    public Summary summary() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) counts[i] = histogram.get(i);
+        return new Summary(accounts.sum(), totalAssets.sum(), counts);
+    }
+
+    // Returns the keys of the n accounts with the highest balances, highest first, or null if the board no
+    // longer holds enough accounts and has to be rebuilt.
+    public synchronized int[] top(int n) {
+        if (topCount >= n || topThreshold == Long.MIN_VALUE) return Arrays.copyOf(topKeys, Math.min(n, topCount));
+        return null;
+    }
+
+    // Refills the board from every key below keyLimit. The store must not change while this runs.
+    public synchronized void rebuildTop(int keyLimit) {
+        int[] keys = scanTop(store, keyLimit, TOP_CAPACITY);
+        topCount = 0;
+        for (int key : keys) {
+            topKeys[topCount] = key;
+            topBalances[topCount++] = store.getBalance(key);
+        }
+        topThreshold = topCount < TOP_CAPACITY ? Long.MIN_VALUE : topBalances[topCount - 1];
+    }
+
+    // Counts, totals and buckets the balances below keyLimit that pass the filter, with a parallel stream.
+    // Balances are read without a lock, so changes made during the scan may or may not be included.
+    public static Summary scan(AccountStore store, int keyLimit, LongPredicate filter) {
+        long[] totals = IntStream.range(1, keyLimit).parallel()
+                .mapToLong(store::getBalance)
+                .filter(balance -> balance >= 0 && filter.test(balance))
+                .collect(() -> new long[2 + BUCKETS], (sums, balance) -> {
+                    sums[0]++;
+                    sums[1] += balance;
+                    sums[2 + bucketOf(balance)]++;
+                }, (left, right) -> {
+                    for (int i = 0; i < left.length; i++) left[i] += right[i];
+                });
+        return new Summary(totals[0], totals[1], Arrays.copyOfRange(totals, 2, totals.length));
+    }
+
+    // Returns the keys of the n accounts below keyLimit with the highest balances, highest first, found with
+    // a parallel stream. Ties are broken by the lower key.
+    public static int[] scanTop(AccountStore store, int keyLimit, int n) {
+        return IntStream.range(1, keyLimit).parallel()
+                .collect(() -> new TopN(n), (top, key) -> top.offer(key, store.getBalance(key)), TopN::addAll)
+                .sortedKeys();
+    }
+
+    // Moves, adds or drops an account on the board after a change, reading its balance now so that
+    // concurrent lock-free changes leave the latest balance behind whatever order they get here in.
+    private synchronized void updateTop(int key) {
+        long balance = store.getBalance(key);
+        for (int i = 0; i < topCount; i++) {
+            if (topKeys[i] == key) {
+                System.arraycopy(topKeys, i + 1, topKeys, i, topCount - i - 1);
+                System.arraycopy(topBalances, i + 1, topBalances, i, topCount - i - 1);
+                topCount--;
+                break;
+            }
+        }
+        if (balance < 0 || (balance <= topThreshold && topThreshold != Long.MIN_VALUE)) return;
+
+        int position = 0;
+        while (position < topCount && topBalances[position] >= balance) position++;
+        System.arraycopy(topKeys, position, topKeys, position + 1, topCount - position);
+        System.arraycopy(topBalances, position, topBalances, position + 1, topCount - position);
+        topKeys[position] = key;
+        topBalances[position] = balance;
+        topCount++;
+
+        if (topCount == TOP_CAPACITY * 2) {
+            // Entries tied with the new threshold may be dropped too, as only balances above it must be kept
+            topThreshold = topBalances[TOP_CAPACITY - 1];
+            topCount = TOP_CAPACITY;
+        }
+    }
+
+    private static int bucketOf(long balance) {
+        int low = 0;
+        int high = BUCKETS - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (BUCKET_FLOORS[mid] <= balance) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    private static long[] bucketFloors() {
+        long[] floors = new long[1 + 3 * 13];
+        long rupees = 1;
+        for (int i = 1; i < floors.length; i += 3, rupees *= 10) {
+            floors[i] = rupees * Money.CENTS;
+            floors[i + 1] = 2 * rupees * Money.CENTS;
+            floors[i + 2] = 5 * rupees * Money.CENTS;
+        }
+        return floors;
+    }
+
+    // The n highest balances seen, kept in a min-heap on balance so the lowest is replaced first.
+    private static final class TopN {
+        private final int[] keys;
+        private final long[] balances;
+        private int size;
+
+        TopN(int n) {
+            keys = new int[n];
+            balances = new long[n];
+        }
+
+        void offer(int key, long balance) {
+            if (balance < 0 || keys.length == 0) return;
+            if (size < keys.length) {
+                keys[size] = key;
+                balances[size] = balance;
+                siftUp(size++);
+            } else if (isBelow(keys[0], balances[0], key, balance)) {
+                keys[0] = key;
+                balances[0] = balance;
+                siftDown(0);
+            }
+        }
+
+        void addAll(TopN other) {
+            for (int i = 0; i < other.size; i++) offer(other.keys[i], other.balances[i]);
+        }
+
+        int[] sortedKeys() {
+            int[] sorted = new int[size];
+            for (int i = size - 1; i >= 0; i--) {
+                sorted[i] = keys[0];
+                keys[0] = keys[i];
+                balances[0] = balances[i];
+                size = i;
+                siftDown(0);
+            }
+            return sorted;
+        }
+
+        // Whether the first account ranks below the second: a lower balance, or the same balance and a higher key.
+        private static boolean isBelow(int key, long balance, int otherKey, long otherBalance) {
+            return balance < otherBalance || (balance == otherBalance && key > otherKey);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!isBelow(keys[i], balances[i], keys[parent], balances[parent])) break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int lowest = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+                    if (isBelow(keys[child], balances[child], keys[lowest], balances[lowest])) lowest = child;
+                }
+                if (lowest == i) return;
+                swap(i, lowest);
+                i = lowest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+            long balance = balances[i];
+            balances[i] = balances[j];
+            balances[j] = balance;
+        }
+    }
+}
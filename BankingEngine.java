@@ -0,0 +1,1075 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Thread-safe banking operations over an AccountStore, shared by any number of teller sessions.
+// Opening and deleting accounts change the shape of the store and take the store lock exclusively.
+// Balance operations share the store lock and serialise per account on one of a fixed set of striped
+// locks; a transfer takes both accounts' stripes in stripe order so opposite transfers cannot deadlock.
+// Every change is written to the journal before it is applied, and to the transaction history, if there is
+// one, while the account is still locked so each account's history is in the order its balance changed.
+//
+// In LOCK_FREE mode deposits, withdrawals and transfers take no account lock: each balance is updated with a
+// compare-and-set loop on its slot in the store. With a journal, the update and the appending of its record are
+// one step made holding the journal (Journal.logInOrder), so records are in the order balances changed, and
+// the operation returns once its record, and with it every change it relied on, is on disk. The appends of all
+// sessions are serialised by the journal anyway, so this costs them little; without a journal nothing is held.
+// Deleting an account waits for lock-free operations in progress, so none of them can change or log a change
+// to an account after its deletion.
+// A transfer debits the sender and then credits the receiver, refunding the sender if the receiver is gone.
+//
+// The latency and outcome of every operation are recorded in the engine's BankingMetrics, and every balance
+// change is added to its BalanceAggregates for reports.
+//
+// Opening accounts, deposits, withdrawals and transfers can also be given a client request ID. A request
+// whose ID was seen in the last REQUEST_WINDOW_MILLIS gets the first attempt's result back instead of being
+// applied again, so clients can safely retry after a timeout.
+//
+// With VelocityLimits set, withdrawals and outgoing transfers are also refused with VELOCITY_LIMITED once an
+// account has made too many, or moved too much, within the limits' window. The check only runs after every
+// other check has passed, so rejected operations do not count against the limits.
+//
+// Interest accrual runs apply each account's interest and fee a slice of accounts at a time, in parallel, holding
+// operations back only while a slice is done, and journal them as one batch. A run cut short by a crash is
+// finished when the engine is created, and one that failed is finished before the next run or checkpoint, so
+// every account gets each batch once.
+//
+// When the engine holds one shard of several, transfers to other shards are made in two halves under one
+// transfer ID: the receiver's shard prepares, pinning the receiver so it cannot be deleted, then the sender's
+// shard debits the amount and fee with transferOut, and the receiver's shard credits it with transferIn, which
+// only credits a transfer prepared under the same ID. A prepare that is neither credited nor aborted within
+// PREPARE_TIMEOUT_MILLIS, e.g. because its client stopped, lapses and is refused. A debit whose credit was
+// refused is given back with refundTransferOut. Each half is a TransferHalf, journaled as it changes and
+// rebuilt by replay, so a resent half gets the same answer after a restart, and a credit is only answered as
+// refused once the refusal is on disk. See ShardedBank.
+public class BankingEngine {
+
+    // How balance updates are kept safe between sessions.
+    public enum Mode {
+        STRIPED_LOCKS,
+        LOCK_FREE
+    }
+
+    // Minimum amounts, in cents.
+    public static final long MIN_INITIAL_DEPOSIT = 5000 * Money.CENTS;
+    public static final long MIN_DEPOSIT = 500 * Money.CENTS;
+    public static final long MIN_WITHDRAW = 100 * Money.CENTS;
+    public static final long MIN_TRANSFER = 100 * Money.CENTS;
+    public static final long MIN_BALANCE = 500 * Money.CENTS;
+
+    // Longest account holder name, in characters, so a name always fits the journal and snapshot records.
+    public static final int MAX_NAME_LENGTH = 100;
+
+    // Negative results returned instead of a balance or key when an operation is rejected. They run down from -1
+    // with no gaps, as BankingMetrics counts each one apart, up to TRANSFER_NOT_PREPARED.
+    public static final long ACCOUNT_NOT_FOUND = -1;
+    public static final long INVALID_AMOUNT = -2;
+    public static final long INSUFFICIENT_FUNDS = -3;
+    public static final long REQUEST_ID_CONFLICT = -4;
+    public static final long ACCOUNT_BUSY = -5;
+    public static final long VELOCITY_LIMITED = -6;
+    public static final long TRANSFER_NOT_PREPARED = -7;
+
+    // Most request IDs remembered, and for how long.
+    public static final int REQUEST_CAPACITY = 1 << 20;
+    public static final long REQUEST_WINDOW_MILLIS = 10 * 60 * 1000;
+
+    // How long a prepared transfer from another shard holds its receiver at least.
+    public static final long PREPARE_TIMEOUT_MILLIS = 60 * 1000;
+
+    private static final int STRIPES = 256;
+    private static final int ACCRUAL_SLICE_CHUNKS = 16; // Chunks of accounts an accrual run applies at a time
+    private static final int COUNTER_PADDING = 16; // Ints per in-flight counter, so each has its own cache line
+
+    private final Mode mode;
+    private final AccountStore store;
+    private final Journal journal;
+    private final TransactionHistory history;
+    private final Path snapshotFile;
+    private final long snapshotInterval;
+
+    private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+
+    // Held by an interest accrual run from start to finish, and by checkpoints, so a snapshot never covers part
+    // of a run: it either has all of a run's changes or none of them and its journal batch.
+    private final ReentrantLock batchLock = new ReentrantLock();
+
+    // The accrual run in progress or left unfinished by a failure, or null. Guarded by batchLock.
+    private InterestAccrual.Unfinished unfinishedAccrual;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    // Lock-free operations in progress per stripe. An exclusive section, such as a checkpoint, raises the flag
+    // and waits for every counter to drain, so a snapshot never sees a balance whose journal record has not
+    // been written yet.
+    private final AtomicIntegerArray inFlight = new AtomicIntegerArray(STRIPES * COUNTER_PADDING);
+    private volatile boolean exclusive;
+
+    private final BankingMetrics metrics;
+    private final BalanceAggregates aggregates;
+    private final IdempotencyCache requests = new IdempotencyCache(REQUEST_CAPACITY, REQUEST_WINDOW_MILLIS);
+
+    // The halves of transfers with other shards this shard has a part in, incoming and outgoing, by transfer ID,
+    // and how many prepared incoming halves each receiver has, as a receiver cannot be deleted while it has any.
+    // A half changes state holding its lock and the store read lock or a lock-free slot, so a checkpoint sees
+    // each half and the balances it changed agree. Settled halves are kept for REQUEST_WINDOW_MILLIS after
+    // their last change, well past the time ShardedBank resends them for.
+    private final ConcurrentHashMap<String, TransferHalf> transfersIn = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TransferHalf> transfersOut = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Integer> pinned = new ConcurrentHashMap<>();
+    private volatile long nextTransferSweep;
+
+    // Limits on withdrawals and outgoing transfers per account, or null for none.
+    private volatile VelocityLimits limits;
+
+    // Keys this engine may give new accounts: every key, unless it holds one shard of several.
+    private volatile IntPredicate ownsKey = key -> true;
+
+    // Built on the first name search and kept up to date by open and delete from then on. Guarded by storeLock.
+    private NameIndex nameIndex;
+
+    // Creates an engine over a recovered store. The journal may be null to keep changes in memory only.
+    public BankingEngine(AccountStore store, Journal journal, Path snapshotFile, long snapshotInterval) {
+        this(Mode.STRIPED_LOCKS, store, journal, snapshotFile, snapshotInterval);
+    }
+
+    public BankingEngine(Mode mode, AccountStore store, Journal journal, Path snapshotFile, long snapshotInterval) {
+        this(mode, store, journal, null, snapshotFile, snapshotInterval);
+    }
+
+    // The history may be null to keep no transaction history.
+    public BankingEngine(Mode mode, AccountStore store, Journal journal, TransactionHistory history, Path snapshotFile,
+                         long snapshotInterval) {
+        this.mode = mode;
+        this.store = store;
+        this.journal = journal;
+        this.history = history;
+        this.snapshotFile = snapshotFile;
+        this.snapshotInterval = snapshotInterval;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+        this.metrics = new BankingMetrics(store::size);
+        this.aggregates = BalanceAggregates.build(store);
+
+        if (journal != null) {
+            for (TransferHalf half : journal.transferHalves()) {
+                (half.isIncoming() ? transfersIn : transfersOut).put(half.id, half);
+                if (half.state == TransferHalf.PREPARED) pinned.merge(half.key, 1, Integer::sum);
+            }
+            for (InterestAccrual.Unfinished unfinished : journal.unfinishedAccruals()) runAccrual(unfinished);
+        }
+    }
+
+    // Returns the error message for a rejected operation.
+    public static String rejectionMessage(long result) {
+        if (result == ACCOUNT_NOT_FOUND) return "Account not found";
+        if (result == INVALID_AMOUNT) return "Invalid amount";
+        if (result == INSUFFICIENT_FUNDS) return "Insufficient funds";
+        if (result == REQUEST_ID_CONFLICT) return "Request ID already used for a different request";
+        if (result == ACCOUNT_BUSY) return "Account is busy, please try again";
+        if (result == VELOCITY_LIMITED) return "Transaction limit reached for this account, please try again later";
+        if (result == TRANSFER_NOT_PREPARED) return "No matching transfer was prepared";
+        return null;
+    }
+
+    // Checks a name contains only letters and spaces, and no more than MAX_NAME_LENGTH characters.
+    public static boolean isValidName(String name) {
+        if (name == null || name.isBlank() || name.length() > MAX_NAME_LENGTH) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (!(Character.isLetter(name.charAt(i)) || Character.isSpaceChar(name.charAt(i)))) return false;
+        }
+        return true;
+    }
+
+    // Returns the key the next opened account is likely to get; another session may take it first.
+    public int nextKey() {
+        storeLock.readLock().lock();
+        try {
+            return store.nextKey();
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    public int accountCount() {
+        storeLock.readLock().lock();
+        try {
+            return store.size();
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    public boolean exists(int key) {
+        storeLock.readLock().lock();
+        try {
+            return store.contains(key);
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    // Returns the account holder name, or null if the account does not exist.
+    public String name(int key) {
+        storeLock.readLock().lock();
+        try {
+            return store.getName(key);
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    // Returns the keys of up to limit accounts whose holder names start with the prefix, ignoring case,
+    // in name order. The first search builds the name index.
+    public int[] findByNamePrefix(String prefix, int limit) {
+        storeLock.readLock().lock();
+        try {
+            if (nameIndex != null) return nameIndex.findByPrefix(prefix, limit);
+        } finally {
+            storeLock.readLock().unlock();
+        }
+
+        storeLock.writeLock().lock();
+        try {
+            if (nameIndex == null) nameIndex = NameIndex.build(store);
+            return nameIndex.findByPrefix(prefix, limit);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    // Returns the balance in cents, or ACCOUNT_NOT_FOUND.
+    public long balance(int key) {
+        long start = System.nanoTime();
+        long result = readBalance(key);
+        metrics.record(BankingMetrics.Operation.BALANCE, start, result);
+        return result;
+    }
+
+    private long readBalance(int key) {
+        if (mode == Mode.LOCK_FREE) {
+            long balance = store.getBalance(key);
+            return balance < 0 ? ACCOUNT_NOT_FOUND : balance;
+        }
+
+        storeLock.readLock().lock();
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            long balance = store.getBalance(key);
+            return balance < 0 ? ACCOUNT_NOT_FOUND : balance;
+        } finally {
+            stripe.unlock();
+            storeLock.readLock().unlock();
+        }
+    }
+
+    // Opens an account and returns its key, or INVALID_AMOUNT if the name or initial deposit is not allowed.
+    public long openAccount(String name, long initialDeposit) {
+        long start = System.nanoTime();
+        long result = open(name, initialDeposit);
+        metrics.record(BankingMetrics.Operation.OPEN, start, result);
+        return result;
+    }
+
+    private long open(String name, long initialDeposit) {
+        if (!isValidName(name) || initialDeposit < MIN_INITIAL_DEPOSIT) return INVALID_AMOUNT;
+
+        int key;
+        long now = System.currentTimeMillis();
+        storeLock.writeLock().lock();
+        try {
+            key = store.nextKey();
+            while (!ownsKey.test(key)) key++;
+            if (journal != null) journal.logOpen(key, name, initialDeposit, now);
+            store.put(key, name, initialDeposit);
+            aggregates.onChange(key, -1, initialDeposit);
+            if (nameIndex != null) nameIndex.add(key, name);
+            if (history != null) history.record(key, now, TransactionHistory.OPEN, initialDeposit, 0, 0, initialDeposit);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+        checkpointIfDue();
+        return key;
+    }
+
+    // Deletes an account and returns its final balance, or ACCOUNT_NOT_FOUND.
+    public long deleteAccount(int key) {
+        long start = System.nanoTime();
+        long result = delete(key);
+        metrics.record(BankingMetrics.Operation.DELETE, start, result);
+        return result;
+    }
+
+    private long delete(int key) {
+        long balance;
+        long now = System.currentTimeMillis();
+        // Swept first, as refusing a lapsed prepare takes the store read lock
+        if (pinned.containsKey(key)) sweepTransfers(now);
+        beginExclusive();
+        try {
+            balance = store.getBalance(key);
+            if (balance < 0) return ACCOUNT_NOT_FOUND;
+            if (pinned.containsKey(key)) return ACCOUNT_BUSY;
+            if (journal != null) journal.logDelete(key, now);
+            if (nameIndex != null) nameIndex.remove(key, store.getName(key));
+            store.remove(key);
+            aggregates.onChange(key, balance, -1);
+            if (history != null) history.record(key, now, TransactionHistory.CLOSE, balance, 0, 0, 0);
+        } finally {
+            endExclusive();
+        }
+        checkpointIfDue();
+        return balance;
+    }
+
+    // Deposits into an account and returns the new balance, or a rejection.
+    public long deposit(int key, long amount) {
+        long start = System.nanoTime();
+        long result = applyDeposit(key, amount);
+        metrics.record(BankingMetrics.Operation.DEPOSIT, start, result);
+        return result;
+    }
+
+    private long applyDeposit(int key, long amount) {
+        if (amount < MIN_DEPOSIT) return INVALID_AMOUNT;
+
+        long newBalance;
+        long now = System.currentTimeMillis();
+        if (mode == Mode.LOCK_FREE) {
+            enterLockFree(key);
+            try {
+                newBalance = inOrder(() -> {
+                    long updated = addToBalance(key, amount, Long.MIN_VALUE);
+                    if (updated >= 0) {
+                        if (journal != null) journal.logDeposit(key, amount, now);
+                        if (history != null) history.record(key, now, TransactionHistory.DEPOSIT, amount, 0, 0, updated);
+                    }
+                    return updated;
+                });
+            } finally {
+                leaveLockFree(key);
+            }
+            checkpointIfDue();
+            return newBalance;
+        }
+
+        storeLock.readLock().lock();
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            long balance = store.getBalance(key);
+            if (balance < 0) return ACCOUNT_NOT_FOUND;
+            if (journal != null) journal.logDeposit(key, amount, now);
+            newBalance = balance + amount;
+            store.setBalance(key, newBalance);
+            aggregates.onChange(key, balance, newBalance);
+            if (history != null) history.record(key, now, TransactionHistory.DEPOSIT, amount, 0, 0, newBalance);
+        } finally {
+            stripe.unlock();
+            storeLock.readLock().unlock();
+        }
+        checkpointIfDue();
+        return newBalance;
+    }
+
+    // Withdraws from an account, keeping at least MIN_BALANCE, and returns the new balance or a rejection.
+    public long withdraw(int key, long amount) {
+        long start = System.nanoTime();
+        long result = applyWithdraw(key, amount);
+        metrics.record(BankingMetrics.Operation.WITHDRAW, start, result);
+        return result;
+    }
+
+    private long applyWithdraw(int key, long amount) {
+        if (amount < MIN_WITHDRAW) return INVALID_AMOUNT;
+
+        long newBalance;
+        long now = System.currentTimeMillis();
+        if (mode == Mode.LOCK_FREE) {
+            VelocityLimits limits = this.limits;
+            long limited = acquireLockFree(limits, key, amount);
+            if (limited < 0) return limited;
+            enterLockFree(key);
+            try {
+                newBalance = inOrder(() -> {
+                    long updated = addToBalance(key, -amount, MIN_BALANCE);
+                    if (updated >= 0) {
+                        if (journal != null) journal.logWithdraw(key, amount, now);
+                        if (history != null) history.record(key, now, TransactionHistory.WITHDRAW, amount, 0, 0, updated);
+                    }
+                    return updated;
+                });
+                if (newBalance < 0 && limits != null) limits.release(key, amount);
+            } finally {
+                leaveLockFree(key);
+            }
+            checkpointIfDue();
+            return newBalance;
+        }
+
+        storeLock.readLock().lock();
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            long balance = store.getBalance(key);
+            if (balance < 0) return ACCOUNT_NOT_FOUND;
+            if (balance - amount < MIN_BALANCE) return INSUFFICIENT_FUNDS;
+            if (!withinLimits(key, amount)) return VELOCITY_LIMITED;
+            if (journal != null) journal.logWithdraw(key, amount, now);
+            newBalance = balance - amount;
+            store.setBalance(key, newBalance);
+            aggregates.onChange(key, balance, newBalance);
+            if (history != null) history.record(key, now, TransactionHistory.WITHDRAW, amount, 0, 0, newBalance);
+        } finally {
+            stripe.unlock();
+            storeLock.readLock().unlock();
+        }
+        checkpointIfDue();
+        return newBalance;
+    }
+
+    // Moves an amount between accounts, charging the transfer fee to the sender, who must keep at least
+    // MIN_BALANCE after both. Returns the sender's new balance, or a rejection.
+    public long transfer(int fromKey, int toKey, long amount) {
+        long start = System.nanoTime();
+        long result = applyTransfer(fromKey, toKey, amount);
+        metrics.record(BankingMetrics.Operation.TRANSFER, start, result);
+        return result;
+    }
+
+    private long applyTransfer(int fromKey, int toKey, long amount) {
+        if (amount < MIN_TRANSFER) return INVALID_AMOUNT;
+        long fee = Money.transferFee(amount);
+
+        long newBalance;
+        long now = System.currentTimeMillis();
+        if (mode == Mode.LOCK_FREE) {
+            VelocityLimits limits = this.limits;
+            long limited = acquireLockFree(limits, fromKey, amount);
+            if (limited < 0) return limited;
+            enterLockFree(fromKey);
+            try {
+                newBalance = inOrder(() -> {
+                    long debited = addToBalance(fromKey, -amount - fee, MIN_BALANCE);
+                    if (debited < 0) return debited;
+                    long received = addToBalance(toKey, amount, Long.MIN_VALUE);
+                    if (received < 0) {
+                        // The receiver was deleted in the meantime, so give the sender the money back
+                        addToBalance(fromKey, amount + fee, Long.MIN_VALUE);
+                        return ACCOUNT_NOT_FOUND;
+                    }
+                    if (journal != null) journal.logTransfer(fromKey, toKey, amount, fee, now);
+                    if (history != null) recordTransfer(fromKey, toKey, amount, fee, now, debited, received);
+                    return fromKey == toKey ? received : debited;
+                });
+                if (newBalance < 0 && limits != null) limits.release(fromKey, amount);
+            } finally {
+                leaveLockFree(fromKey);
+            }
+            checkpointIfDue();
+            return newBalance;
+        }
+
+        storeLock.readLock().lock();
+        ReentrantLock first = stripes[Math.min(stripeIndex(fromKey), stripeIndex(toKey))];
+        ReentrantLock second = stripes[Math.max(stripeIndex(fromKey), stripeIndex(toKey))];
+        first.lock();
+        second.lock();
+        try {
+            long fromBalance = store.getBalance(fromKey);
+            if (fromBalance < 0 || !store.contains(toKey)) return ACCOUNT_NOT_FOUND;
+            if (fromBalance - amount - fee < MIN_BALANCE) return INSUFFICIENT_FUNDS;
+            if (!withinLimits(fromKey, amount)) return VELOCITY_LIMITED;
+            if (journal != null) journal.logTransfer(fromKey, toKey, amount, fee, now);
+
+            newBalance = fromBalance - amount - fee;
+            store.setBalance(fromKey, newBalance);
+            aggregates.onChange(fromKey, fromBalance, newBalance);
+            // Read the receiver after the debit in case both keys are the same account
+            long toBalance = store.getBalance(toKey);
+            long received = toBalance + amount;
+            store.setBalance(toKey, received);
+            aggregates.onChange(toKey, toBalance, received);
+            if (history != null) recordTransfer(fromKey, toKey, amount, fee, now, newBalance, received);
+            if (fromKey == toKey) newBalance += amount;
+        } finally {
+            second.unlock();
+            first.unlock();
+            storeLock.readLock().unlock();
+        }
+        checkpointIfDue();
+        return newBalance;
+    }
+
+    // Applies velocity limits to withdrawals and outgoing transfers from now on, or none if null. Transfers
+    // count their amount without the fee. Recovery replays the journal without them.
+    public void setVelocityLimits(VelocityLimits limits) {
+        this.limits = limits;
+    }
+
+    // Only gives new accounts keys that pass the filter, so shards issue disjoint sets of account numbers.
+    public void setKeyFilter(IntPredicate ownsKey) {
+        this.ownsKey = ownsKey;
+    }
+
+    // Prepares the receiving account for a transfer from another shard, under the ID the other halves of the
+    // transfer will carry: pins it so it cannot be deleted until transferIn or abortTransferIn, and returns its
+    // balance once the prepare is on disk, or a rejection. Preparing the same transfer again returns the balance
+    // without pinning it twice, and TRANSFER_NOT_PREPARED once it was refused.
+    public long prepareTransferIn(String transferId, int toKey, int fromKey, long amount) {
+        checkTransferId(transferId);
+        if (amount <= 0) return INVALID_AMOUNT;
+        long now = System.currentTimeMillis();
+        if (now >= nextTransferSweep) sweepTransfers(now);
+        TransferHalf half = lockHalf(transfersIn, transferId, toKey, fromKey, amount);
+        try {
+            if (half.state != TransferHalf.NEW && !half.matches(toKey, fromKey, amount)) return REQUEST_ID_CONFLICT;
+            if (half.state == TransferHalf.REFUSED) return TRANSFER_NOT_PREPARED;
+            storeLock.readLock().lock();
+            try {
+                long balance = store.getBalance(toKey);
+                if (half.state != TransferHalf.NEW) return balance < 0 ? ACCOUNT_NOT_FOUND : balance;
+                if (balance < 0) {
+                    transfersIn.remove(transferId, half);
+                    return ACCOUNT_NOT_FOUND;
+                }
+                if (journal != null) journal.logTransferState(half, TransferHalf.PREPARED, now);
+                half.settle(TransferHalf.PREPARED, balance, now);
+                pinned.merge(toKey, 1, Integer::sum);
+                return balance;
+            } finally {
+                storeLock.readLock().unlock();
+            }
+        } finally {
+            half.lock.unlock();
+        }
+    }
+
+    // Refuses a prepared transfer that did not go ahead, releasing its receiver. Does nothing if the transfer is
+    // not prepared, e.g. because it was already credited.
+    public void abortTransferIn(String transferId) {
+        checkTransferId(transferId);
+        TransferHalf half = transfersIn.get(transferId);
+        if (half == null) return;
+        half.lock.lock();
+        try {
+            if (half.state == TransferHalf.PREPARED) refuse(half, System.currentTimeMillis());
+        } finally {
+            half.lock.unlock();
+        }
+    }
+
+    // Debits the sender's half of a transfer to an account on another shard: the amount plus the transfer fee,
+    // keeping at least MIN_BALANCE. Returns the sender's new balance, or a rejection. Sending the same transfer
+    // again returns the first result instead of debiting it twice, unless the first was rejected.
+    public long transferOut(String transferId, int fromKey, int toKey, long amount) {
+        checkTransferId(transferId);
+        if (amount < MIN_TRANSFER) return INVALID_AMOUNT;
+        long now = System.currentTimeMillis();
+        if (now >= nextTransferSweep) sweepTransfers(now);
+        TransferHalf half = lockHalf(transfersOut, transferId, fromKey, toKey, amount);
+        try {
+            if (half.state != TransferHalf.NEW) return half.matches(fromKey, toKey, amount) ? half.result : REQUEST_ID_CONFLICT;
+            long start = System.nanoTime();
+            long result = applyTransferHalf(half, TransferHalf.DEBITED, Money.transferFee(amount), TransactionHistory.TRANSFER_OUT);
+            metrics.record(BankingMetrics.Operation.TRANSFER, start, result);
+            if (result < 0) transfersOut.remove(transferId, half);
+            return result;
+        } finally {
+            half.lock.unlock();
+        }
+    }
+
+    // Credits the receiver's half of a transfer from an account on another shard and releases its prepare.
+    // Returns the receiver's new balance, or TRANSFER_NOT_PREPARED once the transfer is refused here, which it is
+    // unless it was prepared here and has not been aborted or lapsed. Sending the same transfer again returns the
+    // first result instead of crediting it twice.
+    public long transferIn(String transferId, int toKey, int fromKey, long amount) {
+        checkTransferId(transferId);
+        TransferHalf half = lockHalf(transfersIn, transferId, toKey, fromKey, amount);
+        try {
+            if (half.state == TransferHalf.NEW) return refuse(half, System.currentTimeMillis());
+            if (!half.matches(toKey, fromKey, amount)) return REQUEST_ID_CONFLICT;
+            if (half.state == TransferHalf.REFUSED) return TRANSFER_NOT_PREPARED;
+            if (half.state == TransferHalf.CREDITED) return half.result;
+            long start = System.nanoTime();
+            // The receiver stays pinned until it is credited
+            long result = applyTransferHalf(half, TransferHalf.CREDITED, 0, TransactionHistory.TRANSFER_IN);
+            if (result >= 0) unpin(toKey);
+            metrics.record(BankingMetrics.Operation.TRANSFER, start, result);
+            return result;
+        } finally {
+            half.lock.unlock();
+        }
+    }
+
+    // Gives the sender back the amount and fee of a transfer it debited with transferOut whose credit was
+    // refused, without touching any prepare. Returns the sender's new balance, or TRANSFER_NOT_PREPARED
+    // unless the same transfer was debited here within REQUEST_WINDOW_MILLIS; a refund is only given once.
+    public long refundTransferOut(String transferId, int fromKey, int toKey, long amount) {
+        checkTransferId(transferId);
+        TransferHalf half = transfersOut.get(transferId);
+        if (half == null) return TRANSFER_NOT_PREPARED;
+        half.lock.lock();
+        try {
+            if (!half.matches(fromKey, toKey, amount)) return REQUEST_ID_CONFLICT;
+            if (half.state == TransferHalf.REFUNDED) return half.result;
+            if (half.state != TransferHalf.DEBITED) return TRANSFER_NOT_PREPARED;
+            long start = System.nanoTime();
+            long result = applyTransferHalf(half, TransferHalf.REFUNDED, Money.transferFee(amount), TransactionHistory.REFUND);
+            metrics.record(BankingMetrics.Operation.TRANSFER, start, result);
+            return result;
+        } finally {
+            half.lock.unlock();
+        }
+    }
+
+    private static void checkTransferId(String transferId) {
+        if (!TransferHalf.isValidId(transferId)) throw new IllegalArgumentException("Invalid transfer ID: " + transferId);
+    }
+
+    // Returns the half under the ID, locked, adding a NEW one if there is none. A NEW half dropped by whoever
+    // held it before is not returned, so a half is only ever applied through the map.
+    private static TransferHalf lockHalf(ConcurrentHashMap<String, TransferHalf> halves, String transferId, int key,
+                                         int otherKey, long amount) {
+        while (true) {
+            TransferHalf half = halves.computeIfAbsent(transferId, id -> new TransferHalf(id, key, otherKey, amount));
+            half.lock.lock();
+            if (halves.get(transferId) == half) return half;
+            half.lock.unlock();
+        }
+    }
+
+    // Refuses an incoming half, held locked, that is NEW or PREPARED, releasing its receiver if it was prepared,
+    // and returns TRANSFER_NOT_PREPARED once the refusal is on disk.
+    private long refuse(TransferHalf half, long now) {
+        storeLock.readLock().lock();
+        try {
+            if (journal != null) journal.logTransferState(half, TransferHalf.REFUSED, now);
+            boolean prepared = half.state == TransferHalf.PREPARED;
+            half.settle(TransferHalf.REFUSED, TRANSFER_NOT_PREPARED, now);
+            if (prepared) unpin(half.key);
+        } finally {
+            storeLock.readLock().unlock();
+        }
+        return TRANSFER_NOT_PREPARED;
+    }
+
+    // Refuses prepares that have outlived PREPARE_TIMEOUT_MILLIS, releasing their receivers, and forgets settled
+    // halves that have not changed for REQUEST_WINDOW_MILLIS.
+    private void sweepTransfers(long now) {
+        nextTransferSweep = now + PREPARE_TIMEOUT_MILLIS;
+        sweep(transfersIn, now);
+        sweep(transfersOut, now);
+    }
+
+    private void sweep(ConcurrentHashMap<String, TransferHalf> halves, long now) {
+        for (TransferHalf half : halves.values()) {
+            half.lock.lock();
+            try {
+                if (half.state == TransferHalf.PREPARED) {
+                    if (half.changedAt + PREPARE_TIMEOUT_MILLIS <= now) refuse(half, now);
+                } else if (half.state != TransferHalf.NEW && half.changedAt + REQUEST_WINDOW_MILLIS <= now) {
+                    halves.remove(half.id, half);
+                }
+            } finally {
+                half.lock.unlock();
+            }
+        }
+    }
+
+    private void unpin(int key) {
+        pinned.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+    }
+
+    // The halves a checkpoint logs again, all but those not applied yet.
+    private List<TransferHalf> transferHalves() {
+        List<TransferHalf> halves = new ArrayList<>();
+        for (TransferHalf half : transfersIn.values()) if (half.state != TransferHalf.NEW) halves.add(half);
+        for (TransferHalf half : transfersOut.values()) if (half.state != TransferHalf.NEW) halves.add(half);
+        return halves;
+    }
+
+    // Applies a transfer half, held locked, moving it to the settled state together with the balance change.
+    private long applyTransferHalf(TransferHalf half, byte settled, long fee, byte type) {
+        int key = half.key;
+        int otherKey = half.otherKey;
+        long amount = half.amount;
+        boolean out = type == TransactionHistory.TRANSFER_OUT;
+        long change = out ? -amount - fee : amount + fee;
+        long newBalance;
+        long now = System.currentTimeMillis();
+        if (mode == Mode.LOCK_FREE) {
+            VelocityLimits limits = out ? this.limits : null;
+            long limited = acquireLockFree(limits, key, amount);
+            if (limited < 0) return limited;
+            enterLockFree(key);
+            try {
+                newBalance = inOrder(() -> {
+                    long updated = addToBalance(key, change, out ? MIN_BALANCE : Long.MIN_VALUE);
+                    if (updated >= 0) {
+                        if (journal != null) logTransferHalf(half, fee, type, now);
+                        half.settle(settled, updated, now);
+                        if (history != null) history.record(key, now, type, amount, fee, otherKey, updated);
+                    }
+                    return updated;
+                });
+                if (newBalance < 0 && limits != null) limits.release(key, amount);
+            } finally {
+                leaveLockFree(key);
+            }
+            checkpointIfDue();
+            return newBalance;
+        }
+
+        storeLock.readLock().lock();
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            long balance = store.getBalance(key);
+            if (balance < 0) return ACCOUNT_NOT_FOUND;
+            if (out && balance + change < MIN_BALANCE) return INSUFFICIENT_FUNDS;
+            if (out && !withinLimits(key, amount)) return VELOCITY_LIMITED;
+            if (journal != null) logTransferHalf(half, fee, type, now);
+            newBalance = balance + change;
+            store.setBalance(key, newBalance);
+            half.settle(settled, newBalance, now);
+            aggregates.onChange(key, balance, newBalance);
+            if (history != null) history.record(key, now, type, amount, fee, otherKey, newBalance);
+        } finally {
+            stripe.unlock();
+            storeLock.readLock().unlock();
+        }
+        checkpointIfDue();
+        return newBalance;
+    }
+
+    private void logTransferHalf(TransferHalf half, long fee, byte type, long now) {
+        if (type == TransactionHistory.TRANSFER_OUT) {
+            journal.logTransferOut(half.id, half.key, half.otherKey, half.amount, fee, now);
+        } else if (type == TransactionHistory.REFUND) {
+            journal.logTransferRefund(half.id, half.key, half.otherKey, half.amount, fee, now);
+        } else {
+            journal.logTransferIn(half.id, half.key, half.otherKey, half.amount, now);
+        }
+    }
+
+    // Idempotent versions of the operations above. A null request ID runs the operation as usual. They return
+    // ACCOUNT_BUSY without running when too many requests are still running to remember another.
+    public long openAccount(String requestId, String name, long initialDeposit) {
+        return idempotent(requestId, fingerprint(1, name == null ? 0 : name.hashCode(), 0, initialDeposit),
+                () -> openAccount(name, initialDeposit));
+    }
+
+    public long deposit(String requestId, int key, long amount) {
+        return idempotent(requestId, fingerprint(2, key, 0, amount), () -> deposit(key, amount));
+    }
+
+    public long withdraw(String requestId, int key, long amount) {
+        return idempotent(requestId, fingerprint(3, key, 0, amount), () -> withdraw(key, amount));
+    }
+
+    public long transfer(String requestId, int fromKey, int toKey, long amount) {
+        return idempotent(requestId, fingerprint(4, fromKey, toKey, amount), () -> transfer(fromKey, toKey, amount));
+    }
+
+    // Number of request IDs whose results are remembered at the moment.
+    public int rememberedRequests() {
+        return requests.size();
+    }
+
+    private long idempotent(String requestId, long fingerprint, LongSupplier operation) {
+        if (requestId == null) return operation.getAsLong();
+        long result = requests.execute(requestId, fingerprint, operation);
+        if (result == IdempotencyCache.FULL) return ACCOUNT_BUSY;
+        return result == IdempotencyCache.CONFLICT ? REQUEST_ID_CONFLICT : result;
+    }
+
+    // Identifies what a request asked for, so a reused request ID with a different request is caught.
+    private static long fingerprint(int operation, int key, int otherKey, long amount) {
+        long h = operation;
+        h = h * 0x9E3779B97F4A7C15L + key;
+        h = h * 0x9E3779B97F4A7C15L + otherKey;
+        h = h * 0x9E3779B97F4A7C15L + amount;
+        return h ^ (h >>> 32);
+    }
+
+    // Records both sides of a transfer, given the sender's balance after the debit and the receiver's after the credit.
+    private void recordTransfer(int fromKey, int toKey, long amount, long fee, long now, long fromBalance, long toBalance) {
+        history.record(fromKey, now, TransactionHistory.TRANSFER_OUT, amount, fee, toKey, fromBalance);
+        history.record(toKey, now, TransactionHistory.TRANSFER_IN, amount, 0, fromKey, toBalance);
+    }
+
+    // Starts a statement of the entries of an account between two times in milliseconds since the epoch, both
+    // inclusive, or returns null if the engine keeps no transaction history.
+    public TransactionHistory.Statement statement(int key, long fromMillis, long toMillis) {
+        return history == null ? null : history.statement(key, fromMillis, toMillis);
+    }
+
+    // Account count, total assets and balance histogram, kept up to date by every operation.
+    public BalanceAggregates.Summary summary() {
+        return aggregates.summary();
+    }
+
+    // Returns the keys of the n accounts with the highest balances, highest first. Usually answered from the
+    // aggregates; when they cannot answer, operations wait while the richest accounts are found again.
+    public int[] topAccounts(int n) {
+        int[] top = aggregates.top(n);
+        if (top != null) return top;
+        if (n > BalanceAggregates.TOP_CAPACITY) {
+            storeLock.readLock().lock();
+            try {
+                return BalanceAggregates.scanTop(store, store.nextKey(), n);
+            } finally {
+                storeLock.readLock().unlock();
+            }
+        }
+
+        beginExclusive();
+        try {
+            aggregates.rebuildTop(store.nextKey());
+            return aggregates.top(n);
+        } finally {
+            endExclusive();
+        }
+    }
+
+    // Account count, total and balance histogram of the accounts whose balance passes the filter, worked out
+    // with a parallel scan over every account for ad hoc questions. Operations carry on during the scan.
+    public BalanceAggregates.Summary scanBalances(LongPredicate filter) {
+        storeLock.readLock().lock();
+        try {
+            return BalanceAggregates.scan(store, store.nextKey(), filter);
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    // Latency and outcome figures of the operations run so far.
+    public BankingMetrics metrics() {
+        return metrics;
+    }
+
+    // Writes a snapshot of all accounts and empties the journal it covers. Operations wait while it runs,
+    // and it waits for an interest accrual run in progress to finish, and first finishes one that failed.
+    public void checkpoint() {
+        if (journal == null) return;
+        batchLock.lock();
+        try {
+            if (unfinishedAccrual != null) runAccrual(unfinishedAccrual);
+            writeCheckpoint();
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    private void writeCheckpoint() {
+        beginExclusive();
+        try {
+            if (journal.recordsSinceTruncate() == 0) return;
+            long lsn = journal.lastLsn();
+            // The history goes first: if the snapshot is then lost, replay skips what the history already has
+            if (history != null) history.checkpoint(lsn);
+            // The snapshot does not keep transfer halves, so they are logged again after the LSN it covers
+            journal.carryTransferStates(transferHalves());
+            Snapshot.write(snapshotFile, store, lsn);
+            journal.truncate();
+        } finally {
+            endExclusive();
+        }
+    }
+
+    // Pays interest and charges the maintenance fee on every open account, as one batch. Accounts are done a
+    // slice of ACCRUAL_SLICE_CHUNKS chunks at a time, the chunks of a slice in parallel, each account's interest
+    // and fee worked out from its balance as it is applied, so the fee never takes a balance below MIN_BALANCE.
+    // Operations wait while a slice is applied and logged, so each account's journal records stay in the order
+    // its balance changed, and carry on between slices; accounts opened during the run are left for the next.
+    // A run that failed is finished first; the totals are this run's alone.
+    public InterestAccrual.Totals accrue(InterestAccrual accrual) {
+        batchLock.lock();
+        try {
+            if (unfinishedAccrual != null) runAccrual(unfinishedAccrual);
+            InterestAccrual.Unfinished run = new InterestAccrual.Unfinished(accrual, System.currentTimeMillis(), nextKey());
+            if (journal != null) journal.logAccrualBegin(run.batch, run.keyLimit, accrual, run.batch);
+            return runAccrual(run);
+        } finally {
+            batchLock.unlock();
+            checkpointIfDue();
+        }
+    }
+
+    // Applies an accrual batch to the accounts below its key limit, skipping the chunks already applied, and
+    // commits it. Until then the run stays unfinishedAccrual. If a chunk fails, the others of its slice are still
+    // marked applied and logged before the failure is thrown, and the failed one is left as it was, so finishing
+    // the run later applies each chunk once.
+    private InterestAccrual.Totals runAccrual(InterestAccrual.Unfinished run) {
+        unfinishedAccrual = run;
+        int chunks = (run.keyLimit - 1 + InterestAccrual.CHUNK_KEYS - 1) / InterestAccrual.CHUNK_KEYS;
+        LongAdder accounts = new LongAdder();
+        LongAdder interestPaid = new LongAdder();
+        LongAdder feesCharged = new LongAdder();
+        for (int slice = 0; slice < chunks; slice += ACCRUAL_SLICE_CHUNKS) {
+            int sliceEnd = Math.min(chunks, slice + ACCRUAL_SLICE_CHUNKS);
+            byte[][] encoded = new byte[sliceEnd - slice][];
+            RuntimeException[] failures = new RuntimeException[sliceEnd - slice];
+            beginExclusive();
+            try {
+                long now = System.currentTimeMillis();
+                int first = slice;
+                IntStream.range(slice, sliceEnd).filter(chunk -> !run.applied.get(chunk)).parallel().forEach(chunk -> {
+                    try {
+                        encoded[chunk - first] = run.accrual.apply(store, firstKey(chunk),
+                                Math.min(run.keyLimit, firstKey(chunk + 1)), (key, interest, fee) -> {
+                                    long newBalance = store.getBalance(key);
+                                    aggregates.onChange(key, newBalance - interest + fee, newBalance);
+                                    accounts.increment();
+                                    interestPaid.add(interest);
+                                    feesCharged.add(fee);
+                                });
+                    } catch (RuntimeException e) {
+                        failures[chunk - first] = e;
+                    }
+                });
+                for (int chunk = slice; chunk < sliceEnd; chunk++) {
+                    if (failures[chunk - slice] == null) run.applied.set(chunk);
+                }
+                for (int chunk = slice; chunk < sliceEnd; chunk++) {
+                    byte[] changes = encoded[chunk - slice];
+                    if (changes != null && journal != null) journal.logAccrual(run.batch, firstKey(chunk), changes, now);
+                }
+                if (history != null) {
+                    IntStream.range(slice, sliceEnd).filter(chunk -> encoded[chunk - first] != null).parallel().forEach(chunk ->
+                            InterestAccrual.decode(encoded[chunk - first], firstKey(chunk), (key, interest, fee) ->
+                                    history.record(key, now, TransactionHistory.INTEREST, interest, fee, 0, store.getBalance(key))));
+                }
+                for (RuntimeException failure : failures) {
+                    if (failure != null) throw failure;
+                }
+            } finally {
+                endExclusive();
+            }
+        }
+        if (journal != null) journal.logAccrualCommit(run.batch, System.currentTimeMillis());
+        unfinishedAccrual = null;
+        return new InterestAccrual.Totals(accounts.sum(), interestPaid.sum(), feesCharged.sum());
+    }
+
+    private static int firstKey(int chunk) {
+        return 1 + chunk * InterestAccrual.CHUNK_KEYS;
+    }
+
+    // Stops every other operation, locking or lock-free, until endExclusive.
+    private void beginExclusive() {
+        storeLock.writeLock().lock();
+        exclusive = true;
+        for (int i = 0; i < inFlight.length(); i += COUNTER_PADDING) {
+            while (inFlight.get(i) != 0) Thread.onSpinWait();
+        }
+    }
+
+    private void endExclusive() {
+        exclusive = false;
+        storeLock.writeLock().unlock();
+    }
+
+    // Lets journal appends return without waiting for their fsync, for bulk work that calls syncJournal
+    // before it reports anything as done. Other sessions may see such changes before they are durable.
+    public void deferJournalSync(boolean defer) {
+        if (journal != null) journal.setSyncOnAppend(!defer);
+    }
+
+    // Waits until every change made so far is on disk.
+    public void syncJournal() {
+        if (journal != null) journal.sync();
+    }
+
+    // Leaves a fresh snapshot behind and closes the journal and history.
+    public void close() {
+        checkpoint();
+        if (journal != null) journal.close();
+        if (history != null) history.close();
+    }
+
+    // Takes a snapshot once enough journal records have built up since the last one, unless an interest accrual
+    // run is in progress, in which case a later operation takes it, or failed, in which case the next run
+    // finishes it first.
+    private void checkpointIfDue() {
+        if (journal == null || journal.recordsSinceTruncate() < snapshotInterval || !batchLock.tryLock()) return;
+        try {
+            if (unfinishedAccrual == null) writeCheckpoint();
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    // Runs a lock-free change and the logging of its record as one step, holding the journal if there is one.
+    private long inOrder(LongSupplier change) {
+        return journal == null ? change.getAsLong() : journal.logInOrder(change);
+    }
+
+    // Registers a lock-free operation so exclusive sections wait for it. Must be paired with leaveLockFree for the
+    // same key once the operation's journal record has been written.
+    private void enterLockFree(int key) {
+        int counter = stripeIndex(key) * COUNTER_PADDING;
+        inFlight.incrementAndGet(counter);
+        while (exclusive) {
+            // Step aside until the exclusive section releases the store lock
+            inFlight.decrementAndGet(counter);
+            storeLock.readLock().lock();
+            storeLock.readLock().unlock();
+            inFlight.incrementAndGet(counter);
+        }
+    }
+
+    private void leaveLockFree(int key) {
+        inFlight.decrementAndGet(stripeIndex(key) * COUNTER_PADDING);
+    }
+
+    // Adds a signed amount to a balance with a compare-and-set loop, as long as the result stays at or above
+    // the given floor. Returns the new balance or a rejection.
+    private long addToBalance(int key, long amount, long floor) {
+        while (true) {
+            long balance = store.getBalance(key);
+            if (balance < 0) return ACCOUNT_NOT_FOUND;
+            long newBalance = balance + amount;
+            if (newBalance < floor) return INSUFFICIENT_FUNDS;
+            if (store.compareAndSetBalance(key, balance, newBalance)) {
+                aggregates.onChange(key, balance, newBalance);
+                return newBalance;
+            }
+        }
+    }
+
+    // Takes an operation from the account's velocity limits, if any. Called under the account's stripe once
+    // every other check has passed, so a rejected operation never uses up the limits.
+    private boolean withinLimits(int key, long amount) {
+        VelocityLimits limits = this.limits;
+        return limits == null || limits.tryAcquire(key, amount);
+    }
+
+    // Takes a lock-free operation from the account's velocity limits, if any, before its balance is updated, and
+    // returns 0 or a rejection. The account is checked first so that a key that was never issued cannot make
+    // the limits add a record for it; one deleted after the check fails its update and gives the limits back.
+    private long acquireLockFree(VelocityLimits limits, int key, long amount) {
+        if (limits == null) return 0;
+        if (!store.contains(key)) return ACCOUNT_NOT_FOUND;
+        return limits.tryAcquire(key, amount) ? 0 : VELOCITY_LIMITED;
+    }
+
+    private ReentrantLock stripe(int key) {
+        return stripes[stripeIndex(key)];
+    }
+
+    private static int stripeIndex(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
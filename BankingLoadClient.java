@@ -0,0 +1,132 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Load generator for BankingServer. Connects the given number of concurrent sessions, each on its own
+// virtual thread, opens one account per session and then sends a mix of deposits, withdrawals and balance
+// checks, reporting throughput and p50/p99 request latency. Requests answered with ERR are counted apart and
+// left out of the throughput and latency, so a server that refuses everything does not look fast.
+// Run with: java BankingLoadClient [host] [port] [sessions] [requests per session]
+public class BankingLoadClient {
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+        int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        long[][] latencies = new long[sessions][];
+        AtomicInteger failures = new AtomicInteger();
+        AtomicLong errors = new AtomicLong();
+        AtomicReference<String> firstError = new AtomicReference<>();
+        CountDownLatch connected = new CountDownLatch(sessions);
+        CountDownLatch start = new CountDownLatch(1);
+
+        long began;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < sessions; i++) {
+                int session = i;
+                executor.submit(() -> {
+                    try {
+                        latencies[session] = runSession(host, port, requests, session, connected, start, errors,
+                                firstError);
+                    } catch (IOException | UncheckedIOException e) {
+                        failures.incrementAndGet();
+                    }
+                });
+            }
+
+            // Release every session at once so they are all active at the same time
+            connected.await();
+            began = System.nanoTime();
+            start.countDown();
+        }
+        long elapsed = System.nanoTime() - began;
+
+        long[] all = Arrays.stream(latencies).filter(l -> l != null).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("sessions %d, failed %d, requests %d, errors %d%n", sessions, failures.get(), all.length,
+                errors.get());
+        if (firstError.get() != null) System.out.println("first error: " + firstError.get());
+        if (all.length == 0) return;
+        System.out.printf("throughput %.0f req/s%n", all.length * 1e9 / elapsed);
+        System.out.printf("latency p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                all[all.length / 2] / 1e6, all[(int) (all.length * 0.99)] / 1e6, all[all.length - 1] / 1e6);
+    }
+
+    // Returns the latencies of the requests answered with OK; the rest are added to errors.
+    private static long[] runSession(String host, int port, int requests, int session, CountDownLatch connected,
+                                     CountDownLatch start, AtomicLong errors, AtomicReference<String> firstError)
+            throws IOException {
+        boolean ready = false;
+        try (Socket socket = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setTcpNoDelay(true);
+            String opened = call(in, out, "OPEN_ACCOUNT 10000 Load Tester");
+            if (!opened.startsWith("OK ")) throw new IOException("Unable to open an account: " + opened);
+            String accountNumber = opened.substring(3);
+
+            ready = true;
+            connected.countDown();
+            start.await();
+
+            SplittableRandom random = new SplittableRandom(session);
+            long[] latencies = new long[requests];
+            int succeeded = 0;
+            for (int i = 0; i < requests; i++) {
+                String request;
+                switch (random.nextInt(3)) {
+                    case 0:
+                        request = "DEPOSIT " + accountNumber + " 500";
+                        break;
+                    case 1:
+                        request = "WITHDRAW " + accountNumber + " 100";
+                        break;
+                    default:
+                        request = "CHECK_BALANCE " + accountNumber;
+                }
+                long sent = System.nanoTime();
+                String response = call(in, out, request);
+                long latency = System.nanoTime() - sent;
+                if (response.startsWith("OK")) {
+                    latencies[succeeded++] = latency;
+                } else {
+                    errors.incrementAndGet();
+                    firstError.compareAndSet(null, request + " -> " + response);
+                }
+            }
+            out.write("QUIT\n");
+            out.flush();
+            return Arrays.copyOf(latencies, succeeded);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } finally {
+            // A session that failed before it was ready must not hold up the others
+            if (!ready) connected.countDown();
+        }
+    }
+
+    private static String call(BufferedReader in, Writer out, String request) throws IOException {
+        out.write(request);
+        out.write('\n');
+        out.flush();
+        String response = in.readLine();
+        if (response == null) throw new IOException("Server closed the connection");
+        return response;
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Latency histograms and success and rejection counters for every engine operation, plus the current
+// account count. Recording an operation only bumps a histogram bucket, plus a counter if it was rejected, and
+// never allocates, so it is always on. Successes are the recorded operations that were not rejected.
+// The figures can be read over JMX as SmartBanking:type=BankingMetrics or dumped to a file periodically.
+public class BankingMetrics implements BankingMetricsMXBean {
+
+    // Operations that are measured, one set of figures each.
+    public enum Operation {
+        OPEN,
+        DEPOSIT,
+        WITHDRAW,
+        TRANSFER,
+        BALANCE,
+        DELETE
+    }
+
+    public static final String OBJECT_NAME = "SmartBanking:type=BankingMetrics";
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    // Rejections counted per operation: one per engine rejection code, from ACCOUNT_NOT_FOUND (-1) down to
+    // TRANSFER_NOT_PREPARED, then one for any other negative result, so no rejection counts as a success.
+    private static final int REJECTION_CODES = (int) -BankingEngine.TRANSFER_NOT_PREPARED;
+    private static final int REJECTION_REASONS = REJECTION_CODES + 1;
+
+    // Figures of one operation as shown over JMX.
+    public static final class OperationStats {
+        private final String operation;
+        private final long successes;
+        private final long accountNotFound;
+        private final long invalidAmount;
+        private final long insufficientFunds;
+        private final long requestIdConflict;
+        private final long accountBusy;
+        private final long velocityLimited;
+        private final long transferNotPrepared;
+        private final long otherRejections;
+        private final long rejections;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p99Micros;
+        private final double p999Micros;
+        private final double maxMicros;
+
+        // Takes the rejections counted for each of REJECTION_REASONS.
+        OperationStats(String operation, long[] rejected, LatencyHistogram latency) {
+            long rejections = 0;
+            for (long count : rejected) rejections += count;
+            this.operation = operation;
+            this.successes = Math.max(0, latency.count() - rejections);
+            this.accountNotFound = rejected[reason(BankingEngine.ACCOUNT_NOT_FOUND)];
+            this.invalidAmount = rejected[reason(BankingEngine.INVALID_AMOUNT)];
+            this.insufficientFunds = rejected[reason(BankingEngine.INSUFFICIENT_FUNDS)];
+            this.requestIdConflict = rejected[reason(BankingEngine.REQUEST_ID_CONFLICT)];
+            this.accountBusy = rejected[reason(BankingEngine.ACCOUNT_BUSY)];
+            this.velocityLimited = rejected[reason(BankingEngine.VELOCITY_LIMITED)];
+            this.transferNotPrepared = rejected[reason(BankingEngine.TRANSFER_NOT_PREPARED)];
+            this.otherRejections = rejected[REJECTION_REASONS - 1];
+            this.rejections = rejections;
+            this.meanMicros = latency.mean() / 1e3;
+            this.p50Micros = latency.percentile(50) / 1e3;
+            this.p99Micros = latency.percentile(99) / 1e3;
+            this.p999Micros = latency.percentile(99.9) / 1e3;
+            this.maxMicros = latency.max() / 1e3;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        public long getAccountNotFound() {
+            return accountNotFound;
+        }
+
+        public long getInvalidAmount() {
+            return invalidAmount;
+        }
+
+        public long getInsufficientFunds() {
+            return insufficientFunds;
+        }
+
+        public long getRequestIdConflict() {
+            return requestIdConflict;
+        }
+
+        public long getAccountBusy() {
+            return accountBusy;
+        }
+
+        public long getVelocityLimited() {
+            return velocityLimited;
+        }
+
+        public long getTransferNotPrepared() {
+            return transferNotPrepared;
+        }
+
+        public long getOtherRejections() {
+            return otherRejections;
+        }
+
+        public long getRejections() {
+            return rejections;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public double getP50Micros() {
+            return p50Micros;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getP999Micros() {
+            return p999Micros;
+        }
+
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+    }
+
+    // Read without the store lock, so it may be a moment out of date.
+    private final IntSupplier accountCount;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder[] rejections = new LongAdder[OPERATIONS.length * REJECTION_REASONS];
+
+    // Totals at the previous dump, to work out operations per second since then.
+    private final long[] dumpedCounts = new long[OPERATIONS.length];
+    private long dumpedAt = System.nanoTime();
+
+    public BankingMetrics(IntSupplier accountCount) {
+        this.accountCount = accountCount;
+        for (int i = 0; i < latencies.length; i++) latencies[i] = new LatencyHistogram();
+        for (int i = 0; i < rejections.length; i++) rejections[i] = new LongAdder();
+    }
+
+    // Records an operation that started at startNanos (from System.nanoTime) and returned the given engine
+    // result: a balance or key when it succeeded, or one of the negative rejections.
+    public void record(Operation operation, long startNanos, long result) {
+        int index = operation.ordinal();
+        latencies[index].record(System.nanoTime() - startNanos);
+        int reason = reason(result);
+        if (reason >= 0) rejections[index * REJECTION_REASONS + reason].increment();
+    }
+
+    // Counter of a rejection among an operation's REJECTION_REASONS, or -1 for a success.
+    private static int reason(long result) {
+        if (result >= 0) return -1;
+        return result >= -REJECTION_CODES ? (int) (-result - 1) : REJECTION_REASONS - 1;
+    }
+
+    @Override
+    public int getAccountCount() {
+        return accountCount.getAsInt();
+    }
+
+    @Override
+    public List<OperationStats> getOperations() {
+        List<OperationStats> stats = new ArrayList<>(OPERATIONS.length);
+        for (Operation operation : OPERATIONS) stats.add(stats(operation));
+        return stats;
+    }
+
+    public OperationStats stats(Operation operation) {
+        int index = operation.ordinal();
+        long[] rejected = new long[REJECTION_REASONS];
+        for (int i = 0; i < REJECTION_REASONS; i++) rejected[i] = rejections[index * REJECTION_REASONS + i].sum();
+        return new OperationStats(operation.name(), rejected, latencies[index]);
+    }
+
+    // Makes the figures readable over JMX. Only one set of metrics can be registered per process.
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to register " + OBJECT_NAME, e);
+        }
+    }
+
+    // Appends the figures to a file every intervalSeconds on a background thread.
+    public void startDump(Path file, long intervalSeconds) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try (PrintStream out = new PrintStream(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND), false, StandardCharsets.UTF_8)) {
+                dump(out);
+            } catch (IOException e) {
+                // Keep the schedule going; the next dump may succeed
+                System.err.println("Unable to write metrics to " + file + ": " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Prints the account count and one line per operation with its rate since the previous dump.
+    public synchronized void dump(PrintStream out) {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - dumpedAt) / 1e9);
+        dumpedAt = now;
+
+        out.printf("%s accounts %d%n", LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS), getAccountCount());
+        for (Operation operation : OPERATIONS) {
+            OperationStats stats = stats(operation);
+            long total = stats.getSuccesses() + stats.getRejections();
+            double rate = (total - dumpedCounts[operation.ordinal()]) / seconds;
+            dumpedCounts[operation.ordinal()] = total;
+            out.printf("  %-9s total %10d ok %10d not found %8d invalid %8d insufficient %8d conflict %8d busy %8d"
+                            + " limited %8d unprepared %8d other %8d %10.1f/s"
+                            + "  p50 %9.1fus p99 %9.1fus p99.9 %9.1fus max %9.1fus%n",
+                    operation, total, stats.getSuccesses(), stats.getAccountNotFound(), stats.getInvalidAmount(),
+                    stats.getInsufficientFunds(), stats.getRequestIdConflict(), stats.getAccountBusy(),
+                    stats.getVelocityLimited(), stats.getTransferNotPrepared(), stats.getOtherRejections(), rate,
+                    stats.getP50Micros(), stats.getP99Micros(), stats.getP999Micros(), stats.getMaxMicros());
+        }
+        out.flush();
+    }
+}
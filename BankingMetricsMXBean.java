@@ -0,0 +1,9 @@
+import java.util.List;
+
+// JMX view of BankingMetrics.
+public interface BankingMetricsMXBean {
+
+    int getAccountCount();
+
+    List<BankingMetrics.OperationStats> getOperations();
+}
@@ -0,0 +1,264 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Serves the banking menu over a line-based TCP protocol, one virtual thread per connection, with every
+// connection sharing the same BankingEngine. Each request is one line and gets one response line:
+//
+//   OPEN_ACCOUNT <initial deposit> <name>      OK <account number>
+//   DEPOSIT <account number> <amount>          OK <new balance>
+//   WITHDRAW <account number> <amount>         OK <new balance>
+//   TRANSFER <from> <to> <amount>              OK <new balance of the sender>
+//   CHECK_BALANCE <account number>             OK <balance> <name>
+//   DELETE_ACCOUNT <account number>            OK <final balance>
+//   FIND_ACCOUNTS <start of a name>            OK <account number>:<name>,... (at most 20, in name order)
+//   REPORT                                     OK <accounts> <total assets> <bucket floor>:<accounts>,...
+//   TOP_ACCOUNTS [n]                           OK <account number>:<balance>,... (10 unless given, at most 100)
+//   QUIT                                       closes the connection
+//
+// Amounts use the same format as the console prompts. A rejected request gets ERR <message>.
+// OPEN_ACCOUNT, DEPOSIT, WITHDRAW and TRANSFER may be prefixed with ID <request id>; a retry with the same ID
+// gets the first response again instead of being applied twice.
+//
+// A server holding one shard also takes the halves of transfers between shards, sent by ShardedBank, each
+// carrying the ID of the transfer it belongs to:
+//
+//   PREPARE_TRANSFER_IN <id> <to> <from> <amount>    OK <balance>, and <to> cannot be deleted until one of:
+//   ABORT_TRANSFER_IN <id>                           OK 0.00
+//   TRANSFER_IN <id> <to> <from> <amount>            OK <new balance of the receiver>, if prepared under <id>
+//   TRANSFER_OUT <id> <from> <to> <amount>           OK <new balance of the sender>, debiting the amount and fee
+//   REFUND_TRANSFER_OUT <id> <from> <to> <amount>    OK <new balance of the sender>, giving back a TRANSFER_OUT
+//
+// A prepare that is neither credited nor aborted lapses after a minute. TRANSFER_IN answers
+// "No matching transfer was prepared" only once the shard has journaled the transfer as refused, and a
+// refund is only given for a debit made under the same ID in the last ten minutes. Each half is journaled
+// with its ID before it is answered, so a resent half gets the same answer after the shard restarts.
+//
+// These move money without the checks a client gets, so they are only taken from other parts of the bank:
+// connections that first send AUTH <secret> with the secret the shard was started with, wherever they come
+// from, as any process on this host could connect too. Everyone else, and every connection to a server that
+// is not a shard, is told they are unknown.
+public class BankingServer {
+
+    private static final int ACCEPT_BACKLOG = 16_384;
+    private static final int SEARCH_RESULTS = 20;
+    private static final int TOP_ACCOUNTS = 10;
+
+    private final BankingEngine engine;
+    private final int port;
+    private final boolean shard;
+    private final byte[] peerSecret;
+
+    public BankingServer(BankingEngine engine, int port) {
+        this(engine, port, false, null);
+    }
+
+    // A server for one shard of several also takes transfer halves from the other shards' clients that
+    // authenticate with the secret, if it is not null.
+    public BankingServer(BankingEngine engine, int port, boolean shard, String peerSecret) {
+        this.engine = engine;
+        this.port = port;
+        this.shard = shard;
+        this.peerSecret = peerSecret == null ? null : peerSecret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Accepts connections until the process exits.
+    public void serve() {
+        try (ServerSocket server = new ServerSocket();
+             ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor()) {
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            System.out.println("Smart Banking server listening on port " + server.getLocalPort());
+            while (true) {
+                Socket socket = server.accept();
+                sessions.submit(() -> runSession(socket));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to run the banking server on port " + port, e);
+        }
+    }
+
+    private void runSession(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setTcpNoDelay(true);
+            boolean peer = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.strip();
+                if (line.equalsIgnoreCase("QUIT")) break;
+                if (line.isEmpty()) continue;
+                if (line.regionMatches(true, 0, "AUTH ", 0, 5)) {
+                    peer |= authenticates(line.substring(5).strip());
+                    out.write(peer ? "OK 0.00" : "ERR Not authenticated");
+                    out.write('\n');
+                    out.flush();
+                    continue;
+                }
+                out.write(handle(line, peer));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away; nothing to clean up beyond closing the socket
+        }
+    }
+
+    // Checks a secret sent with AUTH against the one the shard was started with, taking the same time however
+    // much of it matches.
+    private boolean authenticates(String secret) {
+        return shard && peerSecret != null && MessageDigest.isEqual(peerSecret, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Runs one request line and returns the response line. Transfer halves are only run for a peer.
+    String handle(String line, boolean peer) {
+        String requestId = null;
+        if (line.regionMatches(true, 0, "ID ", 0, 3)) {
+            String[] prefixed = line.split("\\s+", 3);
+            if (prefixed.length < 3) return "ERR Usage: ID <request id> <request>";
+            requestId = prefixed[1];
+            line = prefixed[2];
+        }
+        String[] parts = line.split("\\s+", 3);
+        String command = parts[0].toUpperCase();
+        switch (command) {
+            case "OPEN_ACCOUNT": {
+                if (parts.length < 3) return "ERR Usage: OPEN_ACCOUNT <initial deposit> <name>";
+                long initialDeposit = Money.parseCents(parts[1]);
+                if (initialDeposit < 0) return "ERR Invalid input. Please enter a valid amount";
+                if (!BankingEngine.isValidName(parts[2])) return "ERR Invalid Name";
+                if (initialDeposit < BankingEngine.MIN_INITIAL_DEPOSIT) return "ERR Initial deposit must be at least 5000";
+                return result(engine.openAccount(requestId, parts[2].strip(), initialDeposit), true);
+            }
+            case "DEPOSIT":
+            case "WITHDRAW": {
+                if (parts.length < 3) return "ERR Usage: " + command + " <account number> <amount>";
+                int key = AccountStore.parseKey(parts[1].toUpperCase());
+                long amount = Money.parseCents(parts[2]);
+                if (key < 0) return "ERR Invalid account number format. Please use SDB-SXXXXX format.";
+                if (amount < 0) return "ERR Invalid input. Please enter a valid amount";
+                if (command.equals("DEPOSIT")) {
+                    if (amount < BankingEngine.MIN_DEPOSIT) return "ERR Deposit amount must be at least 500";
+                    return result(engine.deposit(requestId, key, amount), false);
+                }
+                if (amount < BankingEngine.MIN_WITHDRAW) return "ERR Withdraw amount must be at least 100";
+                return result(engine.withdraw(requestId, key, amount), false);
+            }
+            case "TRANSFER": {
+                String[] args = line.split("\\s+");
+                if (args.length != 4) return "ERR Usage: TRANSFER <from> <to> <amount>";
+                int fromKey = AccountStore.parseKey(args[1].toUpperCase());
+                int toKey = AccountStore.parseKey(args[2].toUpperCase());
+                long amount = Money.parseCents(args[3]);
+                if (fromKey < 0 || toKey < 0) return "ERR Invalid account number format. Please use SDB-SXXXXX format.";
+                if (amount < 0) return "ERR Invalid input. Please enter a valid amount";
+                if (amount < BankingEngine.MIN_TRANSFER) return "ERR Transfer amount must be at least 100";
+                return result(engine.transfer(requestId, fromKey, toKey, amount), false);
+            }
+            case "PREPARE_TRANSFER_IN":
+            case "TRANSFER_OUT":
+            case "TRANSFER_IN":
+            case "REFUND_TRANSFER_OUT": {
+                if (!peer) return "ERR Unknown command " + parts[0];
+                String[] args = line.split("\\s+");
+                if (args.length != 5) return "ERR Usage: " + command + " <transfer id> <account number> <other account number> <amount>";
+                if (!TransferHalf.isValidId(args[1])) return "ERR Invalid transfer ID";
+                int key = AccountStore.parseKey(args[2].toUpperCase());
+                int otherKey = AccountStore.parseKey(args[3].toUpperCase());
+                long amount = Money.parseCents(args[4]);
+                if (key < 0 || otherKey < 0) return "ERR Invalid account number format. Please use SDB-SXXXXX format.";
+                if (amount < 0) return "ERR Invalid input. Please enter a valid amount";
+                if (command.equals("PREPARE_TRANSFER_IN")) return result(engine.prepareTransferIn(args[1], key, otherKey, amount), false);
+                if (command.equals("TRANSFER_IN")) return result(engine.transferIn(args[1], key, otherKey, amount), false);
+                if (command.equals("REFUND_TRANSFER_OUT")) return result(engine.refundTransferOut(args[1], key, otherKey, amount), false);
+                if (amount < BankingEngine.MIN_TRANSFER) return "ERR Transfer amount must be at least 100";
+                return result(engine.transferOut(args[1], key, otherKey, amount), false);
+            }
+            case "ABORT_TRANSFER_IN": {
+                if (!peer) return "ERR Unknown command " + parts[0];
+                if (parts.length != 2) return "ERR Usage: ABORT_TRANSFER_IN <transfer id>";
+                if (!TransferHalf.isValidId(parts[1])) return "ERR Invalid transfer ID";
+                engine.abortTransferIn(parts[1]);
+                return result(0, false);
+            }
+            case "CHECK_BALANCE": {
+                if (parts.length != 2) return "ERR Usage: CHECK_BALANCE <account number>";
+                int key = AccountStore.parseKey(parts[1].toUpperCase());
+                if (key < 0) return "ERR Invalid account number format. Please use SDB-SXXXXX format.";
+                String name = engine.name(key);
+                long balance = engine.balance(key);
+                if (name == null || balance < 0) return "ERR Account not found";
+                return "OK " + Money.format(balance) + " " + name;
+            }
+            case "DELETE_ACCOUNT": {
+                if (parts.length != 2) return "ERR Usage: DELETE_ACCOUNT <account number>";
+                int key = AccountStore.parseKey(parts[1].toUpperCase());
+                if (key < 0) return "ERR Invalid account number format. Please use SDB-SXXXXX format.";
+                return result(engine.deleteAccount(key), false);
+            }
+            case "FIND_ACCOUNTS": {
+                String prefix = line.substring(parts[0].length()).strip();
+                if (!BankingEngine.isValidName(prefix)) return "ERR Invalid Name";
+                StringBuilder response = new StringBuilder("OK");
+                for (int key : engine.findByNamePrefix(prefix, SEARCH_RESULTS)) {
+                    String name = engine.name(key);
+                    if (name == null) continue; // Deleted since the search
+                    response.append(response.length() == 2 ? ' ' : ',')
+                            .append(AccountStore.formatAccountNumber(key)).append(':').append(name);
+                }
+                return response.toString();
+            }
+            case "REPORT": {
+                BalanceAggregates.Summary summary = engine.summary();
+                StringBuilder response = new StringBuilder("OK ").append(summary.accounts).append(' ')
+                        .append(Money.format(summary.totalAssets));
+                char separator = ' ';
+                for (int i = 0; i < BalanceAggregates.BUCKETS; i++) {
+                    if (summary.histogram[i] == 0) continue;
+                    response.append(separator).append(Money.format(BalanceAggregates.bucketFloor(i))).append(':')
+                            .append(summary.histogram[i]);
+                    separator = ',';
+                }
+                return response.toString();
+            }
+            case "TOP_ACCOUNTS": {
+                int n = TOP_ACCOUNTS;
+                if (parts.length > 1) {
+                    try {
+                        n = Integer.parseInt(parts[1]);
+                    } catch (NumberFormatException e) {
+                        n = -1;
+                    }
+                }
+                if (n < 1 || n > BalanceAggregates.TOP_CAPACITY) return "ERR Usage: TOP_ACCOUNTS [1-" + BalanceAggregates.TOP_CAPACITY + "]";
+                StringBuilder response = new StringBuilder("OK");
+                for (int key : engine.topAccounts(n)) {
+                    long balance = engine.balance(key);
+                    if (balance < 0) continue; // Deleted since
+                    response.append(response.length() == 2 ? ' ' : ',')
+                            .append(AccountStore.formatAccountNumber(key)).append(':').append(Money.format(balance));
+                }
+                return response.toString();
+            }
+            default:
+                return "ERR Unknown command " + parts[0];
+        }
+    }
+
+    private static String result(long result, boolean accountKey) {
+        if (result < 0) return "ERR " + BankingEngine.rejectionMessage(result);
+        return "OK " + (accountKey ? AccountStore.formatAccountNumber((int) result) : Money.format(result));
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// Applies a transaction file, such as an end-of-day settlement file, to the engine without the console.
+// Rows go through the same checks as the deposit, withdraw and transfer prompts, and every rejected row is
+// reported with its reason. The file is streamed in fixed-size chunks, so memory use does not grow with it.
+//
+// Two file formats are accepted:
+//   CSV     one row per line, blank lines and lines starting with # are skipped
+//             DEPOSIT,<account number>,<amount>
+//             WITHDRAW,<account number>,<amount>
+//             TRANSFER,<from account number>,<to account number>,<amount>
+//   binary  the magic "SBTX" followed by 17 byte records: type (2 deposit, 3 withdraw, 4 transfer),
+//           account key, other account key (0 unless a transfer), amount in cents
+//
+// Each chunk is applied by a TransferScheduler, which runs rows that share no account in parallel while every
+// account still sees its rows in file order, so the result is the same as applying the file one row at a time.
+public class BatchProcessor {
+
+    public static final byte DEPOSIT = 2;
+    public static final byte WITHDRAW = 3;
+    public static final byte TRANSFER = 4;
+    public static final int BINARY_MAGIC = 0x53425458; // "SBTX"
+
+    private static final byte INVALID = 0; // Row that failed its checks before reaching the engine
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    // Totals for one processed file.
+    public static final class Summary {
+        public final long rows;
+        public final long applied;
+        public final long rejected;
+        public final long elapsedNanos;
+
+        Summary(long rows, long applied, long rejected, long elapsedNanos) {
+            this.rows = rows;
+            this.applied = applied;
+            this.rejected = rejected;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double rowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows * 1e9 / elapsedNanos;
+        }
+    }
+
+    private final BankingEngine engine;
+    private final int threads;
+    private final PrintStream rejects;
+
+    // Columns of the current chunk, reused for every chunk.
+    private final byte[] types = new byte[CHUNK_SIZE];
+    private final int[] fromKeys = new int[CHUNK_SIZE];
+    private final int[] toKeys = new int[CHUNK_SIZE];
+    private final long[] amounts = new long[CHUNK_SIZE];
+    private final long[] rowNumbers = new long[CHUNK_SIZE];
+    private final String[] reasons = new String[CHUNK_SIZE];
+    private final long[] results = new long[CHUNK_SIZE];
+    private int count;
+
+    private long rows;
+    private long applied;
+    private long rejected;
+
+    // Reports each rejected row to the given stream and applies rows on up to the given number of threads.
+    public BatchProcessor(BankingEngine engine, int threads, PrintStream rejects) {
+        this.engine = engine;
+        this.threads = Math.max(1, threads);
+        this.rejects = rejects;
+    }
+
+    // Applies every row of a CSV or binary transaction file and returns the totals.
+    public Summary process(Path file) {
+        rows = 0;
+        applied = 0;
+        rejected = 0;
+        long start = System.nanoTime();
+
+        // Each chunk is synced once and reported only after its changes are on disk
+        engine.deferJournalSync(true);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+             ForkJoinPool pool = new ForkJoinPool(threads)) {
+            TransferScheduler scheduler = new TransferScheduler(engine, pool, CHUNK_SIZE);
+            in.mark(4);
+            DataInputStream data = new DataInputStream(in);
+            boolean binary;
+            try {
+                binary = data.readInt() == BINARY_MAGIC;
+            } catch (EOFException e) {
+                binary = false;
+            }
+            if (binary) {
+                processBinary(data, scheduler);
+            } else {
+                in.reset();
+                processCsv(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), scheduler);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read transaction file " + file, e);
+        } finally {
+            engine.deferJournalSync(false);
+        }
+        return new Summary(rows, applied, rejected, System.nanoTime() - start);
+    }
+
+    private void processCsv(BufferedReader reader, TransferScheduler scheduler) throws IOException {
+        String line;
+        long lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            parseCsvRow(line, lineNumber);
+            if (count == CHUNK_SIZE) applyChunk(scheduler);
+        }
+        applyChunk(scheduler);
+    }
+
+    private void processBinary(DataInputStream in, TransferScheduler scheduler) throws IOException {
+        long recordNumber = 0;
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                break;
+            }
+            recordNumber++;
+            int row = count++;
+            rowNumbers[row] = recordNumber;
+            try {
+                fromKeys[row] = in.readInt();
+                toKeys[row] = in.readInt();
+                amounts[row] = in.readLong();
+            } catch (EOFException e) {
+                reject(row, "Truncated record");
+                break;
+            }
+            types[row] = type;
+            if (type != DEPOSIT && type != WITHDRAW && type != TRANSFER) reject(row, "Unknown transaction type " + type);
+            else if (fromKeys[row] <= 0 || (type == TRANSFER && toKeys[row] <= 0)) reject(row, "Invalid account number");
+            else checkAmount(row);
+            if (count == CHUNK_SIZE) applyChunk(scheduler);
+        }
+        applyChunk(scheduler);
+    }
+
+    private void parseCsvRow(String line, long lineNumber) {
+        int row = count++;
+        rowNumbers[row] = lineNumber;
+        String[] fields = line.split(",");
+        String type = fields[0].strip().toUpperCase();
+
+        int amountField;
+        switch (type) {
+            case "DEPOSIT":
+                types[row] = DEPOSIT;
+                amountField = 2;
+                break;
+            case "WITHDRAW":
+                types[row] = WITHDRAW;
+                amountField = 2;
+                break;
+            case "TRANSFER":
+                types[row] = TRANSFER;
+                amountField = 3;
+                break;
+            default:
+                reject(row, "Unknown transaction type " + fields[0].strip());
+                return;
+        }
+        if (fields.length != amountField + 1) {
+            reject(row, "Expected " + (amountField + 1) + " fields but found " + fields.length);
+            return;
+        }
+
+        fromKeys[row] = AccountStore.parseKey(fields[1].strip().toUpperCase());
+        toKeys[row] = types[row] == TRANSFER ? AccountStore.parseKey(fields[2].strip().toUpperCase()) : 0;
+        amounts[row] = Money.parseCents(fields[amountField]);
+        if (fromKeys[row] < 0 || toKeys[row] < 0) {
+            reject(row, "Invalid account number format. Please use SDB-SXXXXX format.");
+            return;
+        }
+        checkAmount(row);
+    }
+
+    // Applies the minimum amount rules of the console prompts; the engine checks the balances.
+    private void checkAmount(int row) {
+        long amount = amounts[row];
+        if (amount < 0) reject(row, "Invalid input. Please enter a valid amount");
+        else if (types[row] == DEPOSIT && amount < BankingEngine.MIN_DEPOSIT) reject(row, "Deposit amount must be at least 500");
+        else if (types[row] == WITHDRAW && amount < BankingEngine.MIN_WITHDRAW) reject(row, "Withdraw amount must be at least 100");
+        else if (types[row] == TRANSFER && amount < BankingEngine.MIN_TRANSFER) reject(row, "Transfer amount must be at least 100");
+    }
+
+    // Marks a row as rejected; a 0 account key makes the scheduler skip it.
+    private void reject(int row, String reason) {
+        types[row] = INVALID;
+        fromKeys[row] = 0;
+        reasons[row] = reason;
+    }
+
+    // Applies the rows of the current chunk, then reports them once they are durable.
+    private void applyChunk(TransferScheduler scheduler) {
+        if (count == 0) return;
+        for (int row = 0; row < count; row++) {
+            if (types[row] != TRANSFER) toKeys[row] = 0;
+        }
+        scheduler.apply(fromKeys, toKeys, count, this::applyRow, results);
+        engine.syncJournal();
+
+        for (int row = 0; row < count; row++) {
+            String reason = types[row] == INVALID ? reasons[row] : results[row] < 0 ? BankingEngine.rejectionMessage(results[row]) : null;
+            if (reason == null) {
+                applied++;
+            } else {
+                rejected++;
+                rejects.println("row " + rowNumbers[row] + ": " + reason);
+            }
+        }
+        rows += count;
+        Arrays.fill(reasons, 0, count, null);
+        count = 0;
+    }
+
+    private long applyRow(int row) {
+        switch (types[row]) {
+            case DEPOSIT:
+                return engine.deposit(fromKeys[row], amounts[row]);
+            case WITHDRAW:
+                return engine.withdraw(fromKeys[row], amounts[row]);
+            default:
+                return engine.transfer(fromKeys[row], toKeys[row], amounts[row]);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+// Line-based console input read straight from the bytes of the input stream. Each line is kept in a reusable
+// byte buffer with surrounding whitespace stripped, and is handed to the parsers as a CharSequence view over
+// those bytes, so reading amounts, account numbers, menu choices and Y/n answers creates no Strings. Only
+// names and dates are decoded into a String.
+//
+// Every line is also checked for the Z (exit) and D (dashboard) shortcuts, so callers handle them in one place.
+// Lines may end with \n or \r\n, and input can come as well from a replay file as from a terminal. A line
+// longer than MAX_LINE_LENGTH bytes is skipped up to its end without being kept, so a pasted or piped line
+// with no newline cannot fill the heap, and is reported as too long.
+public final class ConsoleInput {
+
+    // Shortcuts a line can be, as returned by shortcut().
+    public static final int NONE = 0;
+    public static final int EXIT = 1;
+    public static final int DASHBOARD = 2;
+
+    // Longest line kept, in bytes; names, the longest answers, take at most 400.
+    public static final int MAX_LINE_LENGTH = 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final Charset charset;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    // The current line; start and end bound it without surrounding whitespace.
+    private byte[] line = new byte[256];
+    private int start;
+    private int end;
+    private boolean tooLong;
+    private long lines;
+
+    private final CharSequence view = new LineView(false);
+    private final CharSequence upperCaseView = new LineView(true);
+
+    public ConsoleInput(InputStream in, Charset charset) {
+        this.in = in;
+        this.charset = charset;
+    }
+
+    // Reads the next line, returning false at the end of the input. A line that is too long reads as empty.
+    public boolean readLine() {
+        int length = 0;
+        boolean any = false;
+        tooLong = false;
+        while (true) {
+            if (position == limit && !fill()) {
+                if (!any) return false;
+                break;
+            }
+            any = true;
+            byte b = buffer[position++];
+            if (b == '\n') break;
+            if (length == MAX_LINE_LENGTH) {
+                tooLong = true;
+                continue;
+            }
+            if (length == line.length) line = Arrays.copyOf(line, length * 2);
+            line[length++] = b;
+        }
+        if (tooLong) length = 0;
+        if (length > 0 && line[length - 1] == '\r') length--;
+        start = 0;
+        end = length;
+        while (start < end && isWhitespace(line[start])) start++;
+        while (end > start && isWhitespace(line[end - 1])) end--;
+        lines++;
+        return true;
+    }
+
+    // Whether the current line was longer than MAX_LINE_LENGTH and so was not kept.
+    public boolean isTooLong() {
+        return tooLong;
+    }
+
+    // Lines read so far.
+    public long lines() {
+        return lines;
+    }
+
+    // Which shortcut the current line is, if any: Z or D on its own, in either case.
+    public int shortcut() {
+        if (end - start != 1) return NONE;
+        byte b = line[start];
+        if (b == 'Z' || b == 'z') return EXIT;
+        if (b == 'D' || b == 'd') return DASHBOARD;
+        return NONE;
+    }
+
+    public boolean isEmpty() {
+        return start == end;
+    }
+
+    // Whether the current line is a Y answer, in either case.
+    public boolean isYes() {
+        return end - start == 1 && (line[start] == 'Y' || line[start] == 'y');
+    }
+
+    // The current line as characters, valid until the next line is read.
+    public CharSequence line() {
+        return view;
+    }
+
+    // The current line as a non-negative int, or -1 if it is not one.
+    public int parseInt() {
+        if (start == end || end - start > 9) return -1;
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            if (line[i] < '0' || line[i] > '9') return -1;
+            value = value * 10 + (line[i] - '0');
+        }
+        return value;
+    }
+
+    // The current line as an amount in cents, or -1 if it is not a valid amount.
+    public long parseCents() {
+        return Money.parseCents(view);
+    }
+
+    // The current line as an account key, ignoring case, or -1 if it is not a valid account number.
+    public int parseAccountKey() {
+        return AccountStore.parseKey(upperCaseView);
+    }
+
+    // The current line decoded into a String.
+    public String text() {
+        return new String(line, start, end - start, charset);
+    }
+
+    private boolean fill() {
+        try {
+            int read = in.read(buffer, 0, buffer.length);
+            if (read <= 0) return false;
+            position = 0;
+            limit = read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    // The current line's bytes as characters; bytes outside ASCII come out as characters no parser accepts.
+    private final class LineView implements CharSequence {
+        private final boolean upperCase;
+
+        LineView(boolean upperCase) {
+            this.upperCase = upperCase;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            char c = (char) (line[start + index] & 0xFF);
+            return upperCase && c >= 'a' && c <= 'z' ? (char) (c - 'a' + 'A') : c;
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().subSequence(from, to);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(length());
+            for (int i = 0; i < length(); i++) text.append(charAt(i));
+            return text.toString();
+        }
+    }
+}
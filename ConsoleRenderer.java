@@ -0,0 +1,212 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Console output for the menu screens. Everything printed is collected in a buffer and written to the
+// terminal with a single write when the console next waits for input, instead of one blocking write per
+// line. The clear-screen sequence and header of each screen title are built once and reused on every redraw.
+//
+// In async mode the buffered output is handed to a writer thread through a queue, so the console thread
+// goes back to processing transactions while a slow terminal or SSH link catches up. The queue holds up to
+// QUEUE_CAPACITY pending writes; once it is full the console waits for the terminal rather than dropping output.
+public final class ConsoleRenderer {
+
+    public static final String CLEAR = "\033[H\033[2J";
+    public static final String BLUE_BOLD = "\033[34;1m";
+    public static final String RED_BOLD = "\033[31;1m";
+    public static final String GREEN_BOLD = "\033[32;1m";
+    public static final String RESET = "\033[0m";
+
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+    private static final long CLOSE_TIMEOUT_MILLIS = 2_000;
+
+    // Clear-screen sequence and header of every title drawn so far.
+    private static final Map<String, String> FRAMES = new ConcurrentHashMap<>();
+
+    private final OutputStream out;
+    private final Charset charset;
+    private final StringBuilder buffer = new StringBuilder(4096);
+    private final Formatter formatter = new Formatter(buffer);
+
+    // Pending writes and the thread that makes them, in async mode only.
+    private final BlockingQueue<byte[]> queue;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public ConsoleRenderer(OutputStream out, Charset charset, boolean async) {
+        this.out = out;
+        this.charset = charset;
+        if (async) {
+            queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            writer = new Thread(this::writeLoop, "console-writer");
+            writer.setDaemon(true);
+            writer.start();
+            // Output still queued when the app stops on an error is written out before the JVM exits
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close, "console-drain"));
+        } else {
+            queue = null;
+            writer = null;
+        }
+    }
+
+    // Renders to the process's standard output, bypassing System.out so its line flushing does not apply.
+    public static ConsoleRenderer forStandardOutput(boolean async) {
+        return new ConsoleRenderer(new FileOutputStream(FileDescriptor.out), System.out.charset(), async);
+    }
+
+    // Header drawn at the top of a screen, without the clear-screen sequence.
+    public static String header(String title) {
+        String line = "-".repeat(50);
+        return line + "\n" + " ".repeat((40 - title.length() + 7) / 2) + BLUE_BOLD + title + RESET + "\n" + line + "\n";
+    }
+
+    // Starts a new screen: clears the terminal and draws the header of the title. Screens that were drawn
+    // without waiting for input, as when input comes from a file, are written out once they add up to
+    // FLUSH_THRESHOLD characters.
+    public void frame(String title) {
+        if (buffer.length() >= FLUSH_THRESHOLD) flush();
+        buffer.append(FRAMES.computeIfAbsent(title, t -> CLEAR + header(t)));
+    }
+
+    public void clear() {
+        buffer.append(CLEAR);
+    }
+
+    public void print(String text) {
+        buffer.append(text);
+    }
+
+    public void println(String text) {
+        buffer.append(text).append('\n');
+    }
+
+    public void println() {
+        buffer.append('\n');
+    }
+
+    public void printf(String format, Object... args) {
+        formatter.format(format, args);
+    }
+
+    public void error(String message) {
+        buffer.append(RED_BOLD).append(message).append(RESET).append("\n\n");
+    }
+
+    public void success(String message) {
+        buffer.append(GREEN_BOLD).append(message).append(RESET).append("\n\n");
+    }
+
+    // Writes everything printed since the last flush in one go, or queues it in async mode.
+    public void flush() {
+        if (buffer.length() == 0) return;
+        byte[] bytes = buffer.toString().getBytes(charset);
+        buffer.setLength(0);
+        if (queue == null) {
+            write(bytes);
+            return;
+        }
+        try {
+            queue.put(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing console output", e);
+        }
+    }
+
+    // Wraps the console input so that pending output is flushed whenever the console waits for more input,
+    // which keeps every prompt on screen before the user has to answer it.
+    public InputStream flushingInput(InputStream in) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                flush();
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                flush();
+                return in.read(bytes, offset, length);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return in.available();
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    // Flushes what is left and, in async mode, waits a short while for the writer to catch up.
+    public synchronized void close() {
+        if (closed) return;
+        flush();
+        closed = true;
+        if (writer == null) return;
+        writer.interrupt();
+        try {
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writes queued output until closed. Output that queued up while the terminal was busy goes out in one
+    // write, so a backlog clears at the terminal's byte rate rather than one round trip per screen.
+    private void writeLoop() {
+        List<byte[]> backlog = new ArrayList<>();
+        while (true) {
+            byte[] bytes;
+            try {
+                bytes = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                bytes = null; // Closing; write whatever is left below
+            }
+            if (bytes == null && !closed) continue;
+            if (bytes != null) backlog.add(bytes);
+            queue.drainTo(backlog);
+            if (!backlog.isEmpty()) write(join(backlog));
+            backlog.clear();
+            if (bytes == null) return;
+        }
+    }
+
+    private static byte[] join(List<byte[]> parts) {
+        if (parts.size() == 1) return parts.get(0);
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        byte[] joined = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, joined, offset, part.length);
+            offset += part.length;
+        }
+        return joined;
+    }
+
+    private void write(byte[] bytes) {
+        try {
+            out.write(bytes);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.util.function.LongSupplier;
+
+// Remembers the result of each request by its client request ID for a time window, so a retried request
+// gets the original result back instead of being applied twice, and a retry that arrives while the first
+// attempt is still running waits for its result.
+//
+// IDs are kept as 64-bit hashes, so remembering a request allocates nothing and holds on to no objects; two
+// requests are only taken for one another if their IDs share a 64-bit hash and they also ask for the same
+// thing. The hash picks one of a fixed set of segments, each a ring of entries in arrival order with an
+// open-addressing index over it. Entries leave from the head of the ring once they are older than the window,
+// or to make room when the ring is full, so memory stays bounded at the capacity given. An entry whose request
+// is still running never leaves, as a retry waiting on it would run the request again; a request that finds
+// its segment full behind one is turned away with FULL instead, and the client can retry it.
+//
+// Results are kept in memory only; retries after a restart are not recognised.
+public class IdempotencyCache {
+
+    // Returned instead of a result when a request ID comes back with a different request.
+    public static final long CONFLICT = Long.MIN_VALUE;
+
+    // Returned instead of running a request when its segment is full and its oldest request is still running.
+    public static final long FULL = Long.MIN_VALUE + 1;
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+    private final int segmentCapacity;
+    private final long windowMillis;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    // Keeps up to capacity request results, each for windowMillis.
+    public IdempotencyCache(int capacity, long windowMillis) {
+        this.segmentCapacity = Integer.highestOneBit(Math.max(1, capacity / SEGMENTS - 1)) << 1;
+        this.windowMillis = windowMillis;
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment();
+    }
+
+    // Runs the operation unless a request with the same ID was run within the window, in which case its
+    // result is returned instead, or CONFLICT if its fingerprint differs. The fingerprint identifies what
+    // the request asked for, so a reused ID cannot return the result of a different request. Returns FULL
+    // without running the operation when there is no room to remember it.
+    public long execute(String requestId, long fingerprint, LongSupplier operation) {
+        long idHash = hash(requestId);
+        Segment segment = segments[(int) (idHash >>> (64 - SEGMENT_BITS))]; // The low bits pick the index slot
+        long ticket;
+        synchronized (segment) {
+            long now = System.currentTimeMillis();
+            int found;
+            while ((found = segment.find(idHash, now)) >= 0 && !segment.isDone(found)) {
+                if (segment.fingerprint(found) != fingerprint) return CONFLICT;
+                // The first attempt is still running; wait for it, or take over if it fails
+                segment.waitForChange();
+            }
+            if (found >= 0) return segment.fingerprint(found) == fingerprint ? segment.result(found) : CONFLICT;
+            ticket = segment.add(idHash, fingerprint, now);
+            if (ticket < 0) return FULL;
+        }
+
+        long result;
+        try {
+            result = operation.getAsLong();
+        } catch (RuntimeException | Error e) {
+            segment.abandon(ticket);
+            throw e;
+        }
+        segment.complete(ticket, result);
+        return result;
+    }
+
+    // Returns the result of a finished request with the ID and fingerprint run within the window, or CONFLICT
+    // if there is none, without running anything.
+    public long resultOf(String requestId, long fingerprint) {
+        long idHash = hash(requestId);
+        Segment segment = segments[(int) (idHash >>> (64 - SEGMENT_BITS))];
+        synchronized (segment) {
+            int found = segment.find(idHash, System.currentTimeMillis());
+            if (found < 0 || !segment.isDone(found) || segment.fingerprint(found) != fingerprint) return CONFLICT;
+            return segment.result(found);
+        }
+    }
+
+    // Requests remembered at the moment.
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) size += segment.size();
+        return size;
+    }
+
+    // 64-bit FNV-1a hash of the ID's characters, finished with the MurmurHash3 mixer so every bit counts.
+    private static long hash(String id) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < id.length(); i++) h = (h ^ id.charAt(i)) * 0x100000001B3L;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    // A ring of entries addressed by absolute sequence numbers: the entry with sequence s lives at
+    // s & (capacity - 1), and the live entries are those from head up to tail. The arrays are allocated on
+    // first use, so segments that are never used cost nothing. Guarded by the segment itself.
+    //
+    // The fields of an entry share one stretch of a long[], and the index keeps the low half of each entry's
+    // ID hash next to its slot, so most lookups read a single index run.
+    private final class Segment {
+        private static final int FIELDS = 5; // ID hash, fingerprint, result, arrival time, state
+        private static final long PENDING = 0;
+        private static final long DONE = 1;
+        private static final long REMOVED = 2;
+
+        private long[] entries;
+        private long[] index; // Low half of the ID hash in the high half, ring slot + 1 in the low half, 0 if empty
+        private int capacity;
+        private long head;
+        private long tail;
+        private int waiters;
+
+        // Ring slot of the live entry with the ID hash, or -1, after dropping finished entries that have left the
+        // window up to the oldest one still running.
+        int find(long idHash, long now) {
+            if (entries == null) allocate();
+            while (head < tail && entries[slot(head) * FIELDS + 3] <= now - windowMillis && !isPending(slot(head))) {
+                evictHead();
+            }
+            int mask = index.length - 1;
+            for (int position = (int) idHash & mask; index[position] != 0; position = (position + 1) & mask) {
+                if ((int) (index[position] >>> 32) != (int) idHash) continue;
+                int slot = (int) index[position] - 1;
+                if (entries[slot * FIELDS] == idHash) return slot;
+            }
+            return -1;
+        }
+
+        long fingerprint(int slot) {
+            return entries[slot * FIELDS + 1];
+        }
+
+        long result(int slot) {
+            return entries[slot * FIELDS + 2];
+        }
+
+        boolean isDone(int slot) {
+            return entries[slot * FIELDS + 4] == DONE;
+        }
+
+        boolean isPending(int slot) {
+            return entries[slot * FIELDS + 4] == PENDING;
+        }
+
+        // Adds a pending entry, pushing out the oldest one if the ring is full, and returns its sequence, or -1
+        // if the ring is full and its oldest entry is still pending.
+        long add(long idHash, long fingerprint, long now) {
+            if (tail - head == capacity) {
+                if (isPending(slot(head))) return -1;
+                evictHead();
+            }
+            long sequence = tail++;
+            int at = slot(sequence) * FIELDS;
+            entries[at] = idHash;
+            entries[at + 1] = fingerprint;
+            entries[at + 3] = now;
+            entries[at + 4] = PENDING;
+            int mask = index.length - 1;
+            int position = (int) idHash & mask;
+            while (index[position] != 0) position = (position + 1) & mask;
+            index[position] = idHash << 32 | (slot(sequence) + 1);
+            return sequence;
+        }
+
+        synchronized void complete(long sequence, long result) {
+            entries[slot(sequence) * FIELDS + 2] = result;
+            entries[slot(sequence) * FIELDS + 4] = DONE;
+            if (waiters > 0) notifyAll();
+        }
+
+        // Forgets a pending entry whose operation failed, so a retry runs it again.
+        synchronized void abandon(long sequence) {
+            remove(slot(sequence));
+            if (waiters > 0) notifyAll();
+        }
+
+        synchronized int size() {
+            return (int) (tail - head);
+        }
+
+        void waitForChange() {
+            waiters++;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a request to finish", e);
+            } finally {
+                waiters--;
+            }
+        }
+
+        private void allocate() {
+            capacity = segmentCapacity;
+            entries = new long[capacity * FIELDS];
+            index = new long[capacity * 2];
+        }
+
+        private int slot(long sequence) {
+            return (int) (sequence & (capacity - 1));
+        }
+
+        private void evictHead() {
+            int slot = slot(head++);
+            if (entries[slot * FIELDS + 4] != REMOVED) remove(slot); // Abandoned entries are already gone
+        }
+
+        // Removes an entry from the index, moving later entries of its probe run back so lookups still find them.
+        private void remove(int slot) {
+            entries[slot * FIELDS + 4] = REMOVED;
+            int mask = index.length - 1;
+            int position = (int) entries[slot * FIELDS] & mask;
+            while ((int) index[position] != slot + 1) position = (position + 1) & mask;
+            index[position] = 0;
+            for (int next = (position + 1) & mask; index[next] != 0; next = (next + 1) & mask) {
+                int home = (int) (index[next] >>> 32) & mask;
+                // Move the entry into the gap unless its home lies after the gap, up to where it is now
+                if (((next - home) & mask) >= ((next - position) & mask)) {
+                    index[position] = index[next];
+                    index[next] = 0;
+                    position = next;
+                }
+            }
+        }
+    }
+}
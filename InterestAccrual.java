@@ -0,0 +1,170 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Interest and maintenance fee applied to every account by a periodic batch run: each run pays interest of
+// a fixed rate on the balance and charges a fixed maintenance fee, which is waived as far as it would take the
+// balance below BankingEngine.MIN_BALANCE. Both are worked out from the balance at the moment they are applied.
+//
+// A run works on chunks of CHUNK_KEYS consecutive account keys. The interest and fee applied to every account in
+// a chunk are encoded as a pair of varints, in key order with zeros for keys with no account, so a chunk of
+// typical accounts takes a few kilobytes and fits in one journal record. See BankingEngine.accrue.
+public final class InterestAccrual {
+
+    public static final int CHUNK_KEYS = 1024;
+
+    // Receives the interest and fee of each account in a chunk.
+    public interface Visitor {
+        void visit(int key, long interest, long fee);
+    }
+
+    // A run not yet committed: its rule, batch, the keys below which it applies to every account, and the chunks
+    // it has applied. BankingEngine finishes one that a crash cut short, as found by journal replay, on start,
+    // and one that failed before its next run or checkpoint.
+    public static final class Unfinished {
+        public final InterestAccrual accrual;
+        public final long batch;
+        public final int keyLimit;
+        public final BitSet applied = new BitSet();
+
+        public Unfinished(InterestAccrual accrual, long batch, int keyLimit) {
+            this.accrual = accrual;
+            this.batch = batch;
+            this.keyLimit = keyLimit;
+        }
+    }
+
+    // Number of accounts changed, and interest paid and fees charged, by one run.
+    public static final class Totals {
+        public final long accounts;
+        public final long interest;
+        public final long fees;
+
+        public Totals(long accounts, long interest, long fees) {
+            this.accounts = accounts;
+            this.interest = interest;
+            this.fees = fees;
+        }
+    }
+
+    private final long interestBasisPoints;
+    private final long maintenanceFee;
+
+    // Pays interestBasisPoints hundredths of a percent of the balance and charges maintenanceFee cents per run.
+    public InterestAccrual(long interestBasisPoints, long maintenanceFee) {
+        if (interestBasisPoints < 0 || maintenanceFee < 0) throw new IllegalArgumentException("Interest and fee must not be negative");
+        this.interestBasisPoints = interestBasisPoints;
+        this.maintenanceFee = maintenanceFee;
+    }
+
+    // Parses a rule written as <interest percent>,<fee>, e.g. 0.01,25 for 0.01% interest and LKR 25.00 a run.
+    public static InterestAccrual parse(String rule) {
+        String[] parts = rule.split(",");
+        long basisPoints = parts.length == 2 ? Money.parseCents(parts[0].trim()) : -1; // Hundredths, as cents are
+        long fee = parts.length == 2 ? Money.parseCents(parts[1].trim()) : -1;
+        if (basisPoints < 0 || fee < 0) throw new IllegalArgumentException("Interest accrual must be <interest percent>,<fee>: " + rule);
+        return new InterestAccrual(basisPoints, fee);
+    }
+
+    // The rule encoded for the journal, read back with fromParameters.
+    public byte[] parameters() {
+        byte[] encoded = new byte[20];
+        int length = putVarint(encoded, 0, interestBasisPoints);
+        return Arrays.copyOf(encoded, putVarint(encoded, length, maintenanceFee));
+    }
+
+    public static InterestAccrual fromParameters(byte[] encoded) {
+        long[] values = new long[2];
+        int position = 0;
+        for (int i = 0; i < values.length; i++) {
+            for (int shift = 0; ; shift += 7) {
+                byte b = encoded[position++];
+                values[i] |= (long) (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+        }
+        return new InterestAccrual(values[0], values[1]);
+    }
+
+    // Runs the accrual on the engine every periodSeconds on a background thread.
+    public void start(BankingEngine engine, long periodSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "interest-accrual");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                engine.accrue(this);
+            } catch (RuntimeException e) {
+                // Keep the schedule going; the next run first finishes the chunks this one left, so no account
+                // is paid twice
+                System.err.println("Interest accrual failed: " + e.getMessage());
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public long interest(long balance) {
+        // Split so large balances cannot overflow; both parts round down as a whole would
+        return balance / 10_000 * interestBasisPoints + balance % 10_000 * interestBasisPoints / 10_000;
+    }
+
+    public long fee(long balance, long interest) {
+        return Math.max(0, Math.min(maintenanceFee, balance + interest - BankingEngine.MIN_BALANCE));
+    }
+
+    // Applies the interest and fee to every open account with a key from firstKey up to endKey, calling the
+    // visitor once the balance of each account they change has been set, and returns what was applied encoded, or
+    // null if there are no accounts in the range. Every balance is read before any is set, so a chunk that fails
+    // to be worked out is left as it was. The caller must keep the accounts from changing meanwhile.
+    public byte[] apply(AccountStore store, int firstKey, int endKey, Visitor visitor) {
+        byte[] encoded = new byte[(endKey - firstKey) * 2 * 10];
+        int length = 0;
+        boolean any = false;
+        for (int key = firstKey; key < endKey; key++) {
+            long balance = store.getBalance(key);
+            long interest = balance < 0 ? 0 : interest(balance);
+            length = putVarint(encoded, length, interest);
+            length = putVarint(encoded, length, balance < 0 ? 0 : fee(balance, interest));
+            any |= balance >= 0;
+        }
+        if (!any) return null;
+        byte[] changes = Arrays.copyOf(encoded, length);
+        decode(changes, firstKey, (key, interest, fee) -> {
+            store.setBalance(key, store.getBalance(key) + interest - fee);
+            visitor.visit(key, interest, fee);
+        });
+        return changes;
+    }
+
+    // Visits the accounts of an encoded chunk that get interest or pay a fee.
+    public static void decode(byte[] encoded, int firstKey, Visitor visitor) {
+        int position = 0;
+        for (int key = firstKey; position < encoded.length; key++) {
+            long interest = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = encoded[position++];
+                interest |= (long) (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            long fee = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = encoded[position++];
+                fee |= (long) (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            if (interest != 0 || fee != 0) visitor.visit(key, interest, fee);
+        }
+    }
+
+    private static int putVarint(byte[] bytes, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bytes[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+}
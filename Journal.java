@@ -0,0 +1,642 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+// Binary append-only write-ahead log of every change made to the account store.
+// Appends are batched by a background flusher thread that writes and fsyncs everything queued since its
+// last flush in one go (group commit), and each append returns only once its record is on disk, unless
+// bulk work has turned that off and syncs once per batch instead.
+// Records hold amounts rather than resulting balances, so replaying them in log order rebuilds the store.
+// Lock-free changes are made and logged as one step with logInOrder, so they too are logged in the order they
+// were made, and a record that is on disk has every change it relied on on disk before it. Replay therefore
+// never takes a balance below zero, and refuses a journal that does.
+// Each record also carries the time of the change, so replay can rebuild the transaction history; records
+// written before timestamps were added are still read, with a timestamp of 0.
+//
+// An interest accrual run is logged as a batch: an ACCRUAL_BEGIN record with the rule and the accounts it
+// covers, one ACCRUAL record per chunk of accounts with the interest and fees applied to them, logged as the
+// chunk is applied, and an ACCRUAL_COMMIT record once every chunk is done. A batch that replay finds without
+// its commit was cut short by a crash or a failure; unfinishedAccruals hands every such batch, oldest first,
+// to BankingEngine to finish.
+//
+// The halves of transfers between shards carry their transfer ID in place of a name, and a TRANSFER_STATE record,
+// which changes no balance, logs a receiver's half being prepared or refused. Replay rebuilds every half from
+// them, and transferHalves hands them to BankingEngine. A snapshot does not keep them, so a checkpoint logs the
+// halves still in use again with carryTransferStates before it writes the snapshot, and truncate keeps those
+// records: a crash at any point leaves them in the journal after the LSN the snapshot covers.
+public class Journal implements Closeable {
+
+    private static final byte OPEN = 1;
+    private static final byte DEPOSIT = 2;
+    private static final byte WITHDRAW = 3;
+    private static final byte TRANSFER = 4;
+    private static final byte DELETE = 5;
+    private static final byte TRANSFER_OUT = 6; // The sender's half of a transfer to another shard
+    private static final byte TRANSFER_IN = 7; // The receiver's half of a transfer from another shard
+    private static final byte ACCRUAL = 8; // Interest and fees applied to a chunk of accounts, part of a batch
+    private static final byte ACCRUAL_COMMIT = 9; // Ends a batch of ACCRUAL records
+    private static final byte ACCRUAL_BEGIN = 10; // Starts a batch of ACCRUAL records
+    private static final byte TRANSFER_REFUND = 11; // A sender given back the amount and fee of a TRANSFER_OUT
+    private static final byte TRANSFER_STATE = 12; // A transfer half's state and ID, and its result in the fee
+    private static final byte TIMESTAMPED = 0x40; // Set on the type of records that carry a timestamp
+
+    // length, lsn, type, timestamp (if TIMESTAMPED), key, other key, amount, fee, name length,
+    // then the name bytes (or an accrual chunk) and a CRC32
+    private static final int HEADER_SIZE = 4 + 8 + 1 + 4 + 4 + 8 + 8 + 2;
+    private static final int TIMESTAMP_SIZE = 8;
+    // A record without a name, or with a transfer ID
+    private static final int ORDERED_RECORD_SIZE = HEADER_SIZE + TIMESTAMP_SIZE + TransferHalf.MAX_ID_LENGTH + 4;
+    private static final int MAX_NAME_BYTES = 0xFFFF; // The name length is written as an unsigned short
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path file;
+    private final Thread flusher;
+
+    // Replaced only by truncate, once everything queued has been written. Guarded by this.
+    private FileChannel channel;
+
+    // Records waiting for the flusher; swapped with the idle buffer on each flush. Guarded by this.
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer writing = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private final List<InterestAccrual.Unfinished> unfinishedAccruals;
+    private final List<TransferHalf> transferHalves;
+
+    private long lastLsn;
+    private long durableLsn;
+    private long recordsSinceTruncate;
+    private long carriedFrom = -1; // File offset of the records carryTransferStates logged for truncate to keep
+    private boolean syncOnAppend = true;
+    private boolean ordering; // Set while logInOrder runs a change, which holds the journal throughout
+    private boolean closed;
+    private IOException failure;
+
+    private Journal(Path file, FileChannel channel, long lastLsn, Replayed replayed) {
+        this.file = file;
+        this.channel = channel;
+        this.unfinishedAccruals = replayed.unfinishedAccruals;
+        this.transferHalves = new ArrayList<>(replayed.transfersIn.values());
+        this.transferHalves.addAll(replayed.transfersOut.values());
+        this.lastLsn = lastLsn;
+        this.durableLsn = lastLsn;
+        this.flusher = new Thread(this::flushLoop, "journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // Opens the journal, replays every record after the given LSN into the store and
+    // returns a journal ready for appending after the last valid record.
+    public static Journal open(Path file, AccountStore store, long snapshotLsn) {
+        return open(file, store, snapshotLsn, null);
+    }
+
+    // Opens the journal as above, also recording the replayed changes after the history's own checkpoint
+    // in the transaction history. The history may be null.
+    public static Journal open(Path file, AccountStore store, long snapshotLsn, TransactionHistory history) {
+        try {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            Replayed replayed = replay(channel, store, snapshotLsn, history);
+
+            // Drop a torn record left by a crash so new records follow the last valid one; replay has already
+            // refused a journal damaged anywhere else
+            channel.truncate(replayed.validEnd);
+            channel.position(replayed.validEnd);
+            Journal journal = new Journal(file, channel, Math.max(snapshotLsn, replayed.lastLsn), replayed);
+            journal.recordsSinceTruncate = replayed.records;
+            return journal;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open journal " + file, e);
+        }
+    }
+
+    // Each log method takes the time of the change in milliseconds since the epoch.
+    public long logOpen(int key, String name, long balance, long timestamp) {
+        return append(OPEN, timestamp, key, 0, balance, 0, name.getBytes(StandardCharsets.UTF_8), true);
+    }
+
+    public long logDeposit(int key, long amount, long timestamp) {
+        return append(DEPOSIT, timestamp, key, 0, amount, 0, null, true);
+    }
+
+    public long logWithdraw(int key, long amount, long timestamp) {
+        return append(WITHDRAW, timestamp, key, 0, amount, 0, null, true);
+    }
+
+    public long logTransfer(int fromKey, int toKey, long amount, long fee, long timestamp) {
+        return append(TRANSFER, timestamp, fromKey, toKey, amount, fee, null, true);
+    }
+
+    // The halves of a transfer between shards, each logged with the transfer's ID.
+    public long logTransferOut(String transferId, int fromKey, int toKey, long amount, long fee, long timestamp) {
+        return append(TRANSFER_OUT, timestamp, fromKey, toKey, amount, fee, idBytes(transferId), true);
+    }
+
+    public long logTransferIn(String transferId, int toKey, int fromKey, long amount, long timestamp) {
+        return append(TRANSFER_IN, timestamp, toKey, fromKey, amount, 0, idBytes(transferId), true);
+    }
+
+    public long logTransferRefund(String transferId, int fromKey, int toKey, long amount, long fee, long timestamp) {
+        return append(TRANSFER_REFUND, timestamp, fromKey, toKey, amount, fee, idBytes(transferId), true);
+    }
+
+    // Logs a transfer half moving to a state that changes no balance, TransferHalf.PREPARED or REFUSED.
+    public long logTransferState(TransferHalf half, byte state, long timestamp) {
+        return append(TRANSFER_STATE, timestamp, half.key, half.otherKey, half.amount, half.result,
+                stateBytes(state, half.id), true);
+    }
+
+    // Logs the state of each transfer half again, for the next truncate to keep, and waits until they are on
+    // disk. Called with nothing else appending, before the snapshot covering everything logged until now.
+    public synchronized void carryTransferStates(Collection<TransferHalf> halves) {
+        awaitDurable(lastLsn);
+        try {
+            carriedFrom = halves.isEmpty() ? -1 : channel.position();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read the journal position", e);
+        }
+        for (TransferHalf half : halves) {
+            append(TRANSFER_STATE, half.changedAt, half.key, half.otherKey, half.amount, half.result,
+                    stateBytes(half.state, half.id), false);
+        }
+        awaitDurable(lastLsn);
+    }
+
+    public long logDelete(int key, long timestamp) {
+        return append(DELETE, timestamp, key, 0, 0, 0, null, true);
+    }
+
+    // Starts an accrual batch applying the rule to the accounts below keyLimit. The accrual records of a batch are
+    // queued without waiting for them to be on disk, as later records cannot be on disk without them;
+    // logAccrualCommit waits for the whole batch.
+    public long logAccrualBegin(long batch, int keyLimit, InterestAccrual accrual, long timestamp) {
+        return append(ACCRUAL_BEGIN, timestamp, keyLimit, 0, batch, 0, accrual.parameters(), false);
+    }
+
+    // Logs one chunk of an accrual batch, the interest and fees applied to the accounts from firstKey encoded
+    // by InterestAccrual.
+    public long logAccrual(long batch, int firstKey, byte[] chunk, long timestamp) {
+        return append(ACCRUAL, timestamp, firstKey, 0, batch, 0, chunk, false);
+    }
+
+    // Ends an accrual batch and waits until all of it is on disk.
+    public long logAccrualCommit(long batch, long timestamp) {
+        long lsn = append(ACCRUAL_COMMIT, timestamp, 0, 0, batch, 0, null, false);
+        awaitDurable(lsn);
+        return lsn;
+    }
+
+    // Makes a lock-free balance change and logs it as one step. The change runs holding the journal, so no other
+    // record can be appended between the change and its own record: each account's records are in the order its
+    // balance changed, and a change that relied on another, such as a withdrawal of a deposit just made, is
+    // always logged after it. The change returns a new balance or a rejection, and logs one record without a
+    // name if it went ahead. Once the journal is let go this waits, unless sync on append is off, until that
+    // record and so everything logged before it is on disk, so no change is acknowledged before one it relied on.
+    public long logInOrder(LongSupplier change) {
+        long lsn;
+        long result;
+        synchronized (this) {
+            // Room is made first, as waiting for it inside the change would let others append in between
+            awaitSpace(ORDERED_RECORD_SIZE);
+            long before = lastLsn;
+            ordering = true;
+            try {
+                result = change.getAsLong();
+            } finally {
+                ordering = false;
+            }
+            if (lastLsn == before || !syncOnAppend) return result;
+            lsn = lastLsn;
+        }
+        awaitDurable(lsn);
+        return result;
+    }
+
+    // The accrual batches that replay found begun but not committed, in the order they began.
+    public List<InterestAccrual.Unfinished> unfinishedAccruals() {
+        return unfinishedAccruals;
+    }
+
+    // The transfer halves replay found, in the state their last record left them.
+    public List<TransferHalf> transferHalves() {
+        return transferHalves;
+    }
+
+    // LSN of the last record appended.
+    public synchronized long lastLsn() {
+        return lastLsn;
+    }
+
+    // Number of records in the journal file, which is what a restart would have to replay, apart from those kept
+    // by the last truncate.
+    public synchronized long recordsSinceTruncate() {
+        return recordsSinceTruncate;
+    }
+
+    // Sets whether each append waits for its record to be fsynced. With it off, appends return as soon as
+    // the record is queued and sync must be called before the changes are reported as done.
+    public synchronized void setSyncOnAppend(boolean syncOnAppend) {
+        this.syncOnAppend = syncOnAppend;
+    }
+
+    // Waits until every record appended so far is on disk.
+    public synchronized void sync() {
+        awaitDurable(lastLsn);
+    }
+
+    // Empties the journal once a snapshot covering every record has been written, but for the records logged by
+    // carryTransferStates since the last truncate. Those are copied to a new file that is renamed over the
+    // journal once it is on disk, so a crash leaves either the old journal or the new one.
+    public synchronized void truncate() {
+        try {
+            awaitDurable(lastLsn);
+            if (carriedFrom < 0) {
+                channel.truncate(0);
+                channel.position(0);
+                channel.force(true);
+            } else {
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long end = channel.position();
+                    for (long position = carriedFrom; position < end; ) {
+                        position += channel.transferTo(position, end - position, out);
+                    }
+                    out.force(true);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                channel.close();
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                carriedFrom = -1;
+            }
+            recordsSinceTruncate = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to truncate journal", e);
+        }
+    }
+
+    // Flushes every pending record and closes the file.
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to close journal", e);
+        }
+    }
+
+    // Queues a record for the flusher and, if asked to and sync on append is on, waits until it has been fsynced.
+    // Within logInOrder it leaves the wait to logInOrder.
+    private synchronized long append(byte type, long timestamp, int key, int otherKey, long amount, long fee,
+                                     byte[] nameBytes, boolean sync) {
+        if (nameBytes != null && nameBytes.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Journal record data of " + nameBytes.length + " bytes is too long");
+        }
+        int size = HEADER_SIZE + TIMESTAMP_SIZE + (nameBytes == null ? 0 : nameBytes.length) + 4;
+        if (ordering && pending.remaining() < size) {
+            throw new IllegalStateException("A change logged in order may log only one record without a name, or with"
+                    + " a transfer ID");
+        }
+        awaitSpace(size);
+
+        long lsn = ++lastLsn;
+        int start = pending.position();
+        pending.putInt(size)
+                .putLong(lsn)
+                .put((byte) (type | TIMESTAMPED))
+                .putLong(timestamp)
+                .putInt(key)
+                .putInt(otherKey)
+                .putLong(amount)
+                .putLong(fee)
+                .putShort((short) (nameBytes == null ? 0 : nameBytes.length));
+        if (nameBytes != null) pending.put(nameBytes);
+
+        crc.reset();
+        crc.update(pending.array(), start, size - 4);
+        pending.putInt((int) crc.getValue());
+        recordsSinceTruncate++;
+        notifyAll();
+
+        if (sync && syncOnAppend && !ordering) awaitDurable(lsn);
+        return lsn;
+    }
+
+    // Waits until a record of the given size fits the pending buffer. Called holding the journal.
+    private void awaitSpace(int size) {
+        try {
+            while (pending.remaining() < size && failure == null && !closed) wait();
+            if (failure != null) throw new UncheckedIOException("Journal write failed", failure);
+            if (closed) throw new IllegalStateException("Journal is closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the journal", e);
+        }
+    }
+
+    private synchronized void awaitDurable(long lsn) {
+        try {
+            while (durableLsn < lsn && failure == null) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the journal", e);
+        }
+        if (durableLsn < lsn) throw new UncheckedIOException("Journal write failed", failure);
+    }
+
+    // Writes and fsyncs everything queued since the last flush, so concurrent appends share one fsync.
+    private void flushLoop() {
+        while (true) {
+            long batchLsn;
+            synchronized (this) {
+                try {
+                    while (pending.position() == 0 && !closed) wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending.position() == 0) return; // Closed with nothing left to write
+
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                batchLsn = lastLsn;
+                notifyAll(); // Appenders waiting for buffer space can continue
+            }
+
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) channel.write(writing);
+                channel.force(false);
+                writing.clear();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                durableLsn = batchLsn;
+                notifyAll();
+            }
+        }
+    }
+
+    // What replay found: the last LSN read, the file offset after the last valid record, the record count, the
+    // accrual batches left unfinished and the transfer halves by ID.
+    private static final class Replayed {
+        long lastLsn;
+        long validEnd;
+        long records;
+        final List<InterestAccrual.Unfinished> unfinishedAccruals = new ArrayList<>();
+        final Map<String, TransferHalf> transfersIn = new LinkedHashMap<>();
+        final Map<String, TransferHalf> transfersOut = new LinkedHashMap<>();
+    }
+
+    // Applies every valid record with an LSN after afterLsn to the store, and records those after the history's
+    // checkpoint in the history. Stops at a record torn by a crash, which can only be the last one, and throws
+    // if a record that cannot be read is followed by more, as dropping them would lose changes already made,
+    // or if a record takes a balance below zero.
+    private static Replayed replay(FileChannel channel, AccountStore store, long afterLsn, TransactionHistory history)
+            throws IOException {
+        long fileSize = channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        CRC32 crc = new CRC32();
+        byte[] record = new byte[HEADER_SIZE + TIMESTAMP_SIZE + MAX_NAME_BYTES + 4];
+        long historyLsn = history == null ? Long.MAX_VALUE : Math.max(afterLsn, history.committedLsn());
+        Replayed replayed = new Replayed();
+        long validEnd = 0;
+
+        while (true) {
+            if (validEnd == fileSize) break;
+            int size;
+            try {
+                size = in.readInt();
+                if (size < HEADER_SIZE + 4 || size > record.length) {
+                    checkTornTail(channel, validEnd, size, fileSize);
+                    break;
+                }
+                ByteBuffer.wrap(record).putInt(size);
+                in.readFully(record, 4, size - 4);
+            } catch (EOFException e) {
+                break; // A record torn by a crash
+            }
+
+            crc.reset();
+            crc.update(record, 0, size - 4);
+            ByteBuffer buffer = ByteBuffer.wrap(record, 4, size - 4);
+            long lsn = buffer.getLong();
+            byte type = buffer.get();
+            long timestamp = 0;
+            if ((type & TIMESTAMPED) != 0) {
+                if (size < HEADER_SIZE + TIMESTAMP_SIZE + 4) {
+                    checkTornTail(channel, validEnd, size, fileSize);
+                    break;
+                }
+                type &= ~TIMESTAMPED;
+                timestamp = buffer.getLong();
+            }
+            int key = buffer.getInt();
+            int otherKey = buffer.getInt();
+            long amount = buffer.getLong();
+            long fee = buffer.getLong();
+            int nameLength = buffer.getShort() & 0xFFFF;
+            int nameStart = buffer.position();
+            if (nameStart + nameLength + 4 != size) {
+                checkTornTail(channel, validEnd, size, fileSize);
+                break;
+            }
+            buffer.position(nameStart + nameLength);
+            if (buffer.getInt() != (int) crc.getValue()) {
+                checkTornTail(channel, validEnd, size, fileSize);
+                break;
+            }
+
+            if (lsn > afterLsn && type == ACCRUAL_BEGIN) {
+                byte[] parameters = Arrays.copyOfRange(record, nameStart, nameStart + nameLength);
+                replayed.unfinishedAccruals.add(new InterestAccrual.Unfinished(InterestAccrual.fromParameters(parameters), amount, key));
+            } else if (lsn > afterLsn && type == ACCRUAL) {
+                applyAccrual(store, lsn > historyLsn ? history : null, lsn, record, nameStart, nameLength, key, timestamp);
+                for (InterestAccrual.Unfinished unfinished : replayed.unfinishedAccruals) {
+                    if (unfinished.batch == amount) unfinished.applied.set((key - 1) / InterestAccrual.CHUNK_KEYS);
+                }
+            } else if (lsn > afterLsn && type == ACCRUAL_COMMIT) {
+                replayed.unfinishedAccruals.removeIf(unfinished -> unfinished.batch == amount);
+            } else if (lsn > afterLsn && type == TRANSFER_STATE) {
+                String id = new String(record, nameStart + 1, nameLength - 1, StandardCharsets.US_ASCII);
+                byte state = record[nameStart];
+                TransferHalf half = new TransferHalf(id, key, otherKey, amount);
+                half.settle(state, fee, timestamp);
+                (half.isIncoming() ? replayed.transfersIn : replayed.transfersOut).put(id, half);
+            } else if (lsn > afterLsn) {
+                String name = nameLength == 0 ? null : new String(record, nameStart, nameLength, StandardCharsets.UTF_8);
+                long closingBalance = type == DELETE ? store.getBalance(key) : 0;
+                boolean applied = apply(store, lsn, type, key, otherKey, amount, fee, name);
+                if (applied && lsn > historyLsn) {
+                    recordHistory(history, store, type, timestamp, key, otherKey, amount, fee, closingBalance);
+                }
+                // Transfer halves logged before they carried their transfer ID leave no state
+                if (name != null && (type == TRANSFER_OUT || type == TRANSFER_IN || type == TRANSFER_REFUND)) {
+                    Map<String, TransferHalf> halves = type == TRANSFER_IN ? replayed.transfersIn : replayed.transfersOut;
+                    byte state = type == TRANSFER_OUT ? TransferHalf.DEBITED
+                            : type == TRANSFER_IN ? TransferHalf.CREDITED : TransferHalf.REFUNDED;
+                    halves.computeIfAbsent(name, id -> new TransferHalf(id, key, otherKey, amount))
+                            .settle(state, store.getBalance(key), timestamp);
+                }
+            }
+            replayed.lastLsn = lsn;
+            validEnd += size;
+            replayed.validEnd = validEnd;
+            replayed.records++;
+        }
+        return replayed;
+    }
+
+    private static byte[] idBytes(String transferId) {
+        return transferId.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] stateBytes(byte state, String transferId) {
+        byte[] id = idBytes(transferId);
+        byte[] bytes = new byte[1 + id.length];
+        bytes[0] = state;
+        System.arraycopy(id, 0, bytes, 1, id.length);
+        return bytes;
+    }
+
+    // Checks that a record of the given size at offset start that could not be read is one a crash could have
+    // left: only the last write can be cut short, so the record must be the last in the file, or be followed
+    // by nothing but zeros. Throws otherwise.
+    private static void checkTornTail(FileChannel channel, long start, int size, long fileSize) throws IOException {
+        if (size > 0 && start + size >= fileSize) return;
+        ByteBuffer rest = ByteBuffer.allocate(1 << 16);
+        for (long position = start; position < fileSize; ) {
+            rest.clear();
+            int read = channel.read(rest, position);
+            if (read < 0) break;
+            for (int i = 0; i < read; i++) {
+                if (rest.get(i) != 0) throw new IOException("Damaged journal record at offset " + start + " is followed by more records");
+            }
+            position += read;
+        }
+    }
+
+    // Applies a record to the store. Returns false if an account it changes is not open, which is left as it is.
+    private static boolean apply(AccountStore store, long lsn, byte type, int key, int otherKey, long amount, long fee,
+                                 String name) throws IOException {
+        switch (type) {
+            case OPEN:
+                store.put(key, name, amount);
+                return true;
+            case DEPOSIT:
+                return addToBalance(store, lsn, key, amount);
+            case WITHDRAW:
+                return addToBalance(store, lsn, key, -amount);
+            case TRANSFER:
+                return addToBalance(store, lsn, key, -amount - fee) & addToBalance(store, lsn, otherKey, amount);
+            case TRANSFER_OUT:
+                return addToBalance(store, lsn, key, -amount - fee);
+            case TRANSFER_IN:
+                return addToBalance(store, lsn, key, amount);
+            case TRANSFER_REFUND:
+                return addToBalance(store, lsn, key, amount + fee);
+            case DELETE:
+                return store.remove(key);
+            default:
+                throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    // Adds a signed amount to the balance of an account, returning false if it is not open. Throws if the balance
+    // would go below zero, which a journal in the order its changes were made never does.
+    private static boolean addToBalance(AccountStore store, long lsn, int key, long amount) throws IOException {
+        long balance = store.getBalance(key);
+        if (balance < 0) return false;
+        if (balance + amount < 0) throw new IOException("Journal record " + lsn + " takes account " + key + " below zero");
+        store.setBalance(key, balance + amount);
+        return true;
+    }
+
+    // Applies one chunk of an accrual batch, and records it in the history unless that is null.
+    private static void applyAccrual(AccountStore store, TransactionHistory history, long lsn, byte[] record, int start,
+                                     int length, int firstKey, long timestamp) throws IOException {
+        int[] belowZero = {0};
+        InterestAccrual.decode(Arrays.copyOfRange(record, start, start + length), firstKey, (key, interest, fee) -> {
+            long balance = store.getBalance(key);
+            if (balance < 0 || belowZero[0] != 0) return;
+            if (balance + interest - fee < 0) {
+                belowZero[0] = key;
+                return;
+            }
+            store.setBalance(key, balance + interest - fee);
+            if (history != null) history.record(key, timestamp, TransactionHistory.INTEREST, interest, fee, 0, balance + interest - fee);
+        });
+        if (belowZero[0] != 0) throw new IOException("Journal record " + lsn + " takes account " + belowZero[0] + " below zero");
+    }
+
+    // Records a replayed change the way BankingEngine records it, reading the balances after it from the store.
+    private static void recordHistory(TransactionHistory history, AccountStore store, byte type, long timestamp,
+                                      int key, int otherKey, long amount, long fee, long closingBalance) {
+        switch (type) {
+            case OPEN:
+                history.record(key, timestamp, TransactionHistory.OPEN, amount, 0, 0, amount);
+                break;
+            case DEPOSIT:
+                history.record(key, timestamp, TransactionHistory.DEPOSIT, amount, 0, 0, store.getBalance(key));
+                break;
+            case WITHDRAW:
+                history.record(key, timestamp, TransactionHistory.WITHDRAW, amount, 0, 0, store.getBalance(key));
+                break;
+            case TRANSFER:
+                history.record(key, timestamp, TransactionHistory.TRANSFER_OUT, amount, fee, otherKey,
+                        store.getBalance(key) - (key == otherKey ? amount : 0));
+                history.record(otherKey, timestamp, TransactionHistory.TRANSFER_IN, amount, 0, key, store.getBalance(otherKey));
+                break;
+            case TRANSFER_OUT:
+                history.record(key, timestamp, TransactionHistory.TRANSFER_OUT, amount, fee, otherKey, store.getBalance(key));
+                break;
+            case TRANSFER_IN:
+                history.record(key, timestamp, TransactionHistory.TRANSFER_IN, amount, 0, otherKey, store.getBalance(key));
+                break;
+            case TRANSFER_REFUND:
+                history.record(key, timestamp, TransactionHistory.REFUND, amount, fee, otherKey, store.getBalance(key));
+                break;
+            case DELETE:
+                history.record(key, timestamp, TransactionHistory.CLOSE, closingBalance, 0, 0, 0);
+                break;
+            default:
+                break;
+        }
+    }
+}
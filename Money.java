@@ -0,0 +1,60 @@
+// Fixed-point money helpers. Every amount is held as a long number of cents so that balances stay exact.
+public final class Money {
+
+    public static final long CENTS = 100;
+
+    // Transfer fee in percent, charged to the sending account on top of the transferred amount.
+    public static final long TRANSFER_FEE_PERCENT = 2;
+
+    private Money() {
+    }
+
+    // Parses an amount such as "1500", "1500.5" or "1500.50" into cents without going through a double.
+    // Returns -1 for anything that is not a non-negative amount with at most two decimal places.
+    public static long parseCents(CharSequence input) {
+        int length = input.length();
+        int start = 0;
+        while (start < length && Character.isWhitespace(input.charAt(start))) start++;
+        while (length > start && Character.isWhitespace(input.charAt(length - 1))) length--;
+        if (start == length) return -1;
+
+        long units = 0;
+        long cents = 0;
+        int digits = 0;
+        int decimals = -1; // -1 until the decimal point is seen
+        for (int i = start; i < length; i++) {
+            char c = input.charAt(i);
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (c >= '0' && c <= '9') {
+                if (decimals < 0) {
+                    if (units > (Long.MAX_VALUE / CENTS - 9) / 10) return -1; // Would overflow
+                    units = units * 10 + (c - '0');
+                } else {
+                    if (++decimals > 2) return -1;
+                    cents = cents * 10 + (c - '0');
+                }
+                digits++;
+            } else {
+                return -1;
+            }
+        }
+        if (digits == 0) return -1;
+        if (decimals == 1) cents *= 10;
+        return units * CENTS + cents;
+    }
+
+    // Formats cents as a plain amount with two decimal places, e.g. 150050 becomes "1500.50".
+    public static String format(long cents) {
+        String sign = cents < 0 ? "-" : "";
+        long abs = Math.abs(cents);
+        long fraction = abs % CENTS;
+        return sign + (abs / CENTS) + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+
+    // Returns the 2% transfer fee for the given amount. The fee is rounded half up to the nearest cent,
+    // so 100.25 (10025 cents) costs 2.01 (200.5 cents rounded up) and 100.24 costs 2.00.
+    public static long transferFee(long amountCents) {
+        return (amountCents * TRANSFER_FEE_PERCENT + 50) / 100;
+    }
+}
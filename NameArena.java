@@ -0,0 +1,93 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Account holder names kept outside the Java heap, as UTF-8 bytes packed one after another into direct
+// buffers of CHUNK_SIZE bytes. Each name is stored as a 4 byte length followed by its bytes, and is referred
+// to by a long holding its chunk in the high half and its offset in the low half, so the store keeps a name in
+// one fixed-width field instead of a String. A name longer than a chunk gets a chunk of its own.
+//
+// Names are never moved in place: a replaced or removed name is only counted as garbage, and once garbage
+// outweighs the live names the owner copies the live ones into a new arena and drops the old one.
+//
+// The arena is not thread-safe; AccountStore only uses it under the engine's store lock.
+public final class NameArena {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int LENGTH_SIZE = 4;
+
+    private ByteBuffer[] chunks = new ByteBuffer[0];
+    private int chunkCount;
+    private int position = CHUNK_SIZE; // In the last chunk; a full chunk means the next name starts a new one
+    private long usedBytes;
+    private long liveBytes;
+
+    // Stores a name and returns its reference.
+    public long add(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return add(bytes, 0, bytes.length);
+    }
+
+    // Stores a name given as UTF-8 bytes and returns its reference.
+    public long add(byte[] utf8, int offset, int length) {
+        ByteBuffer chunk = reserve(LENGTH_SIZE + length);
+        chunk.putInt(position, length);
+        chunk.put(position + LENGTH_SIZE, utf8, offset, length);
+        return claim(LENGTH_SIZE + length);
+    }
+
+    // Copies a name from another arena and returns its reference here.
+    public long copy(NameArena from, long reference) {
+        ByteBuffer source = from.chunks[(int) (reference >>> 32)];
+        int offset = (int) reference;
+        int size = LENGTH_SIZE + source.getInt(offset);
+        reserve(size).put(position, source, offset, size);
+        return claim(size);
+    }
+
+    public String get(long reference) {
+        ByteBuffer chunk = chunks[(int) (reference >>> 32)];
+        int offset = (int) reference;
+        byte[] bytes = new byte[chunk.getInt(offset)];
+        chunk.get(offset + LENGTH_SIZE, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Counts a name as garbage once nothing refers to it any more.
+    public void free(long reference) {
+        liveBytes -= LENGTH_SIZE + chunks[(int) (reference >>> 32)].getInt((int) reference);
+    }
+
+    // Whether garbage outweighs live names by enough to be worth copying the live ones into a new arena.
+    public boolean needsCompaction() {
+        long garbage = usedBytes - liveBytes;
+        return garbage >= CHUNK_SIZE && garbage > liveBytes;
+    }
+
+    // Bytes held outside the heap, including space not yet used.
+    public long capacityBytes() {
+        long bytes = 0;
+        for (int i = 0; i < chunkCount; i++) bytes += chunks[i].capacity();
+        return bytes;
+    }
+
+    // Makes room for an entry of the given size, starting a new chunk if it does not fit in the last one.
+    private ByteBuffer reserve(int size) {
+        if (chunkCount > 0 && position + size <= chunks[chunkCount - 1].capacity()) return chunks[chunkCount - 1];
+        if (chunkCount > 0) usedBytes += chunks[chunkCount - 1].capacity() - position; // Tail left unused
+        if (chunkCount == chunks.length) chunks = Arrays.copyOf(chunks, Math.max(4, chunkCount * 2));
+        ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, size)).order(ByteOrder.nativeOrder());
+        chunks[chunkCount++] = chunk;
+        position = 0;
+        return chunk;
+    }
+
+    private long claim(int size) {
+        long reference = (long) (chunkCount - 1) << 32 | position;
+        position += size;
+        usedBytes += size;
+        liveBytes += size;
+        return reference;
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.Arrays;
+
+// Index from account holder name to account keys for case-insensitive prefix search.
+//
+// Entries are kept sorted by name, ignoring case, in parallel arrays of names and keys. The store keeps names
+// off the heap, so the index holds its own String per account; it is only built once a search is made,
+// and deployments that never search names keep them off the heap entirely. New accounts go into
+// a small sorted delta that is merged into the main arrays once it fills up, so opening an account does not
+// shift millions of entries. A deleted account leaves a tombstone (key 0) that keeps its name for ordering
+// and is dropped once tombstones make up a quarter of the index.
+//
+// Names sort the way String.CASE_INSENSITIVE_ORDER compares them, so every name that starts with a given
+// prefix, ignoring case, sits in one run that a binary search finds.
+//
+// The index is not thread-safe; BankingEngine guards it with its store lock.
+public class NameIndex {
+
+    private static final int DELTA_CAPACITY = 4_096;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private int count;
+    private int tombstones;
+
+    private final String[] deltaNames = new String[DELTA_CAPACITY];
+    private final int[] deltaKeys = new int[DELTA_CAPACITY];
+    private int deltaCount;
+
+    // Builds the index over every account in the store.
+    public static NameIndex build(AccountStore store) {
+        NameIndex index = new NameIndex();
+        int size = store.size();
+        Entry[] entries = new Entry[size];
+        int[] filled = {0};
+        store.forEach((key, name, balance) -> entries[filled[0]++] = new Entry(name, key));
+        Arrays.parallelSort(entries, 0, filled[0], (a, b) -> String.CASE_INSENSITIVE_ORDER.compare(a.name, b.name));
+
+        index.names = new String[Math.max(INITIAL_CAPACITY, filled[0])];
+        index.keys = new int[index.names.length];
+        for (int i = 0; i < filled[0]; i++) {
+            index.names[i] = entries[i].name;
+            index.keys[i] = entries[i].key;
+        }
+        index.count = filled[0];
+        return index;
+    }
+
+    // Number of live accounts in the index.
+    public int size() {
+        return count - tombstones + deltaCount;
+    }
+
+    public void add(int key, String name) {
+        if (deltaCount == DELTA_CAPACITY) mergeDelta();
+        int position = upperBound(deltaNames, 0, deltaCount, name);
+        System.arraycopy(deltaNames, position, deltaNames, position + 1, deltaCount - position);
+        System.arraycopy(deltaKeys, position, deltaKeys, position + 1, deltaCount - position);
+        deltaNames[position] = name;
+        deltaKeys[position] = key;
+        deltaCount++;
+    }
+
+    // Removes an account, given the name it was added with. Returns false if it was not in the index.
+    public boolean remove(int key, String name) {
+        for (int i = lowerBound(deltaNames, 0, deltaCount, name); i < deltaCount && sameName(deltaNames[i], name); i++) {
+            if (deltaKeys[i] == key) {
+                System.arraycopy(deltaNames, i + 1, deltaNames, i, deltaCount - i - 1);
+                System.arraycopy(deltaKeys, i + 1, deltaKeys, i, deltaCount - i - 1);
+                deltaNames[--deltaCount] = null;
+                return true;
+            }
+        }
+        for (int i = lowerBound(names, 0, count, name); i < count && sameName(names[i], name); i++) {
+            if (keys[i] == key) {
+                keys[i] = 0;
+                tombstones++;
+                if (tombstones > count / 4) dropTombstones();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns the keys of up to limit accounts whose names start with the prefix, ignoring case, in name order.
+    public int[] findByPrefix(String prefix, int limit) {
+        int[] found = new int[Math.min(limit, size())];
+        int n = 0;
+        int main = lowerBound(names, 0, count, prefix);
+        int delta = lowerBound(deltaNames, 0, deltaCount, prefix);
+        while (n < found.length) {
+            // Skip tombstones, then take whichever of the two runs comes first by name
+            while (main < count && keys[main] == 0) main++;
+            boolean mainMatches = main < count && startsWithIgnoreCase(names[main], prefix);
+            boolean deltaMatches = delta < deltaCount && startsWithIgnoreCase(deltaNames[delta], prefix);
+            if (!mainMatches && !deltaMatches) break;
+            if (mainMatches && (!deltaMatches || String.CASE_INSENSITIVE_ORDER.compare(names[main], deltaNames[delta]) <= 0)) {
+                found[n++] = keys[main++];
+            } else {
+                found[n++] = deltaKeys[delta++];
+            }
+        }
+        return n == found.length ? found : Arrays.copyOf(found, n);
+    }
+
+    // Merges the delta into the main arrays from the back, so each main entry moves at most once.
+    private void mergeDelta() {
+        if (count + deltaCount > names.length) {
+            int capacity = Math.max(names.length * 2, count + deltaCount);
+            names = Arrays.copyOf(names, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+        }
+        int end = count;
+        for (int d = deltaCount - 1; d >= 0; d--) {
+            int position = upperBound(names, 0, end, deltaNames[d]);
+            int shift = d + 1;
+            System.arraycopy(names, position, names, position + shift, end - position);
+            System.arraycopy(keys, position, keys, position + shift, end - position);
+            names[position + d] = deltaNames[d];
+            keys[position + d] = deltaKeys[d];
+            end = position;
+        }
+        count += deltaCount;
+        Arrays.fill(deltaNames, 0, deltaCount, null);
+        deltaCount = 0;
+    }
+
+    private void dropTombstones() {
+        int live = 0;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == 0) continue;
+            names[live] = names[i];
+            keys[live] = keys[i];
+            live++;
+        }
+        Arrays.fill(names, live, count, null);
+        count = live;
+        tombstones = 0;
+    }
+
+    private static boolean sameName(String a, String b) {
+        return String.CASE_INSENSITIVE_ORDER.compare(a, b) == 0;
+    }
+
+    private static boolean startsWithIgnoreCase(String name, String prefix) {
+        return name.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    // First position in sorted[from, to) whose name is not below the given one, ignoring case.
+    private static int lowerBound(String[] sorted, int from, int to, String name) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(sorted[mid], name) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // First position in sorted[from, to) whose name is above the given one, ignoring case.
+    private static int upperBound(String[] sorted, int from, int to, String name) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(sorted[mid], name) <= 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static final class Entry {
+        final String name;
+        final int key;
+
+        Entry(String name, int key) {
+            this.name = name;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.Arrays;
+
+// Consistent hashing of account keys onto shards. Every shard owns VIRTUAL_NODES points on a ring of 32-bit
+// hashes, and a key belongs to the shard owning the first point at or after the key's hash, wrapping around.
+// With many points per shard each shard owns close to an equal share of keys, and a ring with one shard
+// more takes about 1/N of the keys from each existing shard instead of reshuffling them all.
+//
+// The ring depends only on the number of shards, so every process working out the same shard count agrees on
+// which shard owns which key without talking to the others.
+public final class ShardRing {
+
+    public static final int VIRTUAL_NODES = 128;
+
+    private final int shards;
+    private final int[] points; // Sorted as unsigned ints
+    private final int[] owners;
+
+    public ShardRing(int shards) {
+        if (shards < 1) throw new IllegalArgumentException("A ring needs at least one shard");
+        this.shards = shards;
+        long[] ring = new long[shards * VIRTUAL_NODES];
+        for (int shard = 0; shard < shards; shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                long point = Integer.toUnsignedLong(mix(shard * 0x01000193 + node * 0x5BD1E995 + 1));
+                ring[shard * VIRTUAL_NODES + node] = point << 32 | shard;
+            }
+        }
+        Arrays.sort(ring);
+        points = new int[ring.length];
+        owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = (int) (ring[i] >>> 32);
+            owners[i] = (int) ring[i];
+        }
+    }
+
+    public int shards() {
+        return shards;
+    }
+
+    // The shard that owns the account key.
+    public int shardOf(int key) {
+        if (shards == 1) return 0;
+        int hash = mix(key);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (Integer.compareUnsigned(points[mid], hash) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    // MurmurHash3's 32-bit finaliser, so neighbouring keys land far apart on the ring.
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+}
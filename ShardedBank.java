@@ -0,0 +1,287 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Banking operations over accounts partitioned across shards, each shard a separate SmartBankingApp process
+// started with --shard and listening on its own port. Accounts are placed by ShardRing, so operations on one
+// account go straight to the one shard that holds it, and each shard only ever opens accounts with numbers
+// it owns. Results and rejections are the same as BankingEngine's.
+//
+// A transfer within one shard is a plain TRANSFER. A transfer between shards runs in two phases, every request
+// carrying the same transfer ID:
+//   1. The receiver's shard prepares, checking the receiver exists and pinning it against deletion.
+//   2. The sender's shard debits the amount and fee with TRANSFER_OUT, checking the sender keeps
+//      MIN_BALANCE exactly as a local transfer does. This is the point the transfer is decided.
+//   3. If the debit was rejected the receiver's prepare is aborted; otherwise the receiver's shard is
+//      credited with TRANSFER_IN, retrying until it answers.
+// Each shard journals the halves it prepared, applied and refused by transfer ID before it answers, and
+// rebuilds them when it restarts, so resending a half after a lost connection or a restart cannot apply it
+// twice, and a shard only credits a transfer it prepared. Only if the receiver's shard answers the credit with
+// TRANSFER_NOT_PREPARED, which it does once it has durably refused the transfer because the prepare was
+// aborted or lapsed before the credit arrived, is the sender's shard asked to give back the amount and fee
+// with REFUND_TRANSFER_OUT, which leaves its prepares alone. A credit refused any other way is not refunded.
+//
+// Shards only take these requests from a ShardedBank given the secret they were started with, on whatever
+// host it runs.
+//
+// A coordinator that stops between the prepare and the debit leaves a prepare that lapses on its own after
+// BankingEngine.PREPARE_TIMEOUT_MILLIS. One that stops between the debit and the credit, or gives up on a
+// receiver that does not answer, leaves the money debited and the receiver's prepare to lapse; such transfers
+// have to be settled by hand from the TRANSFER_OUT and transfer state records of the two journals.
+//
+// One ShardedBank holds one connection to each shard and must only be used by one thread at a time, like a
+// teller session; create one per thread.
+public final class ShardedBank implements Closeable {
+
+    public static final int DEFAULT_BASE_PORT = 7100;
+
+    private static final int CONNECT_ATTEMPTS = 200;
+    private static final int RESEND_ATTEMPTS = 20;
+    private static final long RETRY_MILLIS = 50;
+
+    private final ShardRing ring;
+    private final String host;
+    private final int basePort;
+    private final String peerSecret;
+    private final Connection[] connections;
+    private final String transferPrefix = Long.toHexString(ThreadLocalRandom.current().nextLong()) + "-";
+    private long transfers;
+    private int nextOpenShard;
+
+    // Connects to shards 0 to ring.shards() - 1, listening on basePort + shard, authenticating with the secret
+    // the shards were started with.
+    public ShardedBank(ShardRing ring, String host, int basePort, String peerSecret) {
+        this.ring = ring;
+        this.host = host;
+        this.basePort = basePort;
+        this.peerSecret = peerSecret;
+        this.connections = new Connection[ring.shards()];
+    }
+
+    // Starts the given number of shard processes on this host with the secret, each keeping its files in its own
+    // directory under dataDir and its output in shard.log there, and waits until they all accept connections.
+    public static List<Process> startLocalShards(int shards, int basePort, Path dataDir, String peerSecret,
+                                                 String... jvmOptions) {
+        List<Process> processes = new ArrayList<>();
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                Path shardDir = dataDir.resolve("shard-" + shard);
+                Files.createDirectories(shardDir);
+                List<String> command = new ArrayList<>();
+                command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+                command.addAll(List.of(jvmOptions));
+                command.addAll(List.of("-Dsmartbanking.data=" + shardDir, "-Dsmartbanking.statsInterval=0",
+                        "-cp", System.getProperty("java.class.path"),
+                        "SmartBankingApp", "--shard", String.valueOf(shard), String.valueOf(shards),
+                        String.valueOf(basePort + shard)));
+                ProcessBuilder builder = new ProcessBuilder(command)
+                        .redirectErrorStream(true)
+                        .redirectOutput(shardDir.resolve("shard.log").toFile());
+                builder.environment().put("SMARTBANKING_SHARD_SECRET", peerSecret);
+                processes.add(builder.start());
+            }
+            for (int shard = 0; shard < shards; shard++) {
+                new Connection("localhost", basePort + shard).close();
+            }
+        } catch (IOException e) {
+            processes.forEach(Process::destroy);
+            throw new UncheckedIOException("Unable to start the shards", e);
+        } catch (UncheckedIOException e) {
+            processes.forEach(Process::destroy);
+            throw e;
+        }
+        return processes;
+    }
+
+    // Stops shard processes, letting each take a final snapshot.
+    public static void stopLocalShards(List<Process> processes) {
+        processes.forEach(Process::destroy);
+        for (Process process : processes) {
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public ShardRing ring() {
+        return ring;
+    }
+
+    // Opens an account on the next shard in turn and returns its key, or a rejection.
+    public long openAccount(String name, long initialDeposit) {
+        int shard = nextOpenShard;
+        nextOpenShard = (shard + 1) % ring.shards();
+        String response = send(shard, "OPEN_ACCOUNT " + Money.format(initialDeposit) + " " + name);
+        return response.startsWith("OK ") ? AccountStore.parseKey(response.substring(3)) : rejection(response);
+    }
+
+    public long deposit(int key, long amount) {
+        return result(send(ring.shardOf(key), "DEPOSIT " + AccountStore.formatAccountNumber(key) + " " + Money.format(amount)));
+    }
+
+    public long withdraw(int key, long amount) {
+        return result(send(ring.shardOf(key), "WITHDRAW " + AccountStore.formatAccountNumber(key) + " " + Money.format(amount)));
+    }
+
+    public long balance(int key) {
+        String response = send(ring.shardOf(key), "CHECK_BALANCE " + AccountStore.formatAccountNumber(key));
+        if (!response.startsWith("OK ")) return rejection(response);
+        int end = response.indexOf(' ', 3);
+        return Money.parseCents(response.substring(3, end < 0 ? response.length() : end));
+    }
+
+    // Moves an amount between accounts, charging the transfer fee to the sender, who must keep at least
+    // MIN_BALANCE. Returns the sender's new balance, or a rejection.
+    public long transfer(int fromKey, int toKey, long amount) {
+        int fromShard = ring.shardOf(fromKey);
+        int toShard = ring.shardOf(toKey);
+        String from = AccountStore.formatAccountNumber(fromKey);
+        String to = AccountStore.formatAccountNumber(toKey);
+        if (fromShard == toShard) return result(send(fromShard, "TRANSFER " + from + " " + to + " " + Money.format(amount)));
+        if (amount < BankingEngine.MIN_TRANSFER) return BankingEngine.INVALID_AMOUNT;
+
+        String transferId = transferPrefix + (++transfers);
+        long prepared = result(resend(toShard, "PREPARE_TRANSFER_IN " + transferId + " " + to + " " + from + " " + Money.format(amount)));
+        if (prepared < 0) return prepared;
+
+        long debited = result(resend(fromShard, "TRANSFER_OUT " + transferId + " " + from + " " + to + " " + Money.format(amount)));
+        if (debited < 0) {
+            resend(toShard, "ABORT_TRANSFER_IN " + transferId);
+            return debited;
+        }
+
+        long credited = result(resend(toShard, "TRANSFER_IN " + transferId + " " + to + " " + from + " " + Money.format(amount)));
+        if (credited == BankingEngine.TRANSFER_NOT_PREPARED) {
+            resend(fromShard, "REFUND_TRANSFER_OUT " + transferId + " " + from + " " + to + " " + Money.format(amount));
+        }
+        return credited < 0 ? credited : debited;
+    }
+
+    @Override
+    public void close() {
+        for (Connection connection : connections) {
+            if (connection != null) connection.close();
+        }
+    }
+
+    // Sends a request that is safe to repeat, reconnecting and sending it again until the shard answers.
+    private String resend(int shard, String request) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return send(shard, request);
+            } catch (UncheckedIOException e) {
+                if (attempt == RESEND_ATTEMPTS) throw e;
+                sleep(RETRY_MILLIS * attempt);
+            }
+        }
+    }
+
+    private String send(int shard, String request) {
+        Connection connection = connections[shard];
+        if (connection == null) {
+            connection = new Connection(host, basePort + shard);
+            authenticate(connection, shard);
+            connections[shard] = connection;
+        }
+        try {
+            return connection.call(request);
+        } catch (IOException e) {
+            connection.close();
+            connections[shard] = null;
+            throw new UncheckedIOException("Shard " + shard + " did not answer", e);
+        }
+    }
+
+    private void authenticate(Connection connection, int shard) {
+        try {
+            if (connection.call("AUTH " + peerSecret).startsWith("OK ")) return;
+        } catch (IOException e) {
+            connection.close();
+            throw new UncheckedIOException("Shard " + shard + " did not answer", e);
+        }
+        connection.close();
+        throw new IllegalStateException("Shard " + shard + " did not accept the secret");
+    }
+
+    private static long result(String response) {
+        return response.startsWith("OK ") ? Money.parseCents(response.substring(3)) : rejection(response);
+    }
+
+    // Maps an ERR response back to the engine's rejection code.
+    private static long rejection(String response) {
+        String message = response.startsWith("ERR ") ? response.substring(4) : response;
+        for (long code = -1; BankingEngine.rejectionMessage(code) != null; code--) {
+            if (BankingEngine.rejectionMessage(code).equals(message)) return code;
+        }
+        return BankingEngine.INVALID_AMOUNT; // Input the shard refused before reaching its engine
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying a shard", e);
+        }
+    }
+
+    // One connection to a shard, opened with retries so a shard that is still starting up is waited for.
+    private static final class Connection {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+
+        Connection(String host, int port) {
+            Socket connected = null;
+            for (int attempt = 1; connected == null; attempt++) {
+                try {
+                    connected = new Socket(host, port);
+                } catch (IOException e) {
+                    if (attempt == CONNECT_ATTEMPTS) throw new UncheckedIOException("Unable to reach shard on port " + port, e);
+                    sleep(RETRY_MILLIS);
+                }
+            }
+            socket = connected;
+            try {
+                socket.setTcpNoDelay(true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        String call(String request) throws IOException {
+            out.write(request);
+            out.write('\n');
+            out.flush();
+            String response = in.readLine();
+            if (response == null) throw new IOException("Connection closed");
+            return response;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+}
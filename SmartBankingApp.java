@@ -1,5 +1,17 @@
-import java.util.InputMismatchException;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 public class SmartBankingApp{
     
@@ -10,196 +22,350 @@ public class SmartBankingApp{
     private static final String TRANSFER = "Transfer";
     private static final String CHECK_BALANCE = "Check Account Balance";
     private static final String DELETE_ACCOUNT = "Delete Account";
+    private static final String SEARCH_BY_NAME = "Search Accounts by Name";
+    private static final String STATEMENT = "Account Statement";
+
+    // Most accounts listed for one name search.
+    private static final int SEARCH_RESULTS = 20;
+
+    // Statement entries shown at a time.
+    private static final int STATEMENT_PAGE_SIZE = 20;
+    private static final DateTimeFormatter STATEMENT_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // Dashboard menu, built once rather than printed line by line on every redraw.
+    private static final String MENU = String.join("\n",
+            "[1]. Open New Account",
+            "[2]. Deposit",
+            "[3]. Withdraw",
+            "[4]. Transfer",
+            "[5]. Check Account Balance",
+            "[6]. Delete Account",
+            "[7]. Exit",
+            "[8]. Search Accounts by Name",
+            "[9]. Account Statement",
+            "Enter an option to continue > ");
 
     // Declares a private static String variable named 'screen' to hold screen-related data.
     private static String screen;
 
-    // Initialize an empty array to store account information.
-    private static String[][] accountInfo = new String[0][0];
+    // Screens chosen by the dashboard menu options, indexed by option number. Option 7 exits, as it did before
+    // there were more options, so tellers and scripts that type it still quit; newer options come after it.
+    private static final String[] MENU_SCREENS = {
+            null, OPEN_ACCOUNT, DEPOSIT, WITHDRAW, TRANSFER, CHECK_BALANCE, DELETE_ACCOUNT, null, SEARCH_BY_NAME,
+            STATEMENT
+    };
+    private static final int EXIT_OPTION = 7;
+
+    // What every screen does. Every screen but the dashboard goes back to the dashboard when it is done.
+    private static final Map<String, Screen> SCREENS = Map.of(
+            DASHBOARD, SmartBankingApp::dashboard,
+            OPEN_ACCOUNT, in -> { openAccountProcess(in); return DASHBOARD; },
+            DEPOSIT, in -> { depositProcess(in); return DASHBOARD; },
+            WITHDRAW, in -> { withdrawProcess(in); return DASHBOARD; },
+            TRANSFER, in -> { transferProcess(in); return DASHBOARD; },
+            CHECK_BALANCE, in -> { checkAccountBalance(in); return DASHBOARD; },
+            DELETE_ACCOUNT, in -> { deleteAccount(in); return DASHBOARD; },
+            SEARCH_BY_NAME, in -> { searchByName(in); return DASHBOARD; },
+            STATEMENT, in -> { statementProcess(in); return DASHBOARD; });
+
+    private static final BackToDashboard BACK_TO_DASHBOARD = new BackToDashboard();
+
+    // Console output of the menu screens, written once per screen. Run with -Dsmartbanking.asyncConsole=true
+    // to have a writer thread do the terminal writes, so a slow terminal does not hold up the console.
+    private static final ConsoleRenderer console =
+            ConsoleRenderer.forStandardOutput(Boolean.getBoolean("smartbanking.asyncConsole"));
+
+    // Holds every open account, indexed by account number. Once loaded it is only used through engine.
+    private static AccountStore accountStore = new AccountStore();
+
+    // Thread-safe banking operations over accountStore, available once recovery has finished.
+    private static BankingEngine engine;
+
+    // Files that keep the accounts across restarts. A snapshot is taken every SNAPSHOT_INTERVAL journal
+    // records, so recovery replays at most that many records on top of the last snapshot.
+    private static final Path DATA_DIR = Paths.get(System.getProperty("smartbanking.data", "data"));
+    private static final Path SNAPSHOT_FILE = DATA_DIR.resolve("accounts.snapshot");
+    private static final Path JOURNAL_FILE = DATA_DIR.resolve("transactions.journal");
+    private static final Path HISTORY_FILE = DATA_DIR.resolve("transactions.history");
+    private static final long SNAPSHOT_INTERVAL = 100_000;
+
+    // Operation metrics are appended to STATS_FILE every STATS_INTERVAL seconds; 0 turns the dump off.
+    private static final Path STATS_FILE = DATA_DIR.resolve("stats.log");
+    private static final long STATS_INTERVAL = Long.getLong("smartbanking.statsInterval", 60);
+
+    // How the engine keeps balance updates safe between sessions, STRIPED_LOCKS or LOCK_FREE.
+    private static final BankingEngine.Mode ENGINE_MODE =
+            BankingEngine.Mode.valueOf(System.getProperty("smartbanking.mode", "STRIPED_LOCKS"));
+
+    // Velocity limits on withdrawals and outgoing transfers per account, as <count>,<amount>,<seconds>, e.g.
+    // -Dsmartbanking.velocityLimit=10,50000,3600; none by default.
+    private static final String VELOCITY_LIMIT = System.getProperty("smartbanking.velocityLimit");
+
+    // Interest accrual and maintenance fee run on every account, as <interest percent>,<fee>,<seconds>, e.g.
+    // -Dsmartbanking.accrual=0.01,25,86400 for 0.01% interest and LKR 25.00 a day; none by default.
+    private static final String ACCRUAL = System.getProperty("smartbanking.accrual");
+
+    // Secret that ShardedBank sends to a shard to be let through with transfers between shards, which a shard
+    // needs: -Dsmartbanking.shardSecret=<secret>, or the SMARTBANKING_SHARD_SECRET environment variable, which
+    // keeps it out of the process list.
+    private static final String SHARD_SECRET = System.getProperty("smartbanking.shardSecret",
+            System.getenv("SMARTBANKING_SHARD_SECRET"));
+
+    // Released once the snapshot and journal have been loaded into accountStore.
+    private static final CountDownLatch recovered = new CountDownLatch(1);
+
+    // Mapped snapshot that answers balance checks while accountStore is still loading. It is only used
+    // when the journal is empty, i.e. the snapshot is the latest state, and is cleared once loading is done.
+    private static volatile Snapshot loadingSnapshot;
+
+    // Console input, shared by every screen. Running out of input ends the app as Z does.
+    private static ConsoleInput input;
+
+    // Set when the console is driven from a replay file, to report how fast it was replayed at the end.
+    private static long replayStartNanos;
 
     // Entry point of the Smart Banking application.
+    // Run with --server [port] to serve the banking operations over TCP instead of the console,
+    // with --shard <index> <shards> [port] to serve one shard of a ShardedBank,
+    // with --batch <file> [threads] to apply a transaction file and exit,
+    // or with --replay <file> to drive the console menus from the lines of a file as fast as they are read.
     public static void main(String[] args) {
-        runSmartBankingApp();
+        if (args.length > 0 && args[0].equals("--shard") && (SHARD_SECRET == null || SHARD_SECRET.isEmpty())) {
+            throw new IllegalArgumentException("A shard needs a secret: set SMARTBANKING_SHARD_SECRET or -Dsmartbanking.shardSecret");
+        }
+        recoverAccounts();
+        if (args.length > 0 && args[0].equals("--server")) {
+            runServer(args.length > 1 ? Integer.parseInt(args[1]) : 7070, false);
+        } else if (args.length > 2 && args[0].equals("--shard")) {
+            int shard = Integer.parseInt(args[1]);
+            ShardRing ring = new ShardRing(Integer.parseInt(args[2]));
+            awaitRecovery();
+            // New accounts only get numbers this shard owns, so shards never issue the same number
+            engine.setKeyFilter(key -> ring.shardOf(key) == shard);
+            runServer(args.length > 3 ? Integer.parseInt(args[3]) : ShardedBank.DEFAULT_BASE_PORT + shard, true);
+        } else if (args.length > 1 && args[0].equals("--batch")) {
+            runBatch(Paths.get(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+        } else if (args.length > 1 && args[0].equals("--replay")) {
+            try {
+                input = new ConsoleInput(console.flushingInput(Files.newInputStream(Paths.get(args[1]))), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // As in batch mode, changes are synced to the journal at the end rather than one by one
+            awaitRecovery();
+            engine.deferJournalSync(true);
+            replayStartNanos = System.nanoTime();
+            runSmartBankingApp();
+        } else {
+            input = new ConsoleInput(console.flushingInput(System.in), Charset.defaultCharset());
+            runSmartBankingApp();
+        }
+    }
+
+    // Serves every connected client from the shared engine until the process is stopped.
+    private static void runServer(int port, boolean shard) {
+        awaitRecovery();
+        Runtime.getRuntime().addShutdownHook(new Thread(engine::close, "shutdown"));
+        new BankingServer(engine, port, shard, SHARD_SECRET).serve();
+    }
+
+    // Applies a transaction file, printing each rejected row and then the totals.
+    private static void runBatch(Path file, int threads) {
+        awaitRecovery();
+        BatchProcessor.Summary summary = new BatchProcessor(engine, threads, System.out).process(file);
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("%d rows: %d applied, %d rejected in %.1f s (%.0f rows/s, %d MB heap)%n",
+                summary.rows, summary.applied, summary.rejected, summary.elapsedNanos / 1e9, summary.rowsPerSecond(),
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+        shutdown();
     }
 
     //Implement the core logic of the Smart Banking App, including user interactions, menu navigation, and handling various banking operations.
+    //Each turn of the loop draws the current screen and runs its entry in SCREENS, which returns the next screen.
+    //Going back to the dashboard with D unwinds to this loop instead of starting a new one, so the stack stays
+    //the same depth however long the session runs.
     private static void runSmartBankingApp() {
         
         screen = DASHBOARD;
-        Scanner scanner = new Scanner(System.in);
         
-        do {
-            clearScreen();
-            printHeader(screen);
-
-            switch (screen) {
-                case DASHBOARD:
-                    int option;
-
-                    //Try to get the user's menu choice using the getMenuChoice method. 
-                    //If an InputMismatchException is caught, display an error message.
-                    try {
-                        option = getMenuChoice(scanner);
-                    } catch (InputMismatchException e) {
-                        scanner.nextLine(); // Clear the invalid input from the scanner buffer
-                        continue; // Continue to the next iteration of the loop
-                    }
-
-                    switch (option) {
-                        case 1:
-                            screen = OPEN_ACCOUNT;
-                            break;
-                        case 2:
-                            screen = DEPOSIT;
-                            break;
-                        case 3:
-                            screen = WITHDRAW;
-                            break;
-
-                        case 4:
-                            screen = TRANSFER;
-                            break;
-                        case 5:
-                            screen = CHECK_BALANCE;
-                            break;
-
-                        case 6:
-                            screen = DELETE_ACCOUNT;
-                            break;
-
-                        case 7:
-                            scanner.close();
-                            clearScreen();
-                            System.out.println("Exiting the Smart Banking App...");
-                            System.exit(0);
-                            break;
-
-                        default:
-                            continue;
-                    }
-                    break;
-
-                case OPEN_ACCOUNT:
-                    openAccountProcess(scanner);
-                    screen = DASHBOARD;
-                    break;
-
-                case DEPOSIT:
-                    depositProcess(scanner);
-                    screen = DASHBOARD;
-                    break;
-
-                case WITHDRAW:
-                    withdrawProcess(scanner);
-                    screen = DASHBOARD;
-                    break;
-
-                case TRANSFER:
-                    transferProcess(scanner);
-                    screen = DASHBOARD;
-                    break;
-
-                case CHECK_BALANCE:
-                    checkAccountBalance(scanner);
-                    screen = DASHBOARD;
-                    break;
-
-                case DELETE_ACCOUNT:
-                    deleteAccount(scanner);
-                    screen = DASHBOARD;
-                    break;
-                
-                default:
-                    scanner.close();
-                    System.exit(0);    
+        while (true) {
+            printScreen(screen);
+            try {
+                screen = SCREENS.get(screen).run(input);
+            } catch (BackToDashboard e) {
+                screen = DASHBOARD;
             }
+        }
+    }
 
-        } while (true);
+    // One screen of the console: runs it to the end and returns the screen to show next.
+    private interface Screen {
+        String run(ConsoleInput input);
+    }
+
+    // Thrown by the D shortcut to leave the current screen for the dashboard. It is only ever caught by
+    // runSmartBankingApp, so one instance without a stack trace serves every time.
+    private static final class BackToDashboard extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BackToDashboard() {
+            super(null, null, false, false);
+        }
+    }
+
+    //Shows the menu and returns the screen of the chosen option; anything that is not a menu option redraws the dashboard.
+    private static String dashboard(ConsoleInput input) {
+        int option = getMenuChoice(input);
+        if (option == EXIT_OPTION) exit("Exiting the Smart Banking App...");
+        return option > 0 && option < MENU_SCREENS.length ? MENU_SCREENS[option] : DASHBOARD;
+    }
+
+    // Restores the accounts from the last snapshot and replays the journal records written after it.
+    // Loading runs in the background so the dashboard is shown straight away.
+    private static void recoverAccounts() {
+        Snapshot snapshot = Snapshot.map(SNAPSHOT_FILE);
+        if (snapshot != null && isJournalEmpty()) loadingSnapshot = snapshot;
+
+        Thread loader = new Thread(() -> {
+            long snapshotLsn = 0;
+            if (snapshot != null) {
+                snapshot.loadInto(accountStore);
+                snapshotLsn = snapshot.lsn();
+            }
+            TransactionHistory history = TransactionHistory.open(HISTORY_FILE);
+            Journal journal = Journal.open(JOURNAL_FILE, accountStore, snapshotLsn, history);
+            engine = new BankingEngine(ENGINE_MODE, accountStore, journal, history, SNAPSHOT_FILE, SNAPSHOT_INTERVAL);
+            if (VELOCITY_LIMIT != null) engine.setVelocityLimits(VelocityLimits.parse(VELOCITY_LIMIT));
+            if (ACCRUAL != null) startAccrual(ACCRUAL);
+            engine.metrics().registerMBean();
+            if (STATS_INTERVAL > 0) engine.metrics().startDump(STATS_FILE, STATS_INTERVAL);
+            loadingSnapshot = null;
+            recovered.countDown();
+        }, "account-loader");
+        loader.start();
+    }
+
+    // Splits the period off an accrual setting and schedules the runs on the engine.
+    private static void startAccrual(String setting) {
+        int comma = setting.lastIndexOf(',');
+        long seconds = comma < 0 ? 0 : Long.parseLong(setting.substring(comma + 1).trim());
+        if (seconds < 1) throw new IllegalArgumentException("Interest accrual must be <interest percent>,<fee>,<seconds>: " + setting);
+        InterestAccrual.parse(setting.substring(0, comma)).start(engine, seconds);
+    }
+
+    // Waits for recoverAccounts to finish loading accountStore.
+    private static void awaitRecovery() {
+        try {
+            recovered.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading accounts", e);
+        }
+    }
+
+    private static boolean isJournalEmpty() {
+        try {
+            return !Files.exists(JOURNAL_FILE) || Files.size(JOURNAL_FILE) == 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Clears the screen, prints the message and stops the app, reporting the replay speed and heap in use when
+    // replaying a file.
+    private static void exit(String message) {
+        clearScreen();
+        console.println(message);
+        shutdown();
+        if (replayStartNanos != 0) {
+            // On stderr, so it still shows when the screens are sent to /dev/null
+            long elapsed = System.nanoTime() - replayStartNanos;
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            System.err.printf("Replayed %d lines in %d ms (%.0f lines/s), %d KB heap in use%n", input.lines(),
+                    elapsed / 1_000_000, input.lines() * 1e9 / elapsed, (runtime.totalMemory() - runtime.freeMemory()) >> 10);
+        }
+        System.exit(0);
+    }
+
+    // Leaves a fresh snapshot behind so the next start does not have to replay the journal.
+    private static void shutdown() {
+        console.close();
+        awaitRecovery();
+        engine.close();
     }
 
     // Clear the terminal
     private static void clearScreen() {
-        System.out.print("\033[H\033[2J"); 
-        System.out.flush();
+        console.clear();
     }
 
-    // Format and print the provided title as a header
-    private static void printHeader(String title) {
-        String COLOR_BLUE_BOLD = "\033[34;1m";
-        String RESET = "\033[0m";
-
-        String header = "-".repeat(50) + "\n" +
-                " ".repeat((40 - title.length() + 7) / 2) + COLOR_BLUE_BOLD + title + RESET + "\n" +
-                "-".repeat(50);
-        System.out.println(header);
+    // Clear the terminal and print the provided title as a header
+    private static void printScreen(String title) {
+        console.frame(title);
     }
 
     // Print the provided error message to inform the user of an issue.
     private static void printErrorMsg(String message) {
-        String COLOR_RED_BOLD = "\033[31;1m";
-        String RESET = "\033[0m";
-        System.out.println(COLOR_RED_BOLD + message + RESET + "\n");
+        console.error(message);
     }
 
     // Print the provided success messages to inform the user.
     private static void printSuccessMsg(String message) {
-        String COLOR_GREEN_BOLD = "\033[32;1m";
-        String RESET = "\033[0m";
-        System.out.println(COLOR_GREEN_BOLD + message + RESET + "\n");
+        console.success(message);
     }
 
 
-    //Retrieves and returns the user's choice from a menu.
-    private static int getMenuChoice(Scanner scanner) {
-        System.out.println("[1]. Open New Account");
-        System.out.println("[2]. Deposit");
-        System.out.println("[3]. Withdraw");
-        System.out.println("[4]. Transfer");
-        System.out.println("[5]. Check Account Balance");
-        System.out.println("[6]. Delete Account");
-        System.out.println("[7]. Exit");
-        System.out.print("Enter an option to continue > ");
-        return scanner.nextInt();
+    //Retrieves and returns the user's choice from a menu, or -1 if it is not a number.
+    private static int getMenuChoice(ConsoleInput input) {
+        console.print(MENU);
+        readInput(input);
+        return input.parseInt();
+    }
+
+    // Reads the next line of input and acts on the Z and D shortcuts, so every prompt handles them the same way.
+    // A line too long to keep is refused and the next one read in its place.
+    private static void readInput(ConsoleInput input) {
+        while (true) {
+            if (!input.readLine()) exit("End of input, exiting the Smart Banking App...");
+            if (!input.isTooLong()) break;
+            printErrorMsg("Input is too long. Please enter at most " + ConsoleInput.MAX_LINE_LENGTH + " characters");
+        }
+        handleShortcuts(input.shortcut());
     }
 
     // Handles special user input shortcuts.
-    private static void handleShortcuts(String userInput) {
-        if (userInput.equalsIgnoreCase("Z")) System.exit(0); // Gracefully terminate the application    
-        else if (userInput.equalsIgnoreCase("D")) {
-            runSmartBankingApp();
+    private static void handleShortcuts(int shortcut) {
+        if (shortcut == ConsoleInput.EXIT) { // Gracefully terminate the application
+            shutdown();
+            System.exit(0);
+        }
+        else if (shortcut == ConsoleInput.DASHBOARD) {
+            throw BACK_TO_DASHBOARD;
         }
     }
 
-    //Generates a new account number based on the current account count.
-    private static String generateAccountNumber(int accountInfoLength) {
-        return String.format("SDB-S%05d", accountInfoLength + 1);
+    //Generates a new account number from the next unused account key, so deleted numbers are never reissued.
+    private static String generateAccountNumber(int nextKey) {
+        return AccountStore.formatAccountNumber(nextKey);
     }
 
     //Prompts the user to enter and validates a name.
-    private static String getValidName(Scanner scanner) {
+    private static String getValidName(ConsoleInput input) {
         boolean valid;
         String name;
         do {
             valid = true;
-            System.out.print("Enter Account Holder Name: ");
-            name = scanner.nextLine().strip();
+            console.print("Enter Account Holder Name: ");
+            readInput(input);
+            name = input.text();
 
-            // Prompt user to press Z and Enter to gracefully exit the application
-            //Handles the user input to navigate back to the main window if 'D' or 'd' is pressed.
-            handleShortcuts(name);
-            
             if (name.isBlank()) {
                 printErrorMsg("Name can't be empty");
                 valid = false;
-                continue;
-            }
-
-            for (int i = 0; i < name.length(); i++) {
-                if (!(Character.isLetter(name.charAt(i)) || Character.isSpaceChar(name.charAt(i)))) {
-                    printErrorMsg("Invalid Name");
-                    valid = false;
-                    break;
-                }
+            } else if (!BankingEngine.isValidName(name)) {
+                printErrorMsg("Invalid Name");
+                valid = false;
             }
         } while (!valid);
 
@@ -208,273 +374,223 @@ public class SmartBankingApp{
 
 
     //Prompts the user to enter and validates an initial deposit amount.
-    private static double getValidInitialDeposit(Scanner scanner) {
+    private static long getValidInitialDeposit(ConsoleInput input) {
         boolean valid;
-        double initialDeposit = 0.0;
+        long initialDeposit = 0;
 
         do {
             valid = true;
-            System.out.print("Enter Initial Deposit (minimum 5000): ");
-            String input = scanner.nextLine();
-
-            
-            // Prompt user to press Z and Enter to gracefully exit the application
-            //Handles the user input to navigate back to the main window if 'D' or 'd' is pressed.
-            handleShortcuts(input);
-            
-            try {
-                initialDeposit = Double.parseDouble(input);
+            console.print("Enter Initial Deposit (minimum 5000): ");
+            readInput(input);
 
-                if (initialDeposit < 5000) {
-                    printErrorMsg("Initial deposit must be at least 5000");
-                    valid = false;
-                }
-            } catch (NumberFormatException e) {
+            initialDeposit = input.parseCents();
+            if (initialDeposit < 0) {
                 printErrorMsg("Invalid input. Please enter a valid amount");
                 valid = false;
+            } else if (initialDeposit < BankingEngine.MIN_INITIAL_DEPOSIT) {
+                printErrorMsg("Initial deposit must be at least 5000");
+                valid = false;
             }
         } while (!valid);
 
         return initialDeposit;
     }
 
-    private static boolean askForNewEntry(Scanner scanner, String action){
-        if (scanner.nextLine().toUpperCase().strip().equals("Y")) {
-            clearScreen();
-            printHeader(DEPOSIT);
+    private static boolean askForNewEntry(ConsoleInput input, String action){
+        readInput(input);
+        if (input.isYes()) {
+            printScreen(action);
             return true;
         }else{   
             return(false);         
         }
     }
 
-    private static void updateAccountBalance(String accountNumber, double newBalance) {
-        for (String[] account : accountInfo) {
-            if (account[1].equals(accountNumber)) {
-                account[2] = String.valueOf(newBalance);
-                break;
-            }
-        }
-    }
-
     //This method facilitates the process of opening a new account by gathering and storing account information.
-    private static void openAccountProcess(Scanner scanner) {
-        scanner.nextLine();
+    private static void openAccountProcess(ConsoleInput input) {
+        awaitRecovery();
         do {
             
-            String newAccountNumber = generateAccountNumber(accountInfo.length);
-            System.out.println("New Account Number: " + newAccountNumber);
+            // Another session may open an account first, so the number actually issued is confirmed below
+            console.println("New Account Number: " + generateAccountNumber(engine.nextKey()));
             
-            String name = getValidName(scanner);
-            double initialDeposit = getValidInitialDeposit(scanner);
+            String name = getValidName(input);
+            long initialDeposit = getValidInitialDeposit(input);
 
-            String[][] newAccountInfo = new String[accountInfo.length + 1][3];
-
-            // Copy existing accountInfo to newAccountInfo
-            for (int i = 0; i < accountInfo.length; i++) {
-                newAccountInfo[i][0] = accountInfo[i][0];
-                newAccountInfo[i][1] = accountInfo[i][1];
-                newAccountInfo[i][2] = accountInfo[i][2];
-            }
-            // Add new account information to the last row
-            newAccountInfo[accountInfo.length][0] = name;
-            newAccountInfo[accountInfo.length][1] = newAccountNumber;
-            newAccountInfo[accountInfo.length][2] = String.valueOf(initialDeposit);
-
-            // Update accountInfo to the new array
-            accountInfo = newAccountInfo;
+            String newAccountNumber = generateAccountNumber((int) engine.openAccount(name, initialDeposit));
 
             printSuccessMsg( newAccountNumber + " Account number " + "for " + name + " added successfully.");
-            System.out.print("Do you want to open another account (Y/n)? ");
-            if (!askForNewEntry(scanner, OPEN_ACCOUNT)) break;
+            console.print("Do you want to open another account (Y/n)? ");
+            if (!askForNewEntry(input, OPEN_ACCOUNT)) break;
         } while (true);
     }
 
 
     // Prompts the user to enter and validates an account number, ensuring its uniqueness.
-    private static String getValidAccountNumber(Scanner scanner) {
-        String accountNumber;
+    private static String getValidAccountNumber(ConsoleInput input) {
+        int key;
 
         while (true) {
-            System.out.print("Enter Account Number: ");
-            accountNumber = scanner.nextLine().strip().toUpperCase();
-
-            
-            // Prompt user to press Z and Enter to gracefully exit the application
-            //Handles the user input to navigate back to the main window if 'D' or 'd' is pressed.
-            handleShortcuts(accountNumber);
+            console.print("Enter Account Number: ");
+            readInput(input);
 
-            // Validate the account number format "S-XXXXX"
-            if (!accountNumber.startsWith("SDB-S") || accountNumber.length() != 10) {
+            // Validate the account number format "SDB-SXXXXX"
+            key = input.parseAccountKey();
+            if (key < 0) {
                 printErrorMsg("Invalid account number format. Please use SDB-SXXXXX format.");
                 continue;
             }
 
-            boolean accountFound = false;
-            for (String[] account : accountInfo) {
-                if (account[1].equals(accountNumber)) {
-                    accountFound = true;
-                    break;
-                }
-            }
-
-            if (!accountFound) printErrorMsg("Account not found"); else break;
+            if (!accountExists(key)) printErrorMsg("Account not found"); else break;
 
         }
-        return accountNumber;
+        return AccountStore.formatAccountNumber(key);
     }
 
     //Prompts the user to enter and validates a deposit amount.    
-    private static double getDepositAmount(Scanner scanner) {
-        double depositAmount;
+    private static long getDepositAmount(ConsoleInput input) {
+        long depositAmount;
     
         while (true) {
-            System.out.print("Enter Deposit Amount (minimum 500): ");
-            String input = scanner.nextLine();
+            console.print("Enter Deposit Amount (minimum 500): ");
+            readInput(input);
 
-            // Prompt user to press Z and Enter to gracefully exit the application
-            //Handles the user input to navigate back to the main window if 'D' or 'd' is pressed.
-            handleShortcuts(input);
-            
-            try {
-                depositAmount = Double.parseDouble(input);
-                if (depositAmount < 500) printErrorMsg("Deposit amount must be at least 500"); else break;
-            } catch (NumberFormatException e) {
-                printErrorMsg("Invalid input. Please enter a valid amount");
-            }
+            depositAmount = input.parseCents();
+            if (depositAmount < 0) printErrorMsg("Invalid input. Please enter a valid amount");
+            else if (depositAmount < BankingEngine.MIN_DEPOSIT) printErrorMsg("Deposit amount must be at least 500");
+            else break;
         }
         return depositAmount;
     }
 
 
+    // Checks whether an account exists, answering from the mapped snapshot while accounts are still loading.
+    private static boolean accountExists(int key) {
+        Snapshot snapshot = loadingSnapshot;
+        if (snapshot != null) return snapshot.find(key) >= 0;
+        awaitRecovery();
+        return engine.exists(key);
+    }
+
     private static String getNameForAccountNumber(String accountNumber) {
-        for (String[] account : accountInfo) {
-            if (account[1].equals(accountNumber)) {
-                return account[0]; // Name is stored in the first column
-            }
+        int key = AccountStore.parseKey(accountNumber);
+        Snapshot snapshot = loadingSnapshot;
+        if (snapshot != null) {
+            int record = snapshot.find(key);
+            return record < 0 ? null : snapshot.nameAt(record);
         }
-        return null; // Account not found
+        awaitRecovery();
+        return engine.name(key); // null if the account is not found
     }
 
 
-     //Retrieves the current balance of a specific account.
-    private static double getAccountBalance(String accountNumber) {
-        for (String[] account : accountInfo) {
-            if (account[1].equals(accountNumber)) {
-                return Double.parseDouble(account[2]);
-            }
+     //Retrieves the current balance of a specific account in cents.
+    private static long getAccountBalance(String accountNumber) {
+        int key = AccountStore.parseKey(accountNumber);
+        Snapshot snapshot = loadingSnapshot;
+        if (snapshot != null) {
+            int record = snapshot.find(key);
+            return record < 0 ? 0 : snapshot.balanceAt(record);
         }
-        return 0.0; // Account not found (should handle this appropriately in your context)
+        awaitRecovery();
+        long balance = engine.balance(key);
+        return balance < 0 ? 0 : balance; // 0 if the account is not found
     }
 
 
     //Initiates the process for depositing funds into an account.
-    private static void depositProcess(Scanner scanner) {
-        scanner.nextLine();
+    private static void depositProcess(ConsoleInput input) {
+        awaitRecovery();
         do{
-            String accountNumber = getValidAccountNumber(scanner);
+            String accountNumber = getValidAccountNumber(input);
 
-            System.out.println("Account Holder Name: " + getNameForAccountNumber(accountNumber));
+            console.println("Account Holder Name: " + getNameForAccountNumber(accountNumber));
 
-            double currentBalance = getAccountBalance(accountNumber);
-            System.out.println("Current Balance: LKR " + currentBalance + "\n");
+            long currentBalance = getAccountBalance(accountNumber);
+            console.println("Current Balance: LKR " + Money.format(currentBalance) + "\n");
         
-            double depositAmount = getDepositAmount(scanner);
+            long depositAmount = getDepositAmount(input);
         
-            double newBalance = currentBalance + depositAmount;
-            updateAccountBalance(accountNumber, newBalance);
+            long newBalance = engine.deposit(AccountStore.parseKey(accountNumber), depositAmount);
 
-            printSuccessMsg("Deposit Successful!\nNew Account Balance: LKR" + newBalance + "\n");
+            if (newBalance < 0) printErrorMsg(BankingEngine.rejectionMessage(newBalance));
+            else printSuccessMsg("Deposit Successful!\nNew Account Balance: LKR" + Money.format(newBalance) + "\n");
         
-            System.out.println("Do you want to make another deposit (Y/n)? ");
-            if (!askForNewEntry(scanner, DEPOSIT)) break;
+            console.println("Do you want to make another deposit (Y/n)? ");
+            if (!askForNewEntry(input, DEPOSIT)) break;
         }while(true);
     }
 
     //Prompts the user to enter and validates a withdrawal amount, considering the current account balance.
-    private static double getWithdrawAmount(Scanner scanner, double currentBalance) {
-        double withdrawAmount;
+    private static long getWithdrawAmount(ConsoleInput input, long currentBalance) {
+        long withdrawAmount;
     
         while (true) {
-            System.out.print("Enter Withdraw Amount (minimum 100): ");
-
-            String input = scanner.nextLine();
-
-            // Prompt user to press Z and Enter to gracefully exit the application
-            //Handles the user input to navigate back to the main window if 'D' or 'd' is pressed.
-            handleShortcuts(input);
+            console.print("Enter Withdraw Amount (minimum 100): ");
+            readInput(input);
 
-            try {
-                withdrawAmount = Double.parseDouble(input);
-                if (withdrawAmount < 100) {
-                    printErrorMsg("Withdraw amount must be at least 100");
-                } else if (currentBalance - withdrawAmount < 500) {
-                    printErrorMsg("Insufficient funds");
-                    withdrawAmount = -1.0; // Signal for insufficient funds
-                } else {
-                    break;
-                }
-            } catch (NumberFormatException e) {
+            withdrawAmount = input.parseCents();
+            if (withdrawAmount < 0) {
                 printErrorMsg("Invalid input. Please enter a valid amount");
+            } else if (withdrawAmount < BankingEngine.MIN_WITHDRAW) {
+                printErrorMsg("Withdraw amount must be at least 100");
+            } else if (currentBalance - withdrawAmount < BankingEngine.MIN_BALANCE) {
+                printErrorMsg("Insufficient funds");
+            } else {
+                break;
             }
         }
         return withdrawAmount;
     }
 
     //Initiates the process for withdrawing funds from an account.
-    private static void withdrawProcess(Scanner scanner) {
-        scanner.nextLine();
+    private static void withdrawProcess(ConsoleInput input) {
+        awaitRecovery();
         do{
-            String accountNumber = getValidAccountNumber(scanner);
-            System.out.println("Account Holder Name :"+ getNameForAccountNumber(accountNumber));
+            String accountNumber = getValidAccountNumber(input);
+            console.println("Account Holder Name :"+ getNameForAccountNumber(accountNumber));
 
-            double currentBalance = getAccountBalance(accountNumber);
-            System.out.println("Current Balance :" + currentBalance);
-            System.out.println("Available Balance for Withdraw: LKR " + (currentBalance - 500) + "\n");
+            long currentBalance = getAccountBalance(accountNumber);
+            console.println("Current Balance :" + Money.format(currentBalance));
+            console.println("Available Balance for Withdraw: LKR " + Money.format(currentBalance - BankingEngine.MIN_BALANCE) + "\n");
 
             //Ask for a withdrawal. If the user's input is 'N' then go to the DASHBOARD.
-            System.out.println("Do you want to make a withdrawal (Y/n)? ");
-            if (!scanner.nextLine().toUpperCase().strip().equals("Y")) break;
+            console.println("Do you want to make a withdrawal (Y/n)? ");
+            readInput(input);
+            if (!input.isYes()) break;
     
-            double withdrawAmount = getWithdrawAmount(scanner, currentBalance);
-            if (withdrawAmount == -1.0) return; // Insufficient funds
+            long withdrawAmount = getWithdrawAmount(input, currentBalance);
         
-            double newBalance = currentBalance - withdrawAmount;
+            // The balance may have changed in another session since it was shown, so the engine checks again
+            long newBalance = engine.withdraw(AccountStore.parseKey(accountNumber), withdrawAmount);
 
-            updateAccountBalance(accountNumber, newBalance);
-
-            printSuccessMsg("Withdrawal Successful!\nNew Balance: LKR " + newBalance + "\n");
+            if (newBalance < 0) printErrorMsg(BankingEngine.rejectionMessage(newBalance));
+            else printSuccessMsg("Withdrawal Successful!\nNew Balance: LKR " + Money.format(newBalance) + "\n");
         
-            System.out.println("Do you want to make another withdrawal (Y/n)? ");
-            if (!askForNewEntry(scanner, WITHDRAW)) break;
+            console.println("Do you want to make another withdrawal (Y/n)? ");
+            if (!askForNewEntry(input, WITHDRAW)) break;
 
         }while(true);
     }
     
 
     //Prompts the user to enter and validates a transfer amount, considering the balance of the source account.
-    private static double getTransferAmount(Scanner scanner, double fromAccountBalance) {
-        double transferAmount;
-
-        String input = scanner.nextLine();
+    private static long getTransferAmount(ConsoleInput input, long fromAccountBalance) {
+        long transferAmount;
 
-        // Prompt user to press Z and Enter to gracefully exit the application
-        //Handles the user input to navigate back to the main window if 'D' or 'd' is pressed.
-        handleShortcuts(input);
-    
         while (true) {
-            System.out.print("Enter Transfer Amount (minimum 100): ");
-            try {
-                transferAmount = Double.parseDouble(input);
-                if (transferAmount < 100) {
-                    printErrorMsg("Transfer amount must be at least 100");
-                } else if (fromAccountBalance - transferAmount < 500) {
-                    printErrorMsg("Insufficient funds");
-                } else {
-                    break;
-                }
-            } catch (NumberFormatException e) {
+            console.print("Enter Transfer Amount (minimum 100): ");
+            readInput(input);
+
+            transferAmount = input.parseCents();
+            if (transferAmount < 0) {
                 printErrorMsg("Invalid input. Please enter a valid amount");
+            } else if (transferAmount < BankingEngine.MIN_TRANSFER) {
+                printErrorMsg("Transfer amount must be at least 100");
+            } else if (fromAccountBalance - transferAmount - Money.transferFee(transferAmount) < BankingEngine.MIN_BALANCE) {
+                printErrorMsg("Insufficient funds");
+            } else {
+                break;
             }
         }
     
@@ -483,104 +599,204 @@ public class SmartBankingApp{
 
 
     //Initiates the process for transferring funds between accounts.
-    private static void transferProcess(Scanner scanner) {
-        scanner.nextLine();
+    private static void transferProcess(ConsoleInput input) {
+        awaitRecovery();
         do{
-            System.out.println("From Account:");
-            String fromAccountNumber = getValidAccountNumber(scanner);
-            System.out.println("From Account Holder Name :" + getNameForAccountNumber(fromAccountNumber));
-            double fromAccountBalance = getAccountBalance(fromAccountNumber);
-            System.out.println("From Account Number: " + fromAccountNumber);
-            System.out.println("Current Balance: LKR " + fromAccountBalance + "\n");
-
-            System.out.println("To Account:");
-            String toAccountNumber = getValidAccountNumber(scanner);
-            System.out.println("To Account Holder Name :" + getNameForAccountNumber(toAccountNumber));
-            double toAccountBalance = getAccountBalance(toAccountNumber);
-            System.out.println("To Account Number: " + toAccountNumber);
-            System.out.println("Current Balance: LKR " + toAccountBalance + "\n");
+            console.println("From Account:");
+            String fromAccountNumber = getValidAccountNumber(input);
+            console.println("From Account Holder Name :" + getNameForAccountNumber(fromAccountNumber));
+            long fromAccountBalance = getAccountBalance(fromAccountNumber);
+            console.println("From Account Number: " + fromAccountNumber);
+            console.println("Current Balance: LKR " + Money.format(fromAccountBalance) + "\n");
+
+            console.println("To Account:");
+            String toAccountNumber = getValidAccountNumber(input);
+            console.println("To Account Holder Name :" + getNameForAccountNumber(toAccountNumber));
+            long toAccountBalance = getAccountBalance(toAccountNumber);
+            console.println("To Account Number: " + toAccountNumber);
+            console.println("Current Balance: LKR " + Money.format(toAccountBalance) + "\n");
         
-            double transferAmount = getTransferAmount(scanner, fromAccountBalance);
+            long transferAmount = getTransferAmount(input, fromAccountBalance);
         
-            if (transferAmount == -1.0) {
-                return; // Insufficient funds
+            fromAccountBalance = engine.transfer(AccountStore.parseKey(fromAccountNumber), AccountStore.parseKey(toAccountNumber), transferAmount);
+
+            if (fromAccountBalance < 0) {
+                printErrorMsg(BankingEngine.rejectionMessage(fromAccountBalance));
+            } else {
+                toAccountBalance = getAccountBalance(toAccountNumber);
+                printSuccessMsg("Transfer successful!");
+                printErrorMsg("2% fee is deducted from the account");
+                console.println("New Balance of " + fromAccountNumber + " (From Account): LKR " + Money.format(fromAccountBalance));
+                console.println("New Balance of "+ toAccountNumber+ " (To Account): LKR " + Money.format(toAccountBalance) + "\n");
             }
         
-            fromAccountBalance -= 1.02*transferAmount;
-            updateAccountBalance(fromAccountNumber, fromAccountBalance);
-            toAccountBalance += transferAmount;
-            updateAccountBalance(toAccountNumber, toAccountBalance);
-        
-            printSuccessMsg("Transfer successful!");
-            printErrorMsg("2% fee is deducted from the account");;
-            System.out.println("New Balance of " + fromAccountNumber + " (From Account): LKR " + fromAccountBalance );
-            System.out.println("New Balance of "+ toAccountNumber+ " (To Account): LKR " + toAccountBalance + "\n");
-        
-            System.out.println("Do you want to make another transfer (Y/n)? ");
-            if (!askForNewEntry(scanner, TRANSFER)) break;
+            console.println("Do you want to make another transfer (Y/n)? ");
+            if (!askForNewEntry(input, TRANSFER)) break;
         }while(true);
     }
 
 
     //Initiates the process for checking and displaying the account balance.
-    private static void checkAccountBalance(Scanner scanner) {
-        scanner.nextLine();
+    private static void checkAccountBalance(ConsoleInput input) {
         do{
-            String accountNumber = getValidAccountNumber(scanner);
+            String accountNumber = getValidAccountNumber(input);
 
-            System.out.println("Account Holder Name :"+ getNameForAccountNumber(accountNumber));
+            console.println("Account Holder Name :"+ getNameForAccountNumber(accountNumber));
         
-            double currentBalance = getAccountBalance(accountNumber);
-            System.out.println("Current Account Balance: LKR " + currentBalance );
-            System.out.println("Available Balance for Withdraw: LKR " + (currentBalance - 500) + "\n");
+            long currentBalance = getAccountBalance(accountNumber);
+            console.println("Current Account Balance: LKR " + Money.format(currentBalance));
+            console.println("Available Balance for Withdraw: LKR " + Money.format(currentBalance - BankingEngine.MIN_BALANCE) + "\n");
         
-            System.out.println("Do you want to check another account balance (Y/n)? ");
-            if (!askForNewEntry(scanner, CHECK_BALANCE)) break;
+            console.println("Do you want to check another account balance (Y/n)? ");
+            if (!askForNewEntry(input, CHECK_BALANCE)) break;
         }while(true);
  
     }
 
     //Initiates the process for deleting an account.
-    private static void deleteAccount(Scanner scanner) {
-        scanner.nextLine();
+    private static void deleteAccount(ConsoleInput input) {
+        awaitRecovery();
         do{
-            String accountNumber = getValidAccountNumber(scanner);
+            String accountNumber = getValidAccountNumber(input);
 
             String name = getNameForAccountNumber(accountNumber);
         
-            System.out.println("Account Holder Name :" + name);
+            console.println("Account Holder Name :" + name);
 
-            double currentBalance = getAccountBalance(accountNumber);
-            System.out.println("Current Account Balance: LKR " + currentBalance + "\n");
+            long currentBalance = getAccountBalance(accountNumber);
+            console.println("Current Account Balance: LKR " + Money.format(currentBalance) + "\n");
         
-            System.out.print("Are you sure you want to delete this account (Y/n)? ");
-            String confirmation = scanner.nextLine().toUpperCase().strip();
-        
-            if (confirmation.equals("Y")) {
-                String[][] updatedAccountInfo = new String[accountInfo.length - 1][3];
-                int index = 0;
-                for (String[] account : accountInfo) {
-                    if (!account[1].equals(accountNumber)) {
-                        updatedAccountInfo[index] = account;
-                        index++;
-                    }
-                }
-                accountInfo = updatedAccountInfo;
-                printSuccessMsg("The account with number " + accountNumber + " and name " + name + " has been successfully deleted.");
+            console.print("Are you sure you want to delete this account (Y/n)? ");
+            readInput(input);
+
+            if (input.isYes()) {
+                if (engine.deleteAccount(AccountStore.parseKey(accountNumber)) < 0) printErrorMsg("Account not found");
+                else printSuccessMsg("The account with number " + accountNumber + " and name " + name + " has been successfully deleted.");
             } else {
                 printErrorMsg("Account deletion cancelled.");
             }
         
-            System.out.print("Do you want to delete another account (Y/n)? ");
-            if (!askForNewEntry(scanner, DELETE_ACCOUNT)) break;
+            console.print("Do you want to delete another account (Y/n)? ");
+            if (!askForNewEntry(input, DELETE_ACCOUNT)) break;
             
         }while(true);
     }
-    
-}
 
+    //Lists the accounts whose holder names start with what the user enters, ignoring case.
+    private static void searchByName(ConsoleInput input) {
+        awaitRecovery();
+        do{
+            String prefix;
+            while (true) {
+                console.print("Enter Account Holder Name or the start of it: ");
+                readInput(input);
+                prefix = input.text();
+
+                if (BankingEngine.isValidName(prefix)) break;
+                printErrorMsg("Invalid Name");
+            }
 
+            // Ask for one more than is shown to know whether the list was cut short
+            int[] keys = engine.findByNamePrefix(prefix, SEARCH_RESULTS + 1);
+            if (keys.length == 0) {
+                printErrorMsg("No accounts found");
+            } else {
+                for (int i = 0; i < Math.min(keys.length, SEARCH_RESULTS); i++) {
+                    String name = engine.name(keys[i]);
+                    long balance = engine.balance(keys[i]);
+                    if (name == null || balance < 0) continue; // Deleted in another session since the search
+                    console.println(AccountStore.formatAccountNumber(keys[i]) + "  " + name + "  LKR " + Money.format(balance));
+                }
+                if (keys.length > SEARCH_RESULTS) console.println("More accounts match, enter more of the name to narrow the search.");
+                console.println();
+            }
 
+            console.println("Do you want to search again (Y/n)? ");
+            if (!askForNewEntry(input, SEARCH_BY_NAME)) break;
+        }while(true);
+    }
 
+    //Lists the transactions of an account between two dates, a page at a time.
+    private static void statementProcess(ConsoleInput input) {
+        awaitRecovery();
+        TransactionHistory.Page page = new TransactionHistory.Page(STATEMENT_PAGE_SIZE);
+        do{
+            String accountNumber = getValidAccountNumber(input);
+            console.println("Account Holder Name :" + getNameForAccountNumber(accountNumber));
+
+            LocalDate fromDate = getStatementDate(input, "Enter From Date (yyyy-MM-dd, blank for the first transaction): ");
+            LocalDate toDate = getStatementDate(input, "Enter To Date (yyyy-MM-dd, blank for today): ");
+            ZoneId zone = ZoneId.systemDefault();
+            long from = fromDate == null ? Long.MIN_VALUE : fromDate.atStartOfDay(zone).toInstant().toEpochMilli();
+            long to = toDate == null ? Long.MAX_VALUE : toDate.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+
+            TransactionHistory.Statement statement = engine.statement(AccountStore.parseKey(accountNumber), from, to);
+            boolean any = false;
+            while (statement != null && statement.nextPage(page)) {
+                any = true;
+                for (int i = 0; i < page.size; i++) {
+                    console.printf("%s  %-28s %14s  Balance LKR %s%n",
+                            STATEMENT_TIME.format(Instant.ofEpochMilli(page.timestamps[i]).atZone(zone)),
+                            describeEntry(page.types[i], page.otherKeys[i], page.fees[i]),
+                            describeAmount(page.types[i], page.amounts[i], page.fees[i]),
+                            Money.format(page.balances[i]));
+                }
+                if (page.size < page.capacity()) break;
+                console.print("Show more transactions (Y/n)? ");
+                readInput(input);
+                if (!input.isYes()) break;
+            }
+            if (!any) printErrorMsg("No transactions in this period");
+            console.println();
 
+            console.println("Do you want another statement (Y/n)? ");
+            if (!askForNewEntry(input, STATEMENT)) break;
+        }while(true);
+    }
+
+    // Prompts for a date in yyyy-MM-dd format and returns null if it is left blank.
+    private static LocalDate getStatementDate(ConsoleInput input, String prompt) {
+        while (true) {
+            console.print(prompt);
+            readInput(input);
+
+            if (input.isEmpty()) return null;
+            try {
+                return LocalDate.parse(input.line());
+            } catch (DateTimeParseException e) {
+                printErrorMsg("Invalid date. Please use yyyy-MM-dd format.");
+            }
+        }
+    }
 
+    // Signed change to the balance made by an entry.
+    private static String describeAmount(byte type, long amount, long fee) {
+        switch (type) {
+            case TransactionHistory.DEPOSIT:
+            case TransactionHistory.TRANSFER_IN:
+            case TransactionHistory.OPEN:
+            case TransactionHistory.REFUND:
+                return "+" + Money.format(amount + fee);
+            case TransactionHistory.INTEREST:
+                return (amount >= fee ? "+" : "-") + Money.format(Math.abs(amount - fee));
+            default:
+                return "-" + Money.format(amount + fee);
+        }
+    }
+
+    private static String describeEntry(byte type, int otherKey, long fee) {
+        switch (type) {
+            case TransactionHistory.OPEN: return "Account opened";
+            case TransactionHistory.DEPOSIT: return "Deposit";
+            case TransactionHistory.WITHDRAW: return "Withdrawal";
+            case TransactionHistory.TRANSFER_OUT:
+                return "Transfer to " + AccountStore.formatAccountNumber(otherKey) + (fee > 0 ? " +fee" : "");
+            case TransactionHistory.TRANSFER_IN: return "Transfer from " + AccountStore.formatAccountNumber(otherKey);
+            case TransactionHistory.CLOSE: return "Account closed";
+            case TransactionHistory.INTEREST: return fee > 0 ? "Interest less maintenance fee" : "Interest";
+            case TransactionHistory.REFUND: return "Refund of transfer to " + AccountStore.formatAccountNumber(otherKey);
+            default: return "Unknown";
+        }
+    }
+
+}
@@ -0,0 +1,1171 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Micro benchmarks for the Smart Banking App storage and processing paths.
+// Run with: java SmartBankingBenchmark [operations|lookup|open|journal|snapshot|contention|scheduler|names|history|aggregates|idempotency|console|navigation|shards|table|velocity|accrual]
+public class SmartBankingBenchmark {
+
+    private static final int[] ACCOUNT_COUNTS = {1_000, 10_000, 100_000, 1_000_000};
+    private static final int LOOKUPS = 5_000_000;
+    private static final int[] OPERATION_ACCOUNT_COUNTS = {1_000, 10_000, 100_000, 1_000_000, 10_000_000};
+    private static final long OPERATION_BUDGET_NANOS = 400_000_000;
+    private static final int SAMPLES = 4_096; // Account numbers the operations cycle through, a power of two
+
+    // Most the heap left in use by the navigation soak may grow from its short run to its full one. The full run
+    // makes nine tenths of the navigations more, so even 2 bytes kept per navigation exceeds this at 1M.
+    private static final long SOAK_HEAP_GROWTH_KB = 1_024;
+    private static final Pattern SOAK_HEAP_IN_USE = Pattern.compile("(\\d+) KB heap in use");
+    // Dashboard options the navigation soak opens in turn; 7 exits.
+    private static final int[] SCREEN_OPTIONS = {1, 2, 3, 4, 5, 6, 8, 9};
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // One call of a measured operation; i counts the calls made so far.
+    private interface Operation {
+        long run(int i);
+    }
+
+    public static void main(String[] args) {
+        String benchmark = args.length > 0 ? args[0] : "lookup";
+        switch (benchmark) {
+            case "operations":
+                operations(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                break;
+            case "lookup":
+                lookupLatency();
+                break;
+            case "open":
+                bulkOpen();
+                break;
+            case "journal":
+                journalThroughput();
+                break;
+            case "contention":
+                engineContention();
+                break;
+            case "names":
+                nameSearch(args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000);
+                break;
+            case "scheduler":
+                schedulerScaling();
+                break;
+            case "aggregates":
+                aggregateReports(args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000);
+                break;
+            case "idempotency":
+                idempotentDeposits(args.length > 1 ? Integer.parseInt(args[1]) : 4);
+                break;
+            case "console":
+                consoleRedraw(args.length > 1 ? Integer.parseInt(args[1]) : 50);
+                break;
+            case "navigation":
+                navigationSoak(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                break;
+            case "history":
+                historyStatement(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                break;
+            case "snapshot":
+                snapshotStartup(args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000);
+                break;
+            case "table":
+                accountTable(args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000);
+                break;
+            case "velocity":
+                velocityLimits(args.length > 1 ? Integer.parseInt(args[1]) : 4);
+                break;
+            case "accrual":
+                interestAccrual(args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000);
+                break;
+            case "shards":
+                shardScaling(args.length > 1 ? Integer.parseInt(args[1]) : 8);
+                break;
+            default:
+                System.out.println("Unknown benchmark: " + benchmark);
+        }
+    }
+
+    // Measures every banking operation through the engine against the original String[][] table, for account
+    // counts from 1k up to the given maximum, reporting throughput and bytes allocated per operation.
+    // Each operation runs for a fixed time after a warm-up, so the slow baseline operations at large account
+    // counts are measured over fewer calls rather than taking forever.
+    private static void operations(int maxAccounts) {
+        System.out.printf("%-10s %-10s %-9s %14s %14s %10s%n", "accounts", "operation", "layout", "ops/s", "ns/op", "B/op");
+        for (int accounts : OPERATION_ACCOUNT_COUNTS) {
+            if (accounts > maxAccounts) break;
+            SplittableRandom random = new SplittableRandom(accounts);
+            String[] numbers = new String[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) numbers[i] = AccountStore.formatAccountNumber(1 + random.nextInt(accounts));
+            int mask = SAMPLES - 1;
+
+            BankingEngine engine = newEngine(accounts);
+            measure(accounts, "open", "engine", Math.max(accounts, 1 << 20), i -> engine.openAccount("Account Holder", 10_000 * Money.CENTS));
+            measure(accounts, "lookup", "engine", Integer.MAX_VALUE, i -> engine.exists(AccountStore.parseKey(numbers[i & mask])) ? 1 : 0);
+            measure(accounts, "deposit", "engine", Integer.MAX_VALUE, i -> engine.deposit(AccountStore.parseKey(numbers[i & mask]), 500 * Money.CENTS));
+            measure(accounts, "withdraw", "engine", Integer.MAX_VALUE, i -> engine.withdraw(AccountStore.parseKey(numbers[i & mask]), 100 * Money.CENTS));
+            measure(accounts, "transfer", "engine", Integer.MAX_VALUE, i -> engine.transfer(AccountStore.parseKey(numbers[i & mask]),
+                    AccountStore.parseKey(numbers[(i + 1) & mask]), 100 * Money.CENTS));
+            measure(accounts, "balance", "engine", Integer.MAX_VALUE, i -> engine.balance(AccountStore.parseKey(numbers[i & mask])));
+            measure(accounts, "delete", "engine", engine.nextKey() - 1, i -> engine.deleteAccount(AccountStore.parseKey(AccountStore.formatAccountNumber(1 + i))));
+
+            StringTableBaseline table = new StringTableBaseline(accounts);
+            measure(accounts, "open", "String[][]", accounts, i -> table.open("Account Holder", 10_000));
+            measure(accounts, "lookup", "String[][]", Integer.MAX_VALUE, i -> table.exists(numbers[i & mask]) ? 1 : 0);
+            measure(accounts, "deposit", "String[][]", Integer.MAX_VALUE, i -> (long) table.deposit(numbers[i & mask], 500));
+            measure(accounts, "withdraw", "String[][]", Integer.MAX_VALUE, i -> (long) table.withdraw(numbers[i & mask], 100));
+            measure(accounts, "transfer", "String[][]", Integer.MAX_VALUE, i -> (long) table.transfer(numbers[i & mask], numbers[(i + 1) & mask], 100));
+            measure(accounts, "balance", "String[][]", Integer.MAX_VALUE, i -> (long) table.balance(numbers[i & mask]));
+            measure(accounts, "delete", "String[][]", accounts, i -> table.delete(AccountStore.formatAccountNumber(1 + i)) ? 1 : 0);
+        }
+    }
+
+    // Runs an operation for half the budget to warm up and then for the full budget, and prints its throughput
+    // and allocation rate. An operation that uses something up, like deleting accounts, is called at most
+    // maxCalls times in all, a quarter of them to warm up.
+    private static void measure(int accounts, String operation, String layout, int maxCalls, Operation op) {
+        int[] calls = {0};
+        long sink = runFor(op, calls, maxCalls / 4, OPERATION_BUDGET_NANOS / 2);
+        int warmUpCalls = calls[0];
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        sink += runFor(op, calls, maxCalls, OPERATION_BUDGET_NANOS);
+        long elapsed = System.nanoTime() - start;
+        allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+
+        int measured = calls[0] - warmUpCalls;
+        if (measured == 0) {
+            System.out.printf("%-10d %-10s %-9s %14s %14s %10s%n", accounts, operation, layout, "-", "-", "-");
+            return;
+        }
+        System.out.printf("%-10d %-10s %-9s %14.1f %14.1f %10d%s%n", accounts, operation, layout,
+                measured * 1e9 / elapsed, (double) elapsed / measured, allocated / measured, sink == Long.MIN_VALUE ? "!" : "");
+    }
+
+    // Calls an operation in growing blocks until the time is up, so reading the clock does not dominate fast
+    // operations. Returns the sum of the results so the calls cannot be optimised away.
+    private static long runFor(Operation op, int[] calls, int maxCalls, long nanos) {
+        long sink = 0;
+        long end = System.nanoTime() + nanos;
+        int block = 1;
+        while (calls[0] < maxCalls) {
+            long blockStart = System.nanoTime();
+            for (int j = 0; j < block && calls[0] < maxCalls; j++) sink += op.run(calls[0]++);
+            long now = System.nanoTime();
+            if (now >= end) break;
+            if (now - blockStart < 1_000_000 && block < 1 << 16) block *= 2;
+        }
+        return sink;
+    }
+
+    // Measures the average account lookup latency for growing account counts; it should stay flat.
+    private static void lookupLatency() {
+        System.out.printf("%-12s %12s%n", "accounts", "ns/lookup");
+        for (int count : ACCOUNT_COUNTS) {
+            AccountStore store = new AccountStore();
+            String[] accountNumbers = new String[count];
+            for (int key = 1; key <= count; key++) {
+                store.put(key, "Account Holder", 5000 * Money.CENTS);
+                accountNumbers[key - 1] = AccountStore.formatAccountNumber(key);
+            }
+
+            // Warm up the JIT before measuring
+            runLookups(store, accountNumbers, LOOKUPS);
+            long start = System.nanoTime();
+            long sink = runLookups(store, accountNumbers, LOOKUPS);
+            long elapsed = System.nanoTime() - start;
+
+            System.out.printf("%-12d %12.1f%s%n", count, (double) elapsed / LOOKUPS, sink < 0 ? "!" : "");
+        }
+    }
+
+    // Opens the given number of accounts with random names, deletes every tenth, then updates and reads random
+    // balances. Reports the time per open and per balance update, the heap and direct memory the store holds
+    // once the rest is collected, and the collections run while loading along with the time they took. A
+    // full collection is timed last, as its pause grows with the objects left on the heap.
+    private static void accountTable(int accounts) {
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        long heapBefore = usedHeap();
+        long directBefore = directMemory();
+        long collectionsBefore = collections(collectors, false);
+        long collectionMillisBefore = collections(collectors, true);
+
+        AccountStore store = new AccountStore();
+        SplittableRandom random = new SplittableRandom(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < accounts; i++) store.put(store.nextKey(), randomName(random), 5000 * Money.CENTS);
+        for (int key = 10; key <= accounts; key += 10) store.remove(key);
+        long loaded = System.nanoTime() - start;
+
+        int updates = 20_000_000;
+        long sink = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            int key = 1 + random.nextInt(accounts);
+            long balance = store.getBalance(key);
+            if (balance >= 0) store.setBalance(key, balance + 1);
+            sink += balance;
+        }
+        long updated = System.nanoTime() - start;
+        long collections = collections(collectors, false) - collectionsBefore;
+        long collectionMillis = collections(collectors, true) - collectionMillisBefore;
+
+        long heap = Math.max(0, usedHeap() - heapBefore); // Collection noise can leave it just below zero
+        long direct = directMemory() - directBefore;
+        start = System.nanoTime();
+        System.gc();
+        long fullCollection = System.nanoTime() - start;
+
+        System.out.printf("%d accounts, %d open%n", accounts, store.size());
+        System.out.printf("  load                %8.1f ns/account (open, then delete every tenth)%n", (double) loaded / accounts);
+        System.out.printf("  balance update      %8.1f ns%s%n", (double) updated / updates, sink == Long.MIN_VALUE ? "!" : "");
+        System.out.printf("  heap                %8d MB (%.1f bytes/account)%n", heap >> 20, (double) heap / store.size());
+        System.out.printf("  direct memory       %8d MB (%.1f bytes/account)%n", direct >> 20, (double) direct / store.size());
+        System.out.printf("  collections         %8d taking %d ms%n", collections, collectionMillis);
+        System.out.printf("  full collection     %8d ms%n", fullCollection / 1_000_000);
+    }
+
+    // Collections run so far by all collectors, or the milliseconds they took.
+    private static long collections(List<GarbageCollectorMXBean> collectors, boolean millis) {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            total += Math.max(0, millis ? collector.getCollectionTime() : collector.getCollectionCount());
+        }
+        return total;
+    }
+
+    // Bytes held in direct buffers.
+    private static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+
+    // Measures bulk opens followed by deleting every other account; time per account should stay flat.
+    private static void bulkOpen() {
+        System.out.printf("%-12s %12s %12s%n", "accounts", "ns/open", "ns/delete");
+        for (int count : ACCOUNT_COUNTS) {
+            for (int round = 0; round < 3; round++) {
+                AccountStore store = new AccountStore();
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    store.put(store.nextKey(), "Account Holder", 5000 * Money.CENTS);
+                }
+                long opened = System.nanoTime();
+                for (int key = 1; key <= count; key += 2) {
+                    store.remove(key);
+                }
+                long deleted = System.nanoTime();
+
+                // Only the last round is reported, earlier rounds warm up the JIT
+                if (round == 2) {
+                    System.out.printf("%-12d %12.1f %12.1f%n", count,
+                            (double) (opened - start) / count, (double) (deleted - opened) / (count / 2));
+                }
+            }
+        }
+    }
+
+    // Measures sustained journal throughput with a growing number of writer threads sharing group commits.
+    private static void journalThroughput() {
+        int[] threadCounts = {1, 16, 64, 256};
+        long durationMillis = 3_000;
+        System.out.printf("%-12s %12s%n", "threads", "tx/s");
+        for (int threads : threadCounts) {
+            Path dir;
+            try {
+                dir = Files.createTempDirectory("journal-bench");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Path file = dir.resolve("transactions.journal");
+            AtomicLong committed = new AtomicLong();
+            try (Journal journal = Journal.open(file, new AccountStore(), 0)) {
+                long deadline = System.currentTimeMillis() + durationMillis;
+                Thread[] writers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    int key = t + 1;
+                    writers[t] = new Thread(() -> {
+                        while (System.currentTimeMillis() < deadline) {
+                            journal.logDeposit(key, 500 * Money.CENTS, System.currentTimeMillis());
+                            committed.incrementAndGet();
+                        }
+                    });
+                    writers[t].start();
+                }
+                for (Thread writer : writers) writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                try {
+                    Files.deleteIfExists(file);
+                    Files.deleteIfExists(dir);
+                } catch (IOException ignored) {
+                    // Leftover temp files are harmless
+                }
+            }
+            System.out.printf("%-12d %12.0f%n", threads, committed.get() * 1000.0 / durationMillis);
+        }
+    }
+
+    // Measures startup from a mapped snapshot: time to the first balance check, time until the heap
+    // store is fully loaded, and the heap used by the loaded store against the old String[][] layout.
+    private static void snapshotStartup(int count) {
+        Path file;
+        try {
+            file = Files.createTempFile("accounts", ".snapshot");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            AccountStore source = new AccountStore();
+            source.ensureCapacity(count);
+            for (int key = 1; key <= count; key++) source.put(key, "Account Holder " + key, 5000 * Money.CENTS + key);
+            long start = System.nanoTime();
+            Snapshot.write(file, source, 0);
+            System.out.printf("write %d accounts: %d ms%n", count, (System.nanoTime() - start) / 1_000_000);
+            source = null;
+
+            long baseline = usedHeap();
+            start = System.nanoTime();
+            Snapshot snapshot = Snapshot.map(file);
+            long balance = snapshot.balanceAt(snapshot.find(count / 2));
+            System.out.printf("map + first balance check: %.2f ms (balance %s)%n",
+                    (System.nanoTime() - start) / 1e6, Money.format(balance));
+
+            AccountStore store = new AccountStore();
+            snapshot.loadInto(store);
+            System.out.printf("load into store: %d ms%n", (System.nanoTime() - start) / 1_000_000);
+            long storeHeap = Math.max(0, usedHeap() - baseline);
+            System.out.printf("store: %d MB heap (%d bytes/account), %d MB off heap (%d bytes/account)%n", storeHeap >> 20,
+                    storeHeap / count, store.offHeapBytes() >> 20, store.offHeapBytes() / count);
+
+            store = null;
+            baseline = usedHeap();
+            String[][] accountInfo = new String[count][];
+            for (int i = 0; i < count; i++) {
+                accountInfo[i] = new String[] {snapshot.nameAt(i), AccountStore.formatAccountNumber(snapshot.keyAt(i)),
+                        String.valueOf(snapshot.balanceAt(i) / (double) Money.CENTS)};
+            }
+            long arrayHeap = usedHeap() - baseline;
+            System.out.printf("String[][] layout: %d MB (%d bytes/account)%n", arrayHeap >> 20, arrayHeap / count);
+            if (accountInfo.length != count || store != null) System.out.println("!");
+        } finally {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+                // Leftover temp files are harmless
+            }
+        }
+    }
+
+    // Compares the striped-lock and lock-free engine modes at 1, 8 and 32 threads. Each run does random
+    // deposits, withdrawals and transfers over a small set of hot accounts, then checks that no update was
+    // lost and no balance fell below the minimum.
+    private static void engineContention() {
+        System.out.printf("%-15s %8s %14s %8s%n", "mode", "threads", "ops/s", "check");
+        for (BankingEngine.Mode mode : BankingEngine.Mode.values()) {
+            for (int threads : new int[] {1, 8, 32}) {
+                runContention(mode, threads, 64, 4_000_000 / threads);
+            }
+        }
+    }
+
+    private static void runContention(BankingEngine.Mode mode, int threads, int accounts, int operationsPerThread) {
+        AccountStore store = new AccountStore();
+        BankingEngine engine = new BankingEngine(mode, store, null, null, Long.MAX_VALUE);
+        for (int i = 0; i < accounts; i++) engine.openAccount("Account Holder", 10_000 * Money.CENTS);
+
+        AtomicLong expectedTotal = new AtomicLong(accounts * 10_000 * Money.CENTS);
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            workers[t] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                long net = 0;
+                for (int i = 0; i < operationsPerThread; i++) {
+                    int key = 1 + random.nextInt(accounts);
+                    long amount = (100 + random.nextInt(2_000)) * Money.CENTS;
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            if (engine.deposit(key, amount) >= 0) net += amount;
+                            break;
+                        case 1:
+                            if (engine.withdraw(key, amount) >= 0) net -= amount;
+                            break;
+                        default:
+                            if (engine.transfer(key, 1 + random.nextInt(accounts), amount) >= 0) net -= Money.transferFee(amount);
+                    }
+                }
+                expectedTotal.addAndGet(net);
+            });
+            workers[t].start();
+        }
+        try {
+            for (Thread worker : workers) worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long[] total = {0};
+        long[] lowest = {Long.MAX_VALUE};
+        store.forEach((key, name, balance) -> {
+            total[0] += balance;
+            lowest[0] = Math.min(lowest[0], balance);
+        });
+        boolean consistent = total[0] == expectedTotal.get() && lowest[0] >= BankingEngine.MIN_BALANCE;
+        System.out.printf("%-15s %8d %14.0f %8s%n", mode, threads,
+                threads * (double) operationsPerThread * 1e9 / elapsed, consistent ? "OK" : "FAILED");
+    }
+
+    // Applies one batch of random transfers serially and then with the TransferScheduler on growing pool
+    // sizes, checking every result and final balance against the serial run and reporting the speedup and
+    // the scaling efficiency against the number of cores actually available.
+    private static void schedulerScaling() {
+        int accounts = 1_000_000;
+        int transfers = 1 << 20;
+        int cores = Runtime.getRuntime().availableProcessors();
+        SplittableRandom random = new SplittableRandom(42);
+        int[] fromKeys = new int[transfers];
+        int[] toKeys = new int[transfers];
+        long[] amounts = new long[transfers];
+        for (int i = 0; i < transfers; i++) {
+            fromKeys[i] = 1 + random.nextInt(accounts);
+            toKeys[i] = 1 + random.nextInt(accounts);
+            amounts[i] = (100 + random.nextInt(3_000)) * Money.CENTS;
+        }
+
+        long[] serialResults = new long[transfers];
+        long[] serialBalances = null;
+        long serialNanos = 0;
+        for (int round = 0; round < 3; round++) {
+            BankingEngine engine = newEngine(accounts);
+            long start = System.nanoTime();
+            for (int i = 0; i < transfers; i++) serialResults[i] = engine.transfer(fromKeys[i], toKeys[i], amounts[i]);
+            serialNanos = System.nanoTime() - start;
+            serialBalances = balances(engine, accounts);
+        }
+        System.out.printf("%d cores, %d transfers over %d accounts%n", cores, transfers, accounts);
+        System.out.printf("%-10s %14s %9s %11s %8s%n", "threads", "transfers/s", "speedup", "efficiency", "check");
+        System.out.printf("%-10s %14.0f %9s %11s %8s%n", "serial", transfers * 1e9 / serialNanos, "1.00", "-", "-");
+
+        for (int threads = 1; threads <= Math.max(4, cores * 2); threads *= 2) {
+            try (ForkJoinPool pool = new ForkJoinPool(threads)) {
+                long[] results = new long[transfers];
+                long elapsed = 0;
+                boolean same = true;
+                for (int round = 0; round < 3; round++) {
+                    BankingEngine engine = newEngine(accounts);
+                    TransferScheduler scheduler = new TransferScheduler(engine, pool, transfers);
+                    long start = System.nanoTime();
+                    scheduler.transfer(fromKeys, toKeys, amounts, transfers, results);
+                    elapsed = System.nanoTime() - start;
+                    same = Arrays.equals(results, serialResults)
+                            && Arrays.equals(balances(engine, accounts), serialBalances);
+                }
+                double speedup = (double) serialNanos / elapsed;
+                System.out.printf("%-10d %14.0f %9.2f %10.0f%% %8s%n", threads, transfers * 1e9 / elapsed, speedup,
+                        100 * speedup / Math.min(threads, cores), same ? "OK" : "FAILED");
+            }
+        }
+    }
+
+    // Builds the name index over random names from letters and spaces, reporting its heap cost per account,
+    // then measures prefix searches of growing length and opening and deleting accounts while it is kept up to date.
+    private static void nameSearch(int accounts) {
+        SplittableRandom random = new SplittableRandom(42);
+        AccountStore store = new AccountStore();
+        store.ensureCapacity(accounts);
+        BankingEngine engine = new BankingEngine(store, null, null, Long.MAX_VALUE);
+        for (int i = 0; i < accounts; i++) engine.openAccount(randomName(random), 10_000 * Money.CENTS);
+
+        long baseline = usedHeap();
+        long start = System.nanoTime();
+        engine.findByNamePrefix("a", 1);
+        long built = System.nanoTime() - start;
+        long indexHeap = usedHeap() - baseline;
+        System.out.printf("%d accounts: index built in %d ms, %d MB (%.1f bytes/account)%n",
+                accounts, built / 1_000_000, indexHeap >> 20, (double) indexHeap / accounts);
+
+        System.out.printf("%-16s %12s %12s%n", "prefix length", "us/search", "results");
+        for (int length : new int[] {1, 2, 3, 5, 8, 12}) {
+            String[] prefixes = new String[1_000];
+            for (int i = 0; i < prefixes.length; i++) {
+                String name = store.getName(1 + random.nextInt(accounts));
+                prefixes[i] = name.substring(0, Math.min(length, name.length())).toUpperCase();
+            }
+            long results = 0;
+            for (String prefix : prefixes) results += engine.findByNamePrefix(prefix, 20).length; // Warm up
+            results = 0;
+            start = System.nanoTime();
+            for (String prefix : prefixes) results += engine.findByNamePrefix(prefix, 20).length;
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-16d %12.2f %12.1f%n", length, elapsed / 1e3 / prefixes.length, (double) results / prefixes.length);
+        }
+
+        int changes = 200_000;
+        start = System.nanoTime();
+        for (int i = 0; i < changes; i++) engine.openAccount(randomName(random), 10_000 * Money.CENTS);
+        long opened = System.nanoTime();
+        for (int i = 0; i < changes; i++) engine.deleteAccount(1 + random.nextInt(accounts));
+        long deleted = System.nanoTime();
+        System.out.printf("open with index: %.0f ns, delete with index: %.0f ns%n",
+                (double) (opened - start) / changes, (double) (deleted - opened) / changes);
+    }
+
+    // Opens accounts with random balances and runs random deposits, withdrawals and transfers, then compares
+    // the running aggregates with a full parallel scan, both in time and in result.
+    private static void aggregateReports(int accounts) {
+        SplittableRandom random = new SplittableRandom(42);
+        AccountStore store = new AccountStore();
+        store.ensureCapacity(accounts);
+        BankingEngine engine = new BankingEngine(store, null, null, Long.MAX_VALUE);
+        for (int i = 0; i < accounts; i++) engine.openAccount("Account Holder", (5_000 + random.nextInt(1_000_000)) * Money.CENTS);
+
+        int operations = 2_000_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            int key = 1 + random.nextInt(accounts);
+            long amount = (500 + random.nextInt(50_000)) * Money.CENTS;
+            switch (i % 3) {
+                case 0: engine.deposit(key, amount); break;
+                case 1: engine.withdraw(key, amount); break;
+                default: engine.transfer(key, 1 + random.nextInt(accounts), amount); break;
+            }
+        }
+        System.out.printf("%d accounts, %d operations: %.0f ns/operation with aggregates%n",
+                accounts, operations, (double) (System.nanoTime() - start) / operations);
+
+        System.out.printf("%-28s %12s%n", "report", "us");
+        BalanceAggregates.Summary running = null;
+        BalanceAggregates.Summary scanned = null;
+        int[] top = null;
+        int[] scannedTop = null;
+        for (int run = 0; run < 3; run++) {
+            start = System.nanoTime();
+            running = engine.summary();
+            long summarised = System.nanoTime();
+            top = engine.topAccounts(10);
+            long ranked = System.nanoTime();
+            scanned = engine.scanBalances(balance -> true);
+            long scannedAt = System.nanoTime();
+            scannedTop = BalanceAggregates.scanTop(store, engine.nextKey(), 10);
+            long scannedTopAt = System.nanoTime();
+            System.out.printf("%-28s %12.1f%n%-28s %12.1f%n%-28s %12.1f%n%-28s %12.1f%n",
+                    "summary (running)", (summarised - start) / 1e3, "top 10 (running)", (ranked - summarised) / 1e3,
+                    "summary (parallel scan)", (scannedAt - ranked) / 1e3, "top 10 (parallel scan)", (scannedTopAt - scannedAt) / 1e3);
+        }
+        boolean same = running.accounts == scanned.accounts && running.totalAssets == scanned.totalAssets
+                && Arrays.equals(running.histogram, scanned.histogram);
+        for (int i = 0; i < top.length; i++) same &= store.getBalance(top[i]) == store.getBalance(scannedTop[i]);
+        System.out.println(same ? "running aggregates match the scan" : "running aggregates DIFFER from the scan");
+    }
+
+    // Runs deposits from several threads with and without a request ID each, then retries every request with
+    // an ID to check none is applied twice, and keeps going past the cache capacity to show it stays bounded.
+    private static void idempotentDeposits(int threads) {
+        int accounts = 100_000;
+        int perThread = 1_000_000;
+        BankingEngine engine = newEngine(accounts);
+        long amount = 500 * Money.CENTS;
+
+        System.out.printf("%-24s %12s %12s%n", "deposits", "ns/op", "ops/s");
+        for (int run = 0; run < 2; run++) {
+            for (boolean withIds : new boolean[] {false, true}) {
+                String prefix = "run" + run + (withIds ? "-id-" : "-plain-");
+                long elapsed = runThreads(threads, thread -> {
+                    for (int i = 0; i < perThread; i++) {
+                        String requestId = prefix + thread + "-" + i; // Built either way so both runs do the same work
+                        int key = 1 + (int) ((i * 7919L + thread) % accounts);
+                        if (withIds) engine.deposit(requestId, key, amount);
+                        else if (requestId.length() > 0) engine.deposit(key, amount);
+                    }
+                });
+                long operations = (long) threads * perThread;
+                System.out.printf("%-24s %12.1f %12.0f%n", withIds ? "with request IDs" : "without request IDs",
+                        (double) elapsed / operations, operations * 1e9 / elapsed);
+            }
+        }
+
+        // Retry the last run's requests with IDs that are still remembered: balances must not change
+        long before = engine.summary().totalAssets;
+        int retries = Math.min(perThread, BankingEngine.REQUEST_CAPACITY / threads / 2);
+        long elapsed = runThreads(threads, thread -> {
+            for (int i = perThread - retries; i < perThread; i++) {
+                int key = 1 + (int) ((i * 7919L + thread) % accounts);
+                engine.deposit("run1-id-" + thread + "-" + i, key, amount);
+            }
+        });
+        long after = engine.summary().totalAssets;
+        System.out.printf("%d retries: %.1f ns/op, %s%n", (long) threads * retries, (double) elapsed / ((long) threads * retries),
+                after == before ? "none applied again" : "APPLIED AGAIN: assets changed by " + Money.format(after - before));
+        System.out.printf("remembered request IDs: %d (capacity %d), %d MB heap%n",
+                engine.rememberedRequests(), BankingEngine.REQUEST_CAPACITY, usedHeap() >> 20);
+    }
+
+    // Times withdrawals and transfers between random accounts from the given number of threads, in both engine
+    // modes, without velocity limits and with limits generous enough never to refuse, so the difference is
+    // the cost of the check. Then makes a burst of withdrawals from one account against a limit of 10 and
+    // LKR 5000.00 per minute, which must let exactly 5 of 1000.00 through and count the rest in the metrics.
+    private static void velocityLimits(int threads) {
+        int accounts = 100_000;
+        int perThread = 1_000_000;
+        System.out.printf("%-14s %-10s %12s %12s%n", "mode", "limits", "ns/op", "ops/s");
+        for (int run = 0; run < 2; run++) {
+            for (BankingEngine.Mode mode : BankingEngine.Mode.values()) {
+                for (boolean limited : new boolean[] {false, true}) {
+                    BankingEngine engine = new BankingEngine(mode, new AccountStore(), null, null, Long.MAX_VALUE);
+                    for (int i = 0; i < accounts; i++) engine.openAccount("Account Holder", 1_000_000_000 * Money.CENTS);
+                    if (limited) engine.setVelocityLimits(new VelocityLimits(Integer.MAX_VALUE, Long.MAX_VALUE / 4, 1_000));
+                    long elapsed = runThreads(threads, thread -> {
+                        SplittableRandom random = new SplittableRandom(thread);
+                        for (int i = 0; i < perThread; i++) {
+                            int key = 1 + random.nextInt(accounts);
+                            if ((i & 1) == 0) engine.withdraw(key, 100 * Money.CENTS);
+                            else engine.transfer(key, 1 + random.nextInt(accounts), 100 * Money.CENTS);
+                        }
+                    });
+                    long operations = (long) threads * perThread;
+                    System.out.printf("%-14s %-10s %12.1f %12.0f%n", mode, limited ? "on" : "off",
+                            (double) elapsed / operations, operations * 1e9 / elapsed);
+                }
+            }
+        }
+
+        BankingEngine engine = new BankingEngine(new AccountStore(), null, null, Long.MAX_VALUE);
+        int key = (int) engine.openAccount("Account Holder", 100_000 * Money.CENTS);
+        engine.setVelocityLimits(new VelocityLimits(10, 5_000 * Money.CENTS, 60_000));
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (engine.withdraw(key, 1_000 * Money.CENTS) >= 0) accepted++;
+        }
+        System.out.printf("burst of 20 withdrawals of 1000.00 against 5000.00 a minute: %d accepted, %d counted as limited%n",
+                accepted, engine.metrics().stats(BankingMetrics.Operation.WITHDRAW).getVelocityLimited());
+    }
+
+    // Runs interest accrual over the given number of accounts with no journal and with one, while two threads
+    // keep depositing, and reports the run time, the deposits made during it and the slowest of them, and
+    // whether total assets moved by exactly the interest, fees and deposits. The journaled run is then
+    // recovered from a snapshot taken before it and its journal. Needs -XX:MaxDirectMemorySize to suit the
+    // accounts.
+    private static void interestAccrual(int accounts) {
+        InterestAccrual accrual = new InterestAccrual(1, 25 * Money.CENTS); // 0.01% and LKR 25.00
+        System.out.printf("%-10s %12s %10s %12s %14s  %s%n", "journal", "run ms", "ns/acct", "deposits", "max deposit", "check");
+        for (boolean journaled : new boolean[] {false, true}) {
+            Path dir;
+            try {
+                dir = Files.createTempDirectory("accrual-bench");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            AccountStore store = new AccountStore();
+            SplittableRandom random = new SplittableRandom(42);
+            for (int i = 0; i < accounts; i++) store.put(store.nextKey(), "Account Holder", (500 + random.nextInt(100_000)) * Money.CENTS);
+            Path snapshot = dir.resolve("accounts.snapshot");
+            Path file = dir.resolve("transactions.journal");
+            if (journaled) Snapshot.write(snapshot, store, 0);
+            Journal journal = journaled ? Journal.open(file, store, 0) : null;
+            try {
+                BankingEngine engine = new BankingEngine(store, journal, snapshot, Long.MAX_VALUE);
+                long before = engine.summary().totalAssets;
+
+                AtomicLong deposited = new AtomicLong();
+                AtomicLong deposits = new AtomicLong();
+                AtomicLong slowest = new AtomicLong();
+                AtomicBoolean running = new AtomicBoolean(true);
+                Thread[] depositors = new Thread[2];
+                for (int t = 0; t < depositors.length; t++) {
+                    SplittableRandom keys = new SplittableRandom(t);
+                    depositors[t] = new Thread(() -> {
+                        while (running.get()) {
+                            long start = System.nanoTime();
+                            if (engine.deposit(1 + keys.nextInt(accounts), 100 * Money.CENTS) >= 0) deposited.addAndGet(100 * Money.CENTS);
+                            long latency = System.nanoTime() - start;
+                            deposits.incrementAndGet();
+                            slowest.accumulateAndGet(latency, Math::max);
+                        }
+                    });
+                    depositors[t].start();
+                }
+                long start = System.nanoTime();
+                InterestAccrual.Totals totals = engine.accrue(accrual);
+                long elapsed = System.nanoTime() - start;
+                running.set(false);
+                for (Thread depositor : depositors) depositor.join();
+
+                long expected = before + totals.interest - totals.fees + deposited.get();
+                long after = engine.summary().totalAssets;
+                String check = after == expected ? "totals match" : "TOTAL OFF BY " + Money.format(after - expected);
+                if (journaled) {
+                    journal.close();
+                    journal = null;
+                    AccountStore recovered = new AccountStore();
+                    Snapshot.map(snapshot).loadInto(recovered);
+                    Journal.open(file, recovered, 0).close();
+                    long recoveredAssets = new BankingEngine(recovered, null, null, Long.MAX_VALUE).summary().totalAssets;
+                    check += recoveredAssets == after ? ", recovery matches" : ", RECOVERY OFF BY " + Money.format(recoveredAssets - after);
+                }
+                System.out.printf("%-10s %12d %10.1f %12d %11.2f ms  %s (%d accounts, interest %s, fees %s)%n",
+                        journaled ? "on" : "off", elapsed / 1_000_000, (double) elapsed / accounts, deposits.get(),
+                        slowest.get() / 1e6, check, totals.accounts, Money.format(totals.interest), Money.format(totals.fees));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                if (journal != null) journal.close();
+                try {
+                    Files.deleteIfExists(file);
+                    Files.deleteIfExists(snapshot);
+                    Files.deleteIfExists(dir);
+                } catch (IOException ignored) {
+                    // Leftover temp files are harmless
+                }
+            }
+        }
+    }
+
+    // Redraws the dashboard and a balance screen the way the console used to, one flushed line at a time
+    // through a PrintStream, and through ConsoleRenderer in direct and async mode, into a terminal that takes
+    // the given microseconds per write. Reports the time the console thread spends per redraw and the writes
+    // it takes; async output still being written when the console thread finishes is drained and timed apart.
+    private static void consoleRedraw(int writeMicros) {
+        int redraws = writeMicros == 0 ? 200_000 : 20_000 / Math.max(1, writeMicros / 10);
+        System.out.printf("%d us per terminal write%n%-20s %12s %12s %12s%n", writeMicros, "console", "ns/redraw", "writes/redraw", "drain ms");
+        for (int run = 0; run < 2; run++) {
+            SlowTerminal terminal = new SlowTerminal(writeMicros);
+            PrintStream out = new PrintStream(new BufferedOutputStream(terminal, 8192), true);
+            long start = System.nanoTime();
+            for (int i = 0; i < redraws; i++) drawWithPrintStream(out, i);
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-20s %12.0f %12.2f %12s%n", "println", (double) elapsed / redraws, (double) terminal.writes / redraws, "-");
+
+            for (boolean async : new boolean[] {false, true}) {
+                terminal = new SlowTerminal(writeMicros);
+                ConsoleRenderer console = new ConsoleRenderer(terminal, java.nio.charset.StandardCharsets.UTF_8, async);
+                start = System.nanoTime();
+                for (int i = 0; i < redraws; i++) drawWithRenderer(console, i);
+                elapsed = System.nanoTime() - start;
+                long drainStart = System.nanoTime();
+                console.close();
+                long drained = System.nanoTime() - drainStart;
+                System.out.printf("%-20s %12.0f %12.2f %12d%n", async ? "renderer (async)" : "renderer", (double) elapsed / redraws,
+                        (double) terminal.writes / redraws, drained / 1_000_000);
+            }
+        }
+    }
+
+    // Replays sessions that open every menu screen in turn and go back to the dashboard with D, for a tenth
+    // of the given navigations and then for all of them, in a separate JVM with a 256 KB thread stack and a
+    // 64 MB heap. Each run must finish, and the heap the full run leaves in use may be at most
+    // SOAK_HEAP_GROWTH_KB above the short run's; otherwise the benchmark fails, as navigation is leaking.
+    private static void navigationSoak(int navigations) {
+        long firstHeapKb = -1;
+        try {
+            Path dir = Files.createTempDirectory("smartbanking-soak");
+            for (int count : new int[] {navigations / 10, navigations}) {
+                Path replay = dir.resolve("navigations-" + count + ".txt");
+                StringBuilder lines = new StringBuilder(count * 4);
+                for (int i = 0; i < count; i++) lines.append(SCREEN_OPTIONS[i % SCREEN_OPTIONS.length]).append("\nD\n");
+                lines.append("7\n");
+                Files.writeString(replay, lines);
+
+                Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                        "-Xss256k", "-Xmx64m", "-Dsmartbanking.data=" + dir.resolve("data"), "-Dsmartbanking.statsInterval=0",
+                        "-cp", System.getProperty("java.class.path"), "SmartBankingApp", "--replay", replay.toString())
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .redirectError(ProcessBuilder.Redirect.PIPE)
+                        .start();
+                String report = new String(process.getErrorStream().readAllBytes()).strip();
+                int exitCode = process.waitFor();
+                System.out.printf("%d navigations: exit code %d%n  %s%n", count, exitCode, report.replace("\n", "\n  "));
+                Files.delete(replay);
+
+                Matcher heap = SOAK_HEAP_IN_USE.matcher(report);
+                if (exitCode != 0 || !heap.find()) {
+                    throw new IllegalStateException("Navigation soak of " + count + " navigations did not finish");
+                }
+                long heapKb = Long.parseLong(heap.group(1));
+                if (firstHeapKb < 0) {
+                    firstHeapKb = heapKb;
+                } else if (heapKb - firstHeapKb > SOAK_HEAP_GROWTH_KB) {
+                    throw new IllegalStateException("Heap in use grew by " + (heapKb - firstHeapKb) + " KB from "
+                            + navigations / 10 + " to " + count + " navigations, more than " + SOAK_HEAP_GROWTH_KB + " KB");
+                } else {
+                    System.out.printf("heap growth %d KB, within %d KB: OK%n", heapKb - firstHeapKb, SOAK_HEAP_GROWTH_KB);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Starts 1, 2, 4 and so on up to the given number of shard processes on this host, opens accounts across
+    // them, and runs a mix of deposits, withdrawals and transfers between random accounts from several client
+    // threads for a fixed time. Reports throughput and the share of transfers that crossed shards, then checks
+    // that no balance fell below MIN_BALANCE and that the total held equals what was opened with, plus
+    // deposits, less withdrawals and transfer fees.
+    private static void shardScaling(int maxShards) {
+        int accounts = 2_000;
+        int clients = 8;
+        long nanos = 5_000_000_000L;
+        long initial = BankingEngine.MIN_INITIAL_DEPOSIT * 2;
+        System.out.printf("%-8s %12s %12s %14s  %s%n", "shards", "ops", "ops/s", "cross-shard", "check");
+        for (int shards = 1; shards <= maxShards; shards *= 2) {
+            Path dir;
+            try {
+                dir = Files.createTempDirectory("smartbanking-shards");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ShardRing ring = new ShardRing(shards);
+            String secret = UUID.randomUUID().toString();
+            List<Process> processes = ShardedBank.startLocalShards(shards, ShardedBank.DEFAULT_BASE_PORT, dir, secret);
+            try {
+                int[] keys = new int[accounts];
+                SplittableRandom names = new SplittableRandom(shards);
+                try (ShardedBank bank = new ShardedBank(ring, "localhost", ShardedBank.DEFAULT_BASE_PORT, secret)) {
+                    for (int i = 0; i < accounts; i++) keys[i] = (int) bank.openAccount(randomName(names), initial);
+                }
+
+                AtomicLong operations = new AtomicLong();
+                AtomicLong crossShard = new AtomicLong();
+                AtomicLong transfers = new AtomicLong();
+                AtomicLong netFlow = new AtomicLong(); // Deposits less withdrawals and fees
+                long deadline = System.nanoTime() + nanos;
+                long elapsed = runThreads(clients, thread -> {
+                    SplittableRandom random = new SplittableRandom(thread);
+                    long ops = 0, cross = 0, moved = 0, flow = 0;
+                    try (ShardedBank bank = new ShardedBank(ring, "localhost", ShardedBank.DEFAULT_BASE_PORT, secret)) {
+                        while (System.nanoTime() < deadline) {
+                            int key = keys[random.nextInt(accounts)];
+                            long amount = (100 + random.nextInt(2_000)) * Money.CENTS;
+                            int kind = random.nextInt(4);
+                            if (kind == 0) {
+                                if (bank.deposit(key, amount) >= 0) flow += amount;
+                            } else if (kind == 1) {
+                                if (bank.withdraw(key, amount) >= 0) flow -= amount;
+                            } else {
+                                int to = keys[random.nextInt(accounts)];
+                                if (to == key) continue;
+                                if (ring.shardOf(key) != ring.shardOf(to)) cross++;
+                                moved++;
+                                if (bank.transfer(key, to, amount) >= 0) flow -= Money.transferFee(amount);
+                            }
+                            ops++;
+                        }
+                    }
+                    operations.addAndGet(ops);
+                    crossShard.addAndGet(cross);
+                    transfers.addAndGet(moved);
+                    netFlow.addAndGet(flow);
+                });
+
+                long total = 0;
+                int belowMinimum = 0;
+                try (ShardedBank bank = new ShardedBank(ring, "localhost", ShardedBank.DEFAULT_BASE_PORT, secret)) {
+                    for (int key : keys) {
+                        long balance = bank.balance(key);
+                        if (balance < BankingEngine.MIN_BALANCE) belowMinimum++;
+                        total += balance;
+                    }
+                }
+                long expected = initial * accounts + netFlow.get();
+                String check = belowMinimum > 0 ? belowMinimum + " BALANCES BELOW MINIMUM"
+                        : total == expected ? "balances conserved"
+                        : "TOTAL OFF BY " + Money.format(total - expected);
+                System.out.printf("%-8d %12d %12.0f %13.0f%%  %s%n", shards, operations.get(), operations.get() * 1e9 / elapsed,
+                        transfers.get() == 0 ? 0.0 : 100.0 * crossShard.get() / transfers.get(), check);
+            } finally {
+                ShardedBank.stopLocalShards(processes);
+            }
+        }
+    }
+
+    // The dashboard and a balance check as the console printed them before ConsoleRenderer.
+    private static void drawWithPrintStream(PrintStream out, int i) {
+        for (String title : new String[] {"Welcome to Smart Banking App", "Check Account Balance"}) {
+            out.print("\033[H\033[2J");
+            out.flush();
+            out.println("-".repeat(50) + "\n" + " ".repeat((40 - title.length() + 7) / 2) + ConsoleRenderer.BLUE_BOLD + title
+                    + ConsoleRenderer.RESET + "\n" + "-".repeat(50));
+        }
+        for (int option = 1; option <= 9; option++) out.println("[" + option + "]. Menu option " + option);
+        out.print("Enter Account Number: ");
+        out.flush();
+        out.println("Account Holder Name :Account Holder " + i);
+        out.println("Current Account Balance: LKR " + Money.format(600_000 + i));
+        out.println("Available Balance for Withdraw: LKR " + Money.format(550_000 + i) + "\n");
+        out.println("Do you want to check another account balance (Y/n)? ");
+        out.flush();
+    }
+
+    // The same screens through ConsoleRenderer, flushed where the console waits for input.
+    private static void drawWithRenderer(ConsoleRenderer console, int i) {
+        console.frame("Welcome to Smart Banking App");
+        console.frame("Check Account Balance");
+        for (int option = 1; option <= 9; option++) console.println("[" + option + "]. Menu option " + option);
+        console.print("Enter Account Number: ");
+        console.flush();
+        console.println("Account Holder Name :Account Holder " + i);
+        console.println("Current Account Balance: LKR " + Money.format(600_000 + i));
+        console.println("Available Balance for Withdraw: LKR " + Money.format(550_000 + i) + "\n");
+        console.println("Do you want to check another account balance (Y/n)? ");
+        console.flush();
+    }
+
+    // Discards output, blocking for a fixed time on every write as a terminal behind a slow link would.
+    private static final class SlowTerminal extends OutputStream {
+        private final long writeNanos;
+        private long writes;
+
+        SlowTerminal(int writeMicros) {
+            this.writeNanos = writeMicros * 1_000L;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            writes++;
+            if (writeNanos > 0) LockSupport.parkNanos(writeNanos);
+        }
+    }
+
+    // Runs the body on the given number of threads at once and returns the wall-clock nanoseconds taken.
+    private static long runThreads(int threads, IntConsumer body) {
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> body.accept(thread));
+            workers[t].start();
+        }
+        try {
+            for (Thread worker : workers) worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Records the given number of entries for one busy account, interleaved with as many for 100k other accounts,
+    // then measures a statement of the whole history and of a 10% date range in the middle, and reopening
+    // the history file.
+    private static void historyStatement(int entries) {
+        Path dir;
+        try {
+            dir = Files.createTempDirectory("history-bench");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Path file = dir.resolve("transactions.history");
+        int others = 100_000;
+        long firstMillis = 1_700_000_000_000L; // One entry per millisecond from here on
+        try {
+            long baseline = usedHeap();
+            TransactionHistory history = TransactionHistory.open(file);
+            long start = System.nanoTime();
+            for (int i = 0; i < entries; i++) {
+                long time = firstMillis + i;
+                history.record(1, time, TransactionHistory.DEPOSIT, 500 * Money.CENTS, 0, 0, (i + 1) * 500 * Money.CENTS);
+                history.record(2 + i % others, time, TransactionHistory.WITHDRAW, 100 * Money.CENTS, 0, 0, 0);
+            }
+            long recorded = System.nanoTime() - start;
+            history.checkpoint(entries);
+            System.out.printf("record: %.0f ns/entry, %d MB on heap, %d MB on disk%n", (double) recorded / (2L * entries),
+                    (usedHeap() - baseline) >> 20, Files.size(file) >> 20);
+
+            TransactionHistory.Page page = new TransactionHistory.Page(1_000);
+            System.out.printf("%-24s %12s %12s%n", "statement", "entries", "ms");
+            for (int run = 0; run < 3; run++) {
+                timeStatement(history, page, "whole history", firstMillis, Long.MAX_VALUE);
+                timeStatement(history, page, "middle 10%", firstMillis + entries * 45L / 100, firstMillis + entries * 55L / 100 - 1);
+            }
+            history.close();
+
+            start = System.nanoTime();
+            TransactionHistory.open(file).close();
+            System.out.printf("reopen: %d ms%n", (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            try {
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".tails"));
+                Files.deleteIfExists(dir);
+            } catch (IOException ignored) {
+                // Leftover temp files are harmless
+            }
+        }
+    }
+
+    private static void timeStatement(TransactionHistory history, TransactionHistory.Page page, String label, long from, long to) {
+        long start = System.nanoTime();
+        TransactionHistory.Statement statement = history.statement(1, from, to);
+        long count = 0;
+        while (statement.nextPage(page)) count += page.size;
+        System.out.printf("%-24s %12d %12.1f%n", label, count, (System.nanoTime() - start) / 1e6);
+    }
+
+    private static String randomName(SplittableRandom random) {
+        StringBuilder name = new StringBuilder();
+        for (int word = 0; word < 2; word++) {
+            if (word > 0) name.append(' ');
+            name.append((char) ('A' + random.nextInt(26)));
+            int length = 3 + random.nextInt(6);
+            for (int i = 0; i < length; i++) name.append((char) ('a' + random.nextInt(26)));
+        }
+        return name.toString();
+    }
+
+    private static BankingEngine newEngine(int accounts) {
+        AccountStore store = new AccountStore();
+        store.ensureCapacity(accounts);
+        BankingEngine engine = new BankingEngine(store, null, null, Long.MAX_VALUE);
+        for (int i = 0; i < accounts; i++) engine.openAccount("Account Holder", 10_000 * Money.CENTS);
+        return engine;
+    }
+
+    private static long[] balances(BankingEngine engine, int accounts) {
+        long[] balances = new long[accounts + 1];
+        for (int key = 1; key <= accounts; key++) balances[key] = engine.balance(key);
+        return balances;
+    }
+
+    // The account table as the app first kept it, one String[] {name, account number, balance} per account:
+    // every lookup scans the rows, balances are parsed from and written back as strings, and opening or
+    // deleting an account copies the whole table. Kept only as a baseline for the operations benchmark and the
+    // JMH benchmarks under jmh/.
+    static final class StringTableBaseline {
+        private String[][] accountInfo;
+
+        StringTableBaseline(int accounts) {
+            this(accounts, 10_000.0);
+        }
+
+        StringTableBaseline(int accounts, double balance) {
+            accountInfo = new String[accounts][];
+            for (int i = 0; i < accounts; i++) {
+                accountInfo[i] = new String[] {"Account Holder", String.format("SDB-S%05d", i + 1), String.valueOf(balance)};
+            }
+        }
+
+        int open(String name, double initialDeposit) {
+            String[][] newAccountInfo = new String[accountInfo.length + 1][3];
+            for (int i = 0; i < accountInfo.length; i++) {
+                newAccountInfo[i][0] = accountInfo[i][0];
+                newAccountInfo[i][1] = accountInfo[i][1];
+                newAccountInfo[i][2] = accountInfo[i][2];
+            }
+            newAccountInfo[accountInfo.length][0] = name;
+            newAccountInfo[accountInfo.length][1] = String.format("SDB-S%05d", accountInfo.length + 1);
+            newAccountInfo[accountInfo.length][2] = String.valueOf(initialDeposit);
+            accountInfo = newAccountInfo;
+            return accountInfo.length;
+        }
+
+        boolean exists(String accountNumber) {
+            for (String[] account : accountInfo) {
+                if (account[1].equals(accountNumber)) return true;
+            }
+            return false;
+        }
+
+        double balance(String accountNumber) {
+            for (String[] account : accountInfo) {
+                if (account[1].equals(accountNumber)) return Double.parseDouble(account[2]);
+            }
+            return 0.0;
+        }
+
+        void updateBalance(String accountNumber, double newBalance) {
+            for (String[] account : accountInfo) {
+                if (account[1].equals(accountNumber)) {
+                    account[2] = String.valueOf(newBalance);
+                    break;
+                }
+            }
+        }
+
+        double deposit(String accountNumber, double amount) {
+            if (!exists(accountNumber)) return -1;
+            double newBalance = balance(accountNumber) + amount;
+            updateBalance(accountNumber, newBalance);
+            return newBalance;
+        }
+
+        double withdraw(String accountNumber, double amount) {
+            if (!exists(accountNumber)) return -1;
+            double balance = balance(accountNumber);
+            if (balance - amount < 500) return -1;
+            updateBalance(accountNumber, balance - amount);
+            return balance - amount;
+        }
+
+        double transfer(String fromAccountNumber, String toAccountNumber, double amount) {
+            if (!exists(fromAccountNumber) || !exists(toAccountNumber)) return -1;
+            double fromBalance = balance(fromAccountNumber);
+            double toBalance = balance(toAccountNumber);
+            if (fromBalance - 1.02 * amount < 500) return -1;
+            fromBalance -= 1.02 * amount;
+            updateBalance(fromAccountNumber, fromBalance);
+            toBalance += amount;
+            updateBalance(toAccountNumber, toBalance);
+            return fromBalance;
+        }
+
+        boolean delete(String accountNumber) {
+            if (!exists(accountNumber)) return false;
+            String[][] updatedAccountInfo = new String[accountInfo.length - 1][3];
+            int index = 0;
+            for (String[] account : accountInfo) {
+                if (!account[1].equals(accountNumber)) updatedAccountInfo[index++] = account;
+            }
+            accountInfo = updatedAccountInfo;
+            return true;
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long runLookups(AccountStore store, String[] accountNumbers, int lookups) {
+        SplittableRandom random = new SplittableRandom(42);
+        long sink = 0;
+        for (int i = 0; i < lookups; i++) {
+            sink += store.getBalance(AccountStore.parseKey(accountNumbers[random.nextInt(accountNumbers.length)]));
+        }
+        return sink;
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Point-in-time copy of the account store. A snapshot records the journal LSN it covers, so recovery
+// loads the snapshot and replays only the journal records written after it.
+//
+// The file is a fixed-width table that is read through a memory mapping:
+//   header  magic, version, journal LSN, next account key, account count
+//   records one 16 byte record per account sorted by key: key, name offset, balance in cents
+//   names   arena of names, each stored as a 2 byte length followed by UTF-8 bytes
+// Because records are fixed width and sorted, a balance can be read straight from the mapping with a
+// binary search before anything has been loaded onto the heap.
+public final class Snapshot {
+
+    private static final int MAGIC = 0x53424153; // "SBAS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+    private static final int RECORD_SIZE = 4 + 4 + 8;
+
+    private final MappedByteBuffer map;
+    private final long lsn;
+    private final int nextKey;
+    private final int count;
+    private final int namesStart;
+
+    private Snapshot(MappedByteBuffer map) throws IOException {
+        this.map = map;
+        if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException("Not a snapshot file");
+        }
+        this.lsn = map.getLong(8);
+        this.nextKey = map.getInt(16);
+        this.count = map.getInt(20);
+        this.namesStart = HEADER_SIZE + count * RECORD_SIZE;
+        if (namesStart > map.capacity()) throw new IOException("Truncated snapshot file");
+    }
+
+    // Writes the store to a temporary file and renames it over the previous snapshot once it is on disk,
+    // so a crash leaves either the old or the new snapshot, never a partial one.
+    public static void write(Path file, AccountStore store, long lsn) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        int[] lastKey = {0};
+        store.forEach((key, name, balance) -> {
+            if (key <= lastKey[0]) throw new IllegalStateException("Accounts are not in key order");
+            lastKey[0] = key;
+        });
+
+        try {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(lsn);
+                out.writeInt(store.nextKey());
+                out.writeInt(store.size());
+
+                // Fixed-width records first, then the names they point at
+                int[] nameOffset = {0};
+                store.forEach((key, name, balance) -> {
+                    try {
+                        out.writeInt(key);
+                        out.writeInt(nameOffset[0]);
+                        out.writeLong(balance);
+                        nameOffset[0] += 2 + utf8Length(name);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                store.forEach((key, name, balance) -> {
+                    try {
+                        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                        if (bytes.length > 0xFFFF) throw new IllegalStateException("Name of account " + key + " is too long for a snapshot");
+                        out.writeShort(bytes.length);
+                        out.write(bytes);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write snapshot " + file, e);
+        }
+    }
+
+    // Maps an existing snapshot file read-only, or returns null if there is none.
+    public static Snapshot map(Path file) {
+        if (!Files.exists(file)) return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new Snapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to map snapshot " + file, e);
+        }
+    }
+
+    // Journal LSN covered by this snapshot.
+    public long lsn() {
+        return lsn;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    // Returns the record number of an account, or -1 if it is not in the snapshot.
+    public int find(int key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = map.getInt(HEADER_SIZE + mid * RECORD_SIZE);
+            if (midKey < key) low = mid + 1;
+            else if (midKey > key) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    public int keyAt(int record) {
+        return map.getInt(HEADER_SIZE + record * RECORD_SIZE);
+    }
+
+    public long balanceAt(int record) {
+        return map.getLong(HEADER_SIZE + record * RECORD_SIZE + 8);
+    }
+
+    public String nameAt(int record) {
+        int offset = namesStart + map.getInt(HEADER_SIZE + record * RECORD_SIZE + 4);
+        byte[] bytes = new byte[map.getShort(offset) & 0xFFFF];
+        map.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Copies every account into an empty store.
+    public void loadInto(AccountStore store) {
+        store.ensureCapacity(count);
+        ByteBuffer records = map.slice(HEADER_SIZE, count * RECORD_SIZE);
+        byte[] nameBytes = new byte[1 << 16];
+        for (int record = 0; record < count; record++) {
+            int key = records.getInt();
+            int offset = namesStart + records.getInt();
+            long balance = records.getLong();
+
+            int length = map.getShort(offset) & 0xFFFF;
+            map.get(offset + 2, nameBytes, 0, length);
+            store.put(key, nameBytes, 0, length, balance);
+        }
+        store.reserveKeysBelow(nextKey);
+    }
+
+    // Counts the UTF-8 bytes of a name without encoding it.
+    private static int utf8Length(String name) {
+        int length = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 0x80) length++;
+            else if (c < 0x800) length += 2;
+            else if (Character.isSurrogate(c)) {
+                // A valid surrogate pair takes 4 bytes, a lone surrogate is encoded as a single '?'
+                if (Character.isHighSurrogate(c) && i + 1 < name.length() && Character.isLowSurrogate(name.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else length++;
+            } else length += 3;
+        }
+        return length;
+    }
+}
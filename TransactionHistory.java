@@ -0,0 +1,462 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Transaction history of every account, kept on disk with only the newest entries of each account in memory.
+//
+// Each account collects its newest entries in a tail of five longs per entry. A tail that reaches BLOCK_ENTRIES
+// entries is appended to the history file as one block, stored column by column:
+//   header   key, entry count, first and last timestamp
+//   columns  timestamps, amounts, fees, balances after the entry, other account keys, entry types
+// Each account keeps a directory of its blocks with the first timestamp of each, so a statement seeks to the
+// first block of its date range and reads only that account's blocks, one at a time. When the tails of a
+// stripe hold more than STRIPE_BUDGET entries, the fuller half of them are written out early as shorter blocks.
+//
+// Each account's entries are in time order, which statements rely on to seek and to stop at the end of their
+// range: sessions take the time of a change before it is recorded, so an entry whose time is earlier than the
+// account's latest is given the latest one's time instead.
+//
+// A checkpoint writes every tail to a sidecar file together with the journal LSN and the length of the history
+// file it goes with. Recovery drops blocks written after that length and rebuilds their entries by replaying
+// the journal, as it does for the account store.
+//
+// Accounts map to one of a fixed set of striped locks that guards their tails and directories, so entries of
+// one account keep the order they were recorded in.
+public class TransactionHistory implements Closeable {
+
+    // Entry types.
+    public static final byte OPEN = 1;
+    public static final byte DEPOSIT = 2;
+    public static final byte WITHDRAW = 3;
+    public static final byte TRANSFER_OUT = 4;
+    public static final byte TRANSFER_IN = 5;
+    public static final byte CLOSE = 6;
+    public static final byte INTEREST = 7; // Interest as the amount, less the maintenance fee
+    public static final byte REFUND = 8; // A transfer to another shard given back, as its amount and fee
+
+    private static final int TAILS_MAGIC = 0x53424854; // "SBHT"
+    private static final int TAILS_VERSION = 1;
+
+    private static final int BLOCK_ENTRIES = 1_024;
+    private static final int BLOCK_HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final int ENTRY_SIZE = 8 + 8 + 8 + 8 + 4 + 1;
+    private static final int MAX_BLOCK_SIZE = BLOCK_HEADER_SIZE + BLOCK_ENTRIES * ENTRY_SIZE;
+
+    // A tail is a long[] holding its entry count followed by the entries: timestamp, amount, fee, balance,
+    // and the other account key shifted above the type byte.
+    private static final int TAIL_FIELDS = 5;
+    private static final int INITIAL_TAIL_ENTRIES = 4;
+
+    private static final int STRIPES = 256;
+    private static final int STRIPE_BUDGET = (1 << 20) / STRIPES; // About 40 MB of tails in all
+
+    private final Path file;
+    private final Path tailsFile;
+    private final FileChannel channel;
+    private final AtomicLong end = new AtomicLong();
+    private volatile long committedLsn;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final int[] buffered = new int[STRIPES]; // Entries in the tails of each stripe. Guarded by the stripe.
+    private final int[] tailCounts = new int[STRIPES]; // Accounts with a tail in each stripe. Guarded by the stripe.
+    private final KeyTable tails = new KeyTable();
+
+    // Per account: the block count, the last timestamp in its last block, then the file offset and first
+    // timestamp of each block in order.
+    private final KeyTable directories = new KeyTable();
+
+    private TransactionHistory(Path file, FileChannel channel) {
+        this.file = file;
+        this.tailsFile = file.resolveSibling(file.getFileName() + ".tails");
+        this.channel = channel;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
+
+    // Opens the history file, dropping anything written after the last checkpoint, and loads the block
+    // directories and tails. Entries after committedLsn have to be recorded again from the journal.
+    public static TransactionHistory open(Path file) {
+        try {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            TransactionHistory history = new TransactionHistory(file, channel);
+            long length = Files.exists(history.tailsFile) ? history.loadTails() : 0;
+            if (channel.size() < length) throw new IOException("Transaction history is shorter than its checkpoint");
+            channel.truncate(length);
+            history.end.set(length);
+            history.loadDirectories(length);
+            return history;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open transaction history " + file, e);
+        }
+    }
+
+    // Journal LSN of the last checkpoint; every change up to it is in the history.
+    public long committedLsn() {
+        return committedLsn;
+    }
+
+    // Adds an entry to the end of an account's history. The balance is the account's balance after the entry.
+    // A timestamp earlier than the account's latest entry is recorded as that entry's.
+    public void record(int key, long timestamp, byte type, long amount, long fee, int otherKey, long balance) {
+        int stripeIndex = key & (STRIPES - 1);
+        ReentrantLock stripe = stripes[stripeIndex];
+        stripe.lock();
+        try {
+            long[] tail = tails.get(key);
+            if (tail == null) {
+                tail = new long[1 + INITIAL_TAIL_ENTRIES * TAIL_FIELDS];
+                tails.set(key, tail);
+                tailCounts[stripeIndex]++;
+            }
+            int count = (int) tail[0];
+            if (1 + (count + 1) * TAIL_FIELDS > tail.length) {
+                tail = Arrays.copyOf(tail, 1 + Math.min(count * 2, BLOCK_ENTRIES) * TAIL_FIELDS);
+                tails.set(key, tail);
+            }
+            long[] directory = directories.get(key);
+            long latest = count > 0 ? tail[1 + (count - 1) * TAIL_FIELDS]
+                    : directory == null ? Long.MIN_VALUE : directory[1];
+
+            int at = 1 + count * TAIL_FIELDS;
+            tail[at] = Math.max(timestamp, latest);
+            tail[at + 1] = amount;
+            tail[at + 2] = fee;
+            tail[at + 3] = balance;
+            tail[at + 4] = (long) otherKey << 8 | (type & 0xFF);
+            tail[0] = count + 1;
+            buffered[stripeIndex]++;
+
+            if (count + 1 == BLOCK_ENTRIES) {
+                // Keep the full-size tail, as the account is clearly a busy one
+                writeBlock(key, tail);
+                tail[0] = 0;
+                buffered[stripeIndex] -= BLOCK_ENTRIES;
+            } else if (buffered[stripeIndex] > STRIPE_BUDGET) {
+                spillStripe(stripeIndex);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    // Starts reading the entries of an account recorded between two timestamps, both inclusive.
+    public Statement statement(int key, long fromMillis, long toMillis) {
+        ReentrantLock stripe = stripes[key & (STRIPES - 1)];
+        stripe.lock();
+        try {
+            long[] directory = directories.get(key);
+            long[] tail = tails.get(key);
+            return new Statement(fromMillis, toMillis, directory, directory == null ? 0 : (int) directory[0],
+                    tail == null ? null : Arrays.copyOf(tail, 1 + (int) tail[0] * TAIL_FIELDS), end.get());
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    // Makes every entry recorded so far durable as of the given journal LSN. No entries may be recorded
+    // while it runs.
+    public void checkpoint(long lsn) {
+        for (ReentrantLock stripe : stripes) stripe.lock();
+        try {
+            channel.force(false);
+            Path temp = tailsFile.resolveSibling(tailsFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.writeInt(TAILS_MAGIC);
+                out.writeInt(TAILS_VERSION);
+                out.writeLong(lsn);
+                out.writeLong(end.get());
+                for (int key = 1; key < tails.capacity(); key++) {
+                    long[] tail = tails.get(key);
+                    if (tail == null || tail[0] == 0) continue;
+                    out.writeInt(key);
+                    out.writeInt((int) tail[0]);
+                    for (int i = 1; i <= tail[0] * TAIL_FIELDS; i++) out.writeLong(tail[i]);
+                }
+                out.writeInt(0); // Keys start at 1, so 0 ends the list
+            }
+            try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                tempChannel.force(true);
+            }
+            Files.move(temp, tailsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committedLsn = lsn;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to checkpoint transaction history " + file, e);
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--) stripes[i].unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to close transaction history " + file, e);
+        }
+    }
+
+    // Writes out the tails of a stripe that hold at least the average number of entries, which is always
+    // at least one tail, and drops them from memory.
+    private void spillStripe(int stripeIndex) {
+        int average = buffered[stripeIndex] / Math.max(1, tailCounts[stripeIndex]);
+        for (int key = stripeIndex; key < tails.capacity(); key += STRIPES) {
+            long[] tail = tails.get(key);
+            if (tail == null || tail[0] < Math.max(1, average)) continue;
+            writeBlock(key, tail);
+            buffered[stripeIndex] -= (int) tail[0];
+            tailCounts[stripeIndex]--;
+            tails.set(key, null);
+        }
+    }
+
+    // Appends a tail to the history file as one block and adds it to the account's directory.
+    private void writeBlock(int key, long[] tail) {
+        int count = (int) tail[0];
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_SIZE + count * ENTRY_SIZE);
+        block.putInt(key).putInt(count).putLong(tail[1]).putLong(tail[1 + (count - 1) * TAIL_FIELDS]);
+        for (int field = 0; field < 4; field++) {
+            for (int i = 0; i < count; i++) block.putLong(tail[1 + i * TAIL_FIELDS + field]);
+        }
+        for (int i = 0; i < count; i++) block.putInt((int) (tail[(i + 1) * TAIL_FIELDS] >> 8));
+        for (int i = 0; i < count; i++) block.put((byte) tail[(i + 1) * TAIL_FIELDS]);
+        block.flip();
+
+        long offset = end.getAndAdd(block.limit());
+        try {
+            while (block.hasRemaining()) channel.write(block, offset + block.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write transaction history " + file, e);
+        }
+        addBlock(key, offset, tail[1], tail[1 + (count - 1) * TAIL_FIELDS]);
+    }
+
+    private void addBlock(int key, long offset, long firstTimestamp, long lastTimestamp) {
+        long[] directory = directories.get(key);
+        if (directory == null) directory = new long[2 + 2 * 2];
+        int blocks = (int) directory[0];
+        if (2 + (blocks + 1) * 2 > directory.length) directory = Arrays.copyOf(directory, 2 + blocks * 2 * 2);
+        directory[2 + blocks * 2] = offset;
+        directory[3 + blocks * 2] = firstTimestamp;
+        directory[1] = lastTimestamp;
+        directory[0] = blocks + 1;
+        directories.set(key, directory);
+    }
+
+    // Reads the tails written by the last checkpoint and returns the history file length that goes with them.
+    private long loadTails() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(tailsFile), 1 << 16))) {
+            if (in.readInt() != TAILS_MAGIC || in.readInt() != TAILS_VERSION) {
+                throw new IOException("Not a transaction history tails file");
+            }
+            committedLsn = in.readLong();
+            long length = in.readLong();
+            for (int key = in.readInt(); key != 0; key = in.readInt()) {
+                int count = in.readInt();
+                long[] tail = new long[1 + Math.max(count, INITIAL_TAIL_ENTRIES) * TAIL_FIELDS];
+                tail[0] = count;
+                for (int i = 1; i <= count * TAIL_FIELDS; i++) tail[i] = in.readLong();
+                tails.set(key, tail);
+                buffered[key & (STRIPES - 1)] += count;
+                tailCounts[key & (STRIPES - 1)]++;
+            }
+            return length;
+        } catch (EOFException e) {
+            throw new IOException("Truncated transaction history tails file", e);
+        }
+    }
+
+    // Rebuilds the block directories from the block headers in the first length bytes of the history file.
+    private void loadDirectories(long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        long offset = 0;
+        while (offset < length) {
+            header.clear();
+            readFully(header, offset);
+            int key = header.getInt(0);
+            int count = header.getInt(4);
+            addBlock(key, offset, header.getLong(8), header.getLong(16));
+            offset += BLOCK_HEADER_SIZE + (long) count * ENTRY_SIZE;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) throw new EOFException("Truncated transaction history");
+        }
+    }
+
+    // Entries of one account in a date range, in the order they were recorded, which is time order, read a page
+    // at a time.
+    // Only the block being read is held in memory. Entries recorded after the statement was started are not
+    // included.
+    public final class Statement {
+        private final long from;
+        private final long to;
+        private final long[] directory;
+        private final int blocks;
+        private final long[] tail;
+        private final long fileEnd;
+        private final ByteBuffer block = ByteBuffer.allocate(MAX_BLOCK_SIZE);
+
+        private int nextBlock;
+        private boolean inTail;
+        private boolean done;
+
+        // Entries in the block or tail being read, and the next one to look at.
+        private int entries;
+        private int next;
+
+        private Statement(long from, long to, long[] directory, int blocks, long[] tail, long fileEnd) {
+            this.from = from;
+            this.to = to;
+            this.directory = directory;
+            this.blocks = blocks;
+            this.tail = tail;
+            this.fileEnd = fileEnd;
+
+            // Start at the last block that begins before the range, as it may run into it
+            int low = 0;
+            int high = blocks;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (directory[3 + mid * 2] < from) low = mid + 1;
+                else high = mid;
+            }
+            this.nextBlock = Math.max(0, low - 1);
+        }
+
+        // Fills the page with the next entries and returns false once there are none left.
+        public boolean nextPage(Page page) {
+            page.size = 0;
+            while (page.size < page.capacity() && !done) {
+                if (next == entries) {
+                    if (!advance()) done = true;
+                    continue;
+                }
+                int i = next++;
+                long timestamp = inTail ? tail[1 + i * TAIL_FIELDS] : block.getLong(BLOCK_HEADER_SIZE + i * 8);
+                if (timestamp < from) continue;
+                if (timestamp > to) {
+                    done = true;
+                    break;
+                }
+
+                int n = page.size++;
+                page.timestamps[n] = timestamp;
+                if (inTail) {
+                    int at = 1 + i * TAIL_FIELDS;
+                    page.amounts[n] = tail[at + 1];
+                    page.fees[n] = tail[at + 2];
+                    page.balances[n] = tail[at + 3];
+                    page.otherKeys[n] = (int) (tail[at + 4] >> 8);
+                    page.types[n] = (byte) tail[at + 4];
+                } else {
+                    int column = BLOCK_HEADER_SIZE + entries * 8;
+                    page.amounts[n] = block.getLong(column + i * 8);
+                    page.fees[n] = block.getLong(column + entries * 8 + i * 8);
+                    page.balances[n] = block.getLong(column + entries * 16 + i * 8);
+                    page.otherKeys[n] = block.getInt(column + entries * 24 + i * 4);
+                    page.types[n] = block.get(column + entries * 28 + i);
+                }
+            }
+            return page.size > 0;
+        }
+
+        // Moves on to the next block, or to the tail after the last block.
+        private boolean advance() {
+            if (nextBlock < blocks) {
+                long offset = directory[2 + nextBlock * 2];
+                nextBlock++;
+                block.clear();
+                block.limit((int) Math.min(MAX_BLOCK_SIZE, fileEnd - offset));
+                try {
+                    readFully(block, offset);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to read transaction history " + file, e);
+                }
+                entries = block.getInt(4);
+                next = 0;
+                return true;
+            }
+            if (!inTail && tail != null) {
+                inTail = true;
+                entries = (int) tail[0];
+                next = 0;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // One page of statement entries in columns, reused from page to page.
+    public static final class Page {
+        public final long[] timestamps;
+        public final byte[] types;
+        public final long[] amounts;
+        public final long[] fees;
+        public final long[] balances;
+        public final int[] otherKeys;
+        public int size;
+
+        public Page(int capacity) {
+            timestamps = new long[capacity];
+            types = new byte[capacity];
+            amounts = new long[capacity];
+            fees = new long[capacity];
+            balances = new long[capacity];
+            otherKeys = new int[capacity];
+        }
+
+        public int capacity() {
+            return timestamps.length;
+        }
+    }
+
+    // Per-account arrays indexed by key, in fixed-size chunks so growing never copies the arrays themselves.
+    // Slots are read and written under the stripe lock of their key.
+    private static final class KeyTable {
+        private static final int CHUNK_BITS = 14;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+        private volatile long[][][] chunks = new long[0][][];
+
+        long[] get(int key) {
+            long[][][] current = chunks;
+            int chunk = key >>> CHUNK_BITS;
+            return chunk < current.length ? current[chunk][key & (CHUNK_SIZE - 1)] : null;
+        }
+
+        void set(int key, long[] value) {
+            int chunk = key >>> CHUNK_BITS;
+            if (chunk >= chunks.length) grow(chunk);
+            chunks[chunk][key & (CHUNK_SIZE - 1)] = value;
+        }
+
+        // One more than the highest key that can have an array.
+        int capacity() {
+            return chunks.length << CHUNK_BITS;
+        }
+
+        private synchronized void grow(int chunk) {
+            if (chunk < chunks.length) return;
+            long[][][] grown = Arrays.copyOf(chunks, chunk + 1);
+            for (int i = chunks.length; i < grown.length; i++) grown[i] = new long[CHUNK_SIZE][];
+            chunks = grown;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+// One shard's half of a transfer between shards, under the transfer's ID. The receiver's half is PREPARED, and
+// then CREDITED, or REFUSED if it was aborted, lapsed or was never prepared; the sender's half is DEBITED, and
+// REFUNDED if its credit was refused. BankingEngine journals every change of state, and journal replay rebuilds
+// the halves, so a shard answers a resent half the same way after a restart as before it.
+public final class TransferHalf {
+
+    public static final byte NEW = 0; // Not applied or journaled yet
+    public static final byte PREPARED = 1;
+    public static final byte CREDITED = 2;
+    public static final byte REFUSED = 3;
+    public static final byte DEBITED = 4;
+    public static final byte REFUNDED = 5;
+
+    // Longest transfer ID, so a journal record carrying one still fits the room Journal.logInOrder makes.
+    public static final int MAX_ID_LENGTH = 64;
+
+    public final String id;
+    public final int key; // The account this shard changes
+    public final int otherKey;
+    public final long amount;
+
+    // Held while the half is looked at or changed, so a resent half waits for the first one to be answered.
+    public final ReentrantLock lock = new ReentrantLock();
+
+    // The state, the balance answered when the half was last applied, and when it last changed.
+    public volatile byte state = NEW;
+    public volatile long result;
+    public volatile long changedAt;
+
+    public TransferHalf(String id, int key, int otherKey, long amount) {
+        this.id = id;
+        this.key = key;
+        this.otherKey = otherKey;
+        this.amount = amount;
+    }
+
+    // Checks an ID is 1 to MAX_ID_LENGTH printable ASCII characters other than spaces.
+    public static boolean isValidId(String id) {
+        if (id == null || id.isEmpty() || id.length() > MAX_ID_LENGTH) return false;
+        for (int i = 0; i < id.length(); i++) {
+            if (id.charAt(i) <= ' ' || id.charAt(i) > '~') return false;
+        }
+        return true;
+    }
+
+    public boolean isIncoming() {
+        return state == PREPARED || state == CREDITED || state == REFUSED;
+    }
+
+    public boolean matches(int key, int otherKey, long amount) {
+        return this.key == key && this.otherKey == otherKey && this.amount == amount;
+    }
+
+    // Moves the half to a new state, the state last so a reader that sees it sees the rest.
+    public void settle(byte state, long result, long changedAt) {
+        this.result = result;
+        this.changedAt = changedAt;
+        this.state = state;
+    }
+}
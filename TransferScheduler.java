@@ -0,0 +1,148 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Applies a batch of operations that each touch one or two accounts, running operations that share no
+// account concurrently on a ForkJoinPool.
+//
+// Each operation is put in the wave after the latest wave of its accounts. Operations in one wave touch
+// disjoint accounts, so they can run in any order, and every account sees its operations in batch order
+// because waves run one after another. The balances and results are therefore exactly those of applying
+// the batch one operation at a time.
+public class TransferScheduler {
+
+    // Runs one operation of the batch and returns its result.
+    public interface Operation {
+        long apply(int index);
+    }
+
+    private static final int MIN_PARALLEL_WAVE = 2_048; // Smaller waves are run on the calling thread
+    private static final int LEAF_SIZE = 512; // Operations per fork-join task
+
+    private final BankingEngine engine;
+    private final ForkJoinPool pool;
+    private final int capacity;
+
+    // Operation indexes ordered by wave, and where each wave starts in that order.
+    private final int[] waves;
+    private final int[] order;
+    private final int[] waveStarts;
+
+    // Last wave that touched each account in the batch, in an open-addressing table at most half full.
+    private final int[] waveKeys;
+    private final int[] lastWaves;
+
+    // Schedules batches of up to capacity operations on the given pool.
+    public TransferScheduler(BankingEngine engine, ForkJoinPool pool, int capacity) {
+        this.engine = engine;
+        this.pool = pool;
+        this.capacity = capacity;
+        this.waves = new int[capacity];
+        this.order = new int[capacity];
+        this.waveStarts = new int[capacity + 2];
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 1) * 4 - 1) << 1;
+        this.waveKeys = new int[tableSize];
+        this.lastWaves = new int[tableSize];
+    }
+
+    // Transfers amounts[i] from fromKeys[i] to toKeys[i] and stores what engine.transfer returned in
+    // results[i], as if the transfers had been made in index order.
+    public void transfer(int[] fromKeys, int[] toKeys, long[] amounts, int count, long[] results) {
+        apply(fromKeys, toKeys, count, i -> engine.transfer(fromKeys[i], toKeys[i], amounts[i]), results);
+    }
+
+    // Runs operations 0 to count - 1 and stores their results. Operation i touches fromKeys[i] and, if it is
+    // not 0, toKeys[i]; an operation whose fromKeys entry is 0 is skipped and its result left as it was.
+    // Returns the number of waves the batch took.
+    public int apply(int[] fromKeys, int[] toKeys, int count, Operation operation, long[] results) {
+        if (count > capacity) throw new IllegalArgumentException("Batch of " + count + " exceeds " + capacity);
+        int waveCount = scheduleWaves(fromKeys, toKeys, count);
+        for (int wave = 1; wave <= waveCount; wave++) {
+            int from = waveStarts[wave];
+            int to = waveStarts[wave + 1];
+            if (to - from < MIN_PARALLEL_WAVE || pool.getParallelism() == 1) {
+                run(operation, results, from, to);
+            } else {
+                pool.invoke(new WaveTask(operation, results, from, to));
+            }
+        }
+        return waveCount;
+    }
+
+    // Gives each operation the wave after the latest wave of its accounts and orders the operations by wave.
+    // Returns the number of waves.
+    private int scheduleWaves(int[] fromKeys, int[] toKeys, int count) {
+        Arrays.fill(waveKeys, 0);
+        int waveCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (fromKeys[i] == 0) {
+                waves[i] = 0;
+                continue;
+            }
+            int fromSlot = slotOf(fromKeys[i]);
+            int toSlot = toKeys[i] == 0 ? fromSlot : slotOf(toKeys[i]);
+            int wave = Math.max(lastWaves[fromSlot], lastWaves[toSlot]) + 1;
+            lastWaves[fromSlot] = wave;
+            lastWaves[toSlot] = wave;
+            waves[i] = wave;
+            waveCount = Math.max(waveCount, wave);
+        }
+
+        // Counting sort by wave; wave 0 holds the skipped operations and is never run
+        Arrays.fill(waveStarts, 0, waveCount + 2, 0);
+        for (int i = 0; i < count; i++) waveStarts[waves[i] + 1]++;
+        for (int wave = 1; wave <= waveCount + 1; wave++) waveStarts[wave] += waveStarts[wave - 1];
+        int[] next = Arrays.copyOf(waveStarts, waveCount + 1);
+        for (int i = 0; i < count; i++) order[next[waves[i]]++] = i;
+        return waveCount;
+    }
+
+    // Returns the slot of an account in the wave table, adding it with wave 0 if it is new.
+    private int slotOf(int key) {
+        int mask = waveKeys.length - 1;
+        int h = key * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (waveKeys[slot] != key) {
+            if (waveKeys[slot] == 0) {
+                waveKeys[slot] = key;
+                lastWaves[slot] = 0;
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void run(Operation operation, long[] results, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int index = order[i];
+            results[index] = operation.apply(index);
+        }
+    }
+
+    // Splits a wave in halves until each task has at most LEAF_SIZE operations.
+    @SuppressWarnings("serial") // Tasks are never serialised
+    private final class WaveTask extends RecursiveAction {
+        private final Operation operation;
+        private final long[] results;
+        private final int from;
+        private final int to;
+
+        WaveTask(Operation operation, long[] results, int from, int to) {
+            this.operation = operation;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE) {
+                run(operation, results, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new WaveTask(operation, results, from, middle), new WaveTask(operation, results, middle, to));
+        }
+    }
+}
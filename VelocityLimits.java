@@ -0,0 +1,124 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Per-account velocity limits on money leaving an account: at most maxCount withdrawals and outgoing transfers,
+// and at most maxAmount in total, per window. Each limit is a token bucket that holds a full window's worth,
+// so an account can use it in one burst and it refills evenly over the window.
+//
+// A bucket is kept as a single long: the time at which it will be full again. Taking from it moves that time
+// forward by the cost, an even share of the window per operation and per cent, and is refused if the time
+// would end up more than a window ahead. So a check is two compare-and-set updates on the account's 16 byte
+// record, with no locks and no allocation, and works the same under striped locks and lock-free updates.
+// Records are addressed by account key in direct buffers of CHUNK_SIZE records, each added the first time a key
+// in it is limited, so memory follows the keys that are actually used; a fresh record reads as two full
+// buckets. Callers only pass keys of open accounts.
+public final class VelocityLimits {
+
+    private static final int RECORD_SIZE = 16; // Count bucket, amount bucket
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final VarHandle BUCKET = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final int maxCount;
+    private final long maxAmount;
+    private final long windowNanos;
+    private final long countCost;
+    private final double amountCostPerCent;
+    private final long origin = System.nanoTime(); // Bucket times count from here, so 0 is always in the past
+
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+    // Allows up to maxCount operations and maxAmount cents per account in every windowMillis.
+    public VelocityLimits(int maxCount, long maxAmount, long windowMillis) {
+        if (maxCount < 1 || maxAmount < 1 || windowMillis < 1) throw new IllegalArgumentException("Velocity limits must be positive");
+        this.maxCount = maxCount;
+        this.maxAmount = maxAmount;
+        this.windowNanos = windowMillis * 1_000_000;
+        this.countCost = windowNanos / maxCount;
+        this.amountCostPerCent = (double) windowNanos / maxAmount;
+    }
+
+    // Parses limits written as <count>,<amount>,<seconds>, e.g. 10,50000,3600 for ten operations and
+    // LKR 50000.00 an hour.
+    public static VelocityLimits parse(String limits) {
+        String[] parts = limits.split(",");
+        long amount = parts.length == 3 ? Money.parseCents(parts[1].trim()) : -1;
+        if (amount < 0) throw new IllegalArgumentException("Velocity limits must be <count>,<amount>,<seconds>: " + limits);
+        return new VelocityLimits(Integer.parseInt(parts[0].trim()), amount, Long.parseLong(parts[2].trim()) * 1000);
+    }
+
+    public int maxCount() {
+        return maxCount;
+    }
+
+    public long maxAmount() {
+        return maxAmount;
+    }
+
+    public long windowMillis() {
+        return windowNanos / 1_000_000;
+    }
+
+    // Takes one operation and the amount from the account's buckets, or returns false, taking nothing, if
+    // either would go over its limit. Safe to call from any thread.
+    public boolean tryAcquire(int key, long amount) {
+        long cost = amountCost(amount);
+        if (cost > windowNanos) return false;
+        ByteBuffer records = records(key);
+        int offset = offset(key);
+        long now = System.nanoTime() - origin;
+        if (!take(records, offset, countCost, now)) return false;
+        if (take(records, offset + 8, cost, now)) return true;
+        BUCKET.getAndAdd(records, offset, -countCost);
+        return false;
+    }
+
+    // Gives back what tryAcquire took for an operation that was then rejected for another reason.
+    public void release(int key, long amount) {
+        ByteBuffer records = records(key);
+        int offset = offset(key);
+        BUCKET.getAndAdd(records, offset, -countCost);
+        BUCKET.getAndAdd(records, offset + 8, -amountCost(amount));
+    }
+
+    private boolean take(ByteBuffer records, int offset, long cost, long now) {
+        while (true) {
+            long full = (long) BUCKET.getVolatile(records, offset);
+            long taken = Math.max(full, now) + cost;
+            if (taken - now > windowNanos) return false;
+            if (BUCKET.compareAndSet(records, offset, full, taken)) return true;
+        }
+    }
+
+    // Share of the window an amount takes, more than all of it if the amount is over the limit on its own.
+    private long amountCost(long amount) {
+        if (amount > maxAmount) return windowNanos + 1;
+        return Math.min(windowNanos, (long) (amount * amountCostPerCent));
+    }
+
+    // Returns the chunk holding a key's record, adding that chunk if needed. Chunks below it that no key has
+    // used yet stay unallocated. A new directory is published with the chunk in it, so readers never see a
+    // chunk before it is ready.
+    private ByteBuffer records(int key) {
+        int chunk = key >>> CHUNK_BITS;
+        ByteBuffer[] current = chunks;
+        if (chunk < current.length && current[chunk] != null) return current[chunk];
+        synchronized (this) {
+            current = chunks;
+            if (chunk < current.length && current[chunk] != null) return current[chunk];
+            ByteBuffer[] grown = Arrays.copyOf(current, Math.max(current.length, chunk + 1));
+            // Over-allocated and sliced so every bucket is 8 byte aligned, as atomic access requires
+            grown[chunk] = ByteBuffer.allocateDirect(CHUNK_SIZE * RECORD_SIZE + 7).alignedSlice(8).order(ByteOrder.nativeOrder());
+            chunks = grown;
+            return grown[chunk];
+        }
+    }
+
+    private static int offset(int key) {
+        return (key & (CHUNK_SIZE - 1)) * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,55 @@
+import smartbanking.jmh.Bank;
+
+// The engine, as the JMH benchmarks reach it. Accounts are opened through the engine, so they get the keys
+// 1 up to the number of accounts.
+public class EngineBank implements Bank {
+
+    private final BankingEngine engine;
+
+    public EngineBank(String mode, int accounts, long balance) {
+        AccountStore store = new AccountStore();
+        store.ensureCapacity(accounts);
+        engine = new BankingEngine(BankingEngine.Mode.valueOf(mode), store, null, null, Long.MAX_VALUE);
+        for (int i = 0; i < accounts; i++) engine.openAccount("Account Holder", balance);
+    }
+
+    @Override
+    public long open(String name, long initialDeposit) {
+        return engine.openAccount(name, initialDeposit);
+    }
+
+    @Override
+    public boolean exists(String accountNumber) {
+        return engine.exists(AccountStore.parseKey(accountNumber));
+    }
+
+    @Override
+    public long deposit(String accountNumber, long amount) {
+        return engine.deposit(AccountStore.parseKey(accountNumber), amount);
+    }
+
+    @Override
+    public long withdraw(String accountNumber, long amount) {
+        return engine.withdraw(AccountStore.parseKey(accountNumber), amount);
+    }
+
+    @Override
+    public long transfer(String fromAccountNumber, String toAccountNumber, long amount) {
+        return engine.transfer(AccountStore.parseKey(fromAccountNumber), AccountStore.parseKey(toAccountNumber), amount);
+    }
+
+    @Override
+    public long balance(String accountNumber) {
+        return engine.balance(AccountStore.parseKey(accountNumber));
+    }
+
+    @Override
+    public boolean delete(String accountNumber) {
+        return engine.deleteAccount(AccountStore.parseKey(accountNumber)) >= 0;
+    }
+
+    @Override
+    public String accountNumber(int key) {
+        return AccountStore.formatAccountNumber(key);
+    }
+}
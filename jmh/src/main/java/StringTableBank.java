@@ -0,0 +1,56 @@
+import smartbanking.jmh.Bank;
+
+// The original String[][] account table, as the JMH benchmarks reach it. The table keeps balances in rupees as
+// doubles, so amounts are converted from cents on the way in and back on the way out.
+public class StringTableBank implements Bank {
+
+    private final SmartBankingBenchmark.StringTableBaseline table;
+
+    public StringTableBank(int accounts, long balance) {
+        table = new SmartBankingBenchmark.StringTableBaseline(accounts, (double) balance / Money.CENTS);
+    }
+
+    @Override
+    public long open(String name, long initialDeposit) {
+        return table.open(name, (double) initialDeposit / Money.CENTS);
+    }
+
+    @Override
+    public boolean exists(String accountNumber) {
+        return table.exists(accountNumber);
+    }
+
+    @Override
+    public long deposit(String accountNumber, long amount) {
+        return cents(table.deposit(accountNumber, (double) amount / Money.CENTS));
+    }
+
+    @Override
+    public long withdraw(String accountNumber, long amount) {
+        return cents(table.withdraw(accountNumber, (double) amount / Money.CENTS));
+    }
+
+    @Override
+    public long transfer(String fromAccountNumber, String toAccountNumber, long amount) {
+        return cents(table.transfer(fromAccountNumber, toAccountNumber, (double) amount / Money.CENTS));
+    }
+
+    @Override
+    public long balance(String accountNumber) {
+        return cents(table.balance(accountNumber));
+    }
+
+    @Override
+    public boolean delete(String accountNumber) {
+        return table.delete(accountNumber);
+    }
+
+    @Override
+    public String accountNumber(int key) {
+        return AccountStore.formatAccountNumber(key);
+    }
+
+    private static long cents(double rupees) {
+        return (long) (rupees * Money.CENTS);
+    }
+}
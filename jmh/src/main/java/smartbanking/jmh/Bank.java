@@ -0,0 +1,64 @@
+package smartbanking.jmh;
+
+import java.lang.reflect.InvocationTargetException;
+
+// The banking operations the benchmarks time, over one account layout. Amounts are in cents and accounts are
+// named by their account numbers, so each operation includes parsing the number as the app does.
+// JMH will not generate code for benchmarks in the default package, and code in a named package cannot refer
+// to the app's classes, which are all in the default package. So the layouts implement this interface from
+// the default package and are loaded by name, once, when a benchmark sets up.
+public interface Bank {
+
+    long CENTS = 100; // In a rupee, as in Money
+
+    long open(String name, long initialDeposit);
+
+    boolean exists(String accountNumber);
+
+    long deposit(String accountNumber, long amount);
+
+    long withdraw(String accountNumber, long amount);
+
+    long transfer(String fromAccountNumber, String toAccountNumber, long amount);
+
+    long balance(String accountNumber);
+
+    boolean delete(String accountNumber);
+
+    // The account number of the given key, as the app formats it.
+    String accountNumber(int key);
+
+    // A BankingEngine in the given mode, STRIPED_LOCKS or LOCK_FREE, with no journal, holding the given number
+    // of accounts with the given balance each.
+    static Bank engine(String mode, int accounts, long balance) {
+        return load("EngineBank", new Class<?>[] {String.class, int.class, long.class}, mode, accounts, balance);
+    }
+
+    // The original String[][] account table holding the given number of accounts with the given balance each.
+    static Bank table(int accounts, long balance) {
+        return load("StringTableBank", new Class<?>[] {int.class, long.class}, accounts, balance);
+    }
+
+    // The engine in its default mode or the String[][] table, by the name the benchmarks give it.
+    static Bank of(String layout, int accounts, long balance) {
+        switch (layout) {
+            case "engine":
+                return engine("STRIPED_LOCKS", accounts, balance);
+            case "String[][]":
+                return table(accounts, balance);
+            default:
+                throw new IllegalArgumentException("Unknown layout: " + layout);
+        }
+    }
+
+    private static Bank load(String className, Class<?>[] parameterTypes, Object... arguments) {
+        try {
+            return (Bank) Class.forName(className).getDeclaredConstructor(parameterTypes).newInstance(arguments);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Cannot create " + className, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package smartbanking.jmh;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+// Compares the striped-lock and lock-free engine modes at 1, 8 and 32 threads, as the contention benchmark
+// does: every thread makes random deposits, withdrawals and transfers over a small set of hot accounts shared
+// by all of them. Scores are operations per second summed over the threads.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModeContentionBenchmark {
+
+    static final int ACCOUNTS = 64;
+
+    @Param({"STRIPED_LOCKS", "LOCK_FREE"})
+    public String mode;
+
+    private Bank bank;
+    private String[] numbers;
+
+    @State(Scope.Thread)
+    public static class Worker {
+        SplittableRandom random;
+
+        @Setup
+        public void setUp(ThreadParams thread) {
+            random = new SplittableRandom(thread.getThreadIndex());
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        bank = Bank.engine(mode, ACCOUNTS, 10_000 * Bank.CENTS);
+        numbers = new String[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) numbers[i] = bank.accountNumber(1 + i);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long threads1(Worker worker) {
+        return operate(worker.random);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long threads8(Worker worker) {
+        return operate(worker.random);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long threads32(Worker worker) {
+        return operate(worker.random);
+    }
+
+    private long operate(SplittableRandom random) {
+        String accountNumber = numbers[random.nextInt(ACCOUNTS)];
+        long amount = (100 + random.nextInt(2_000)) * Bank.CENTS;
+        switch (random.nextInt(3)) {
+            case 0:
+                return bank.deposit(accountNumber, amount);
+            case 1:
+                return bank.withdraw(accountNumber, amount);
+            default:
+                return bank.transfer(accountNumber, numbers[random.nextInt(ACCOUNTS)], amount);
+        }
+    }
+}
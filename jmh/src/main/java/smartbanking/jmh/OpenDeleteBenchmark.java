@@ -0,0 +1,75 @@
+package smartbanking.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Times opening and deleting accounts through the engine and through the original String[][] table, for 1k up
+// to 10M accounts. Both change the number of accounts, so each call makes a batch of them and the accounts are
+// set up again, outside the timing, once the batches have opened or deleted as many as there were to begin
+// with. -prof gc counts what that allocates too, spread over all those calls, and it is little next to what
+// the calls allocate themselves. The String[][] table copies itself on every open and delete, so at 10M
+// accounts a batch can take a minute.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(OpenDeleteBenchmark.BATCH)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4500m")
+@State(Scope.Thread)
+public class OpenDeleteBenchmark {
+
+    static final int BATCH = 100;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int accounts;
+
+    @Param({"engine", "String[][]"})
+    public String layout;
+
+    private Bank bank;
+    private String[] numbers;
+    private int used;
+
+    // Formats every account number up front, as formatting them batch by batch would allocate more than the
+    // engine's deletes do.
+    @Setup
+    public void setUp() {
+        bank = Bank.of(layout, accounts, 10_000 * Bank.CENTS);
+        numbers = new String[accounts];
+        for (int i = 0; i < accounts; i++) numbers[i] = bank.accountNumber(i + 1);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextBatch() {
+        if (used + BATCH > accounts) {
+            bank = null; // Let the old accounts go before making the new ones
+            bank = Bank.of(layout, accounts, 10_000 * Bank.CENTS);
+            used = 0;
+        }
+        used += BATCH;
+    }
+
+    @Benchmark
+    public void open(Blackhole blackhole) {
+        for (int j = 0; j < BATCH; j++) blackhole.consume(bank.open("Account Holder", 10_000 * Bank.CENTS));
+    }
+
+    @Benchmark
+    public void delete(Blackhole blackhole) {
+        for (int i = used - BATCH; i < used; i++) blackhole.consume(bank.delete(numbers[i]));
+    }
+}
@@ -0,0 +1,78 @@
+package smartbanking.jmh;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Times the operations that leave the number of accounts as it is, through the engine and through the original
+// String[][] table, for 1k up to 10M accounts. Each call works on one of a fixed set of random accounts, so
+// the numbers do not depend on how many calls a run makes. Run with -prof gc for the bytes allocated per call.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4500m")
+@State(Scope.Thread)
+public class OperationsBenchmark {
+
+    static final int SAMPLES = 4_096; // Account numbers the operations cycle through, a power of two
+
+    // Large enough that withdrawals and transfers never run an account down to the minimum within a run, which
+    // would time the rejection instead.
+    static final long BALANCE = 1_000_000_000 * Bank.CENTS;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int accounts;
+
+    @Param({"engine", "String[][]"})
+    public String layout;
+
+    private Bank bank;
+    private String[] numbers;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        bank = Bank.of(layout, accounts, BALANCE);
+        SplittableRandom random = new SplittableRandom(accounts);
+        numbers = new String[SAMPLES];
+        for (int j = 0; j < SAMPLES; j++) numbers[j] = bank.accountNumber(1 + random.nextInt(accounts));
+    }
+
+    @Benchmark
+    public boolean lookup() {
+        return bank.exists(numbers[i++ & (SAMPLES - 1)]);
+    }
+
+    @Benchmark
+    public long deposit() {
+        return bank.deposit(numbers[i++ & (SAMPLES - 1)], 500 * Bank.CENTS);
+    }
+
+    @Benchmark
+    public long withdraw() {
+        return bank.withdraw(numbers[i++ & (SAMPLES - 1)], 100 * Bank.CENTS);
+    }
+
+    @Benchmark
+    public long transfer() {
+        int from = i++;
+        return bank.transfer(numbers[from & (SAMPLES - 1)], numbers[(from + 1) & (SAMPLES - 1)], 100 * Bank.CENTS);
+    }
+
+    @Benchmark
+    public long balance() {
+        return bank.balance(numbers[i++ & (SAMPLES - 1)]);
+    }
+}
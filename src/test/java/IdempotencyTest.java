@@ -0,0 +1,97 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+// Client request IDs: a retry gets the first attempt's result instead of being applied again.
+class IdempotencyTest {
+
+    private final BankingEngine engine = new BankingEngine(new AccountStore(), null, null, Long.MAX_VALUE);
+
+    @Test
+    void retryGetsTheFirstResult() {
+        int key = (int) engine.openAccount("r1", "Alice", 5000_00);
+        assertEquals(key, engine.openAccount("r1", "Alice", 5000_00));
+        assertEquals(1, engine.accountCount());
+
+        assertEquals(6000_00, engine.deposit("r2", key, 1000_00));
+        assertEquals(6000_00, engine.deposit("r2", key, 1000_00));
+        assertEquals(5000_00, engine.withdraw("r3", key, 1000_00));
+        assertEquals(5000_00, engine.withdraw("r3", key, 1000_00));
+        assertEquals(5000_00, engine.balance(key));
+    }
+
+    @Test
+    void rejectionIsRememberedToo() {
+        int key = (int) engine.openAccount("Alice", 5000_00);
+        assertEquals(BankingEngine.INSUFFICIENT_FUNDS, engine.withdraw("r1", key, 4600_00));
+        engine.deposit(key, 5000_00);
+        assertEquals(BankingEngine.INSUFFICIENT_FUNDS, engine.withdraw("r1", key, 4600_00));
+        assertEquals(10000_00, engine.balance(key));
+    }
+
+    @Test
+    void reusedIdForAnotherRequestConflicts() {
+        int key = (int) engine.openAccount("Alice", 5000_00);
+        engine.deposit("r1", key, 1000_00);
+        assertEquals(BankingEngine.REQUEST_ID_CONFLICT, engine.deposit("r1", key, 2000_00));
+        assertEquals(BankingEngine.REQUEST_ID_CONFLICT, engine.withdraw("r1", key, 1000_00));
+        assertEquals(6000_00, engine.balance(key));
+    }
+
+    @Test
+    void concurrentRetriesAreAppliedOnce() throws Exception {
+        int key = (int) engine.openAccount("Alice", 5000_00);
+        int threads = 16;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Long>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return engine.deposit("same", key, 1000_00);
+                }));
+            }
+            start.countDown();
+            for (Future<Long> result : results) assertEquals(6000_00, result.get());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(6000_00, engine.balance(key));
+    }
+
+    // With every entry of a segment held by a request still running, another request for it is turned away
+    // with FULL without running, and none of the running ones is forgotten and run again.
+    @Test
+    void fullSegmentTurnsRequestsAway() {
+        IdempotencyCache cache = new IdempotencyCache(128, 60_000);
+        AtomicInteger runs = new AtomicInteger();
+        AtomicInteger turnedAway = new AtomicInteger();
+        runNested(cache, 0, runs, turnedAway);
+        assertTrue(turnedAway.get() > 0);
+        assertEquals(200 - turnedAway.get(), runs.get());
+    }
+
+    // Starts a request that starts the next one, so every one of them is still running while the rest start.
+    private static void runNested(IdempotencyCache cache, int i, AtomicInteger runs, AtomicInteger turnedAway) {
+        if (i == 200) return;
+        long result = cache.execute("request " + i, 1, () -> {
+            runs.incrementAndGet();
+            runNested(cache, i + 1, runs, turnedAway);
+            return i;
+        });
+        if (result == IdempotencyCache.FULL) {
+            turnedAway.incrementAndGet();
+            runNested(cache, i + 1, runs, turnedAway);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Interest accrual runs and their recovery: every account gets each batch exactly once, whether the run was
+// cut short by a crash or failed part way through.
+class InterestAccrualTest {
+
+    private static final InterestAccrual RULE = new InterestAccrual(100, 25_00);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void runPaysInterestAndChargesTheFeeAboveTheMinimum() {
+        BankingEngine engine = new BankingEngine(new AccountStore(), null, null, Long.MAX_VALUE);
+        int rich = (int) engine.openAccount("Alice", 100_000_00);
+        int poor = (int) engine.openAccount("Bob", 5000_00);
+        engine.withdraw(poor, 4500_00 - 10_00);
+
+        InterestAccrual.Totals totals = engine.accrue(RULE);
+        assertEquals(2, totals.accounts);
+        long interest = RULE.interest(100_000_00);
+        assertEquals(100_000_00 + interest - RULE.fee(100_000_00, interest), engine.balance(rich));
+        assertTrue(engine.balance(poor) >= BankingEngine.MIN_BALANCE);
+    }
+
+    // Cuts the journal of a finished run after each of its records in turn, as a crash could, and checks that
+    // recovery finishes the run to the same balances.
+    @Test
+    void runCutShortByACrashIsFinishedOnRestart() throws IOException {
+        int accounts = 3000; // Three chunks
+        Path journalFile = dir.resolve("transactions.journal");
+        Path snapshotFile = dir.resolve("accounts.snapshot");
+        AccountStore store = new AccountStore();
+        Journal journal = Journal.open(journalFile, store, 0);
+        BankingEngine engine = new BankingEngine(store, journal, snapshotFile, Long.MAX_VALUE);
+        openAccounts(engine, accounts);
+        engine.checkpoint();
+        engine.accrue(RULE);
+        journal.close();
+        byte[] records = Files.readAllBytes(journalFile);
+
+        int kept = 0;
+        for (int end = 0; end < records.length; ) {
+            end += ByteBuffer.wrap(records).getInt(end);
+            Path cut = dir.resolve("cut-" + ++kept);
+            Files.write(cut, Arrays.copyOf(records, end));
+            AccountStore recovered = new AccountStore();
+            Snapshot snapshot = Snapshot.map(snapshotFile);
+            snapshot.loadInto(recovered);
+            Journal cutJournal = Journal.open(cut, recovered, snapshot.lsn());
+            new BankingEngine(recovered, cutJournal, dir.resolve("cut.snapshot"), Long.MAX_VALUE);
+            cutJournal.close();
+            assertEquals(0, differing(recovered, store, accounts), "journal cut after " + kept + " records");
+
+            // The finished run is committed, so replaying the journal again does not apply it twice
+            AccountStore reopened = new AccountStore();
+            snapshot.loadInto(reopened);
+            try (Journal again = Journal.open(cut, reopened, snapshot.lsn())) {
+                assertTrue(again.unfinishedAccruals().isEmpty());
+            }
+            assertEquals(0, differing(reopened, store, accounts), "journal cut after " + kept + " records, reopened");
+        }
+        assertEquals(5, kept); // Begin, three chunks and the commit
+    }
+
+    // A run that fails in one chunk leaves the others applied, and is finished, applying each chunk once,
+    // either by recovery after a restart or before the next run.
+    @Test
+    void failedRunIsFinishedWithoutPayingTwice() throws IOException {
+        int accounts = 20_000; // Two slices of chunks
+        BankingEngine once = new BankingEngine(new AccountStore(), null, null, Long.MAX_VALUE);
+        FlakyStore store = new FlakyStore();
+        Path journalFile = dir.resolve("transactions.journal");
+        Journal journal = Journal.open(journalFile, store, 0);
+        BankingEngine engine = new BankingEngine(BankingEngine.Mode.STRIPED_LOCKS, store, journal, null,
+                dir.resolve("accounts.snapshot"), Long.MAX_VALUE);
+        openAccounts(once, accounts);
+        openAccounts(engine, accounts);
+        once.accrue(RULE);
+
+        store.failKey = 18_000;
+        assertThrows(IllegalStateException.class, () -> engine.accrue(RULE));
+        journal.sync();
+        Path copy = dir.resolve("copy.journal");
+        Files.copy(journalFile, copy);
+
+        AccountStore recovered = new AccountStore();
+        Journal copyJournal = Journal.open(copy, recovered, 0);
+        assertEquals(1, copyJournal.unfinishedAccruals().size());
+        new BankingEngine(recovered, copyJournal, dir.resolve("copy.snapshot"), Long.MAX_VALUE);
+        copyJournal.close();
+        assertEquals(0, differing(recovered, once, accounts));
+
+        once.accrue(RULE);
+        engine.accrue(RULE);
+        assertEquals(0, differing(store, once, accounts));
+        journal.close();
+    }
+
+    private static void openAccounts(BankingEngine engine, int accounts) {
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < accounts; i++) engine.openAccount("Holder", 5000_00 + random.nextInt(100_000_00));
+    }
+
+    private static int differing(AccountStore store, AccountStore expected, int accounts) {
+        int differing = 0;
+        for (int key = 1; key <= accounts; key++) if (store.getBalance(key) != expected.getBalance(key)) differing++;
+        return differing;
+    }
+
+    private static int differing(AccountStore store, BankingEngine expected, int accounts) {
+        int differing = 0;
+        for (int key = 1; key <= accounts; key++) if (store.getBalance(key) != expected.balance(key)) differing++;
+        return differing;
+    }
+
+    // Fails the first time the balance of one account is read once failKey is set.
+    private static final class FlakyStore extends AccountStore {
+        volatile int failKey = -1;
+
+        @Override
+        public long getBalance(int key) {
+            if (key == failKey) {
+                failKey = -1;
+                throw new IllegalStateException("Injected failure reading account " + key);
+            }
+            return super.getBalance(key);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Journal replay: records are applied again in the order they were logged, a last record torn by a crash is
+// dropped, and a damaged record followed by more is refused rather than losing the changes after it.
+class JournalTest {
+
+    @TempDir
+    Path dir;
+
+    private Path file;
+    private int key;
+    private byte[] bytes;
+
+    // Logs an account opened with 5000.00 and two deposits of 1000.00 into it.
+    @BeforeEach
+    void logChanges() throws IOException {
+        file = dir.resolve("transactions.journal");
+        Journal journal = Journal.open(file, new AccountStore(), 0);
+        BankingEngine engine = new BankingEngine(new AccountStore(), journal, dir.resolve("accounts.snapshot"), Long.MAX_VALUE);
+        key = (int) engine.openAccount("Alice", 5000_00);
+        engine.deposit(key, 1000_00);
+        engine.deposit(key, 1000_00);
+        journal.close();
+        bytes = Files.readAllBytes(file);
+    }
+
+    @Test
+    void replayRebuildsTheStore() {
+        AccountStore store = replay(bytes);
+        assertEquals(7000_00, store.getBalance(key));
+        assertEquals("Alice", store.getName(key));
+    }
+
+    @Test
+    void lastRecordCutShortIsDropped() throws IOException {
+        AccountStore store = replay(Arrays.copyOf(bytes, bytes.length - 7));
+        assertEquals(6000_00, store.getBalance(key));
+        assertEquals(bytes.length - lastRecordSize(), Files.size(file));
+    }
+
+    @Test
+    void lastRecordWithBadChecksumIsDropped() {
+        byte[] damaged = bytes.clone();
+        damaged[damaged.length - 2] ^= 1;
+        assertEquals(6000_00, replay(damaged).getBalance(key));
+    }
+
+    @Test
+    void zeroedTailIsDropped() throws IOException {
+        AccountStore store = replay(Arrays.copyOf(bytes, bytes.length + 5000));
+        assertEquals(7000_00, store.getBalance(key));
+        assertEquals(bytes.length, Files.size(file));
+    }
+
+    @Test
+    void recordsAfterATornTailFollowTheLastValidOne() throws IOException {
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 7));
+        AccountStore store = new AccountStore();
+        Journal journal = Journal.open(file, store, 0);
+        new BankingEngine(store, journal, dir.resolve("accounts.snapshot"), Long.MAX_VALUE).deposit(key, 500_00);
+        journal.close();
+        assertEquals(6500_00, replay(Files.readAllBytes(file)).getBalance(key));
+    }
+
+    @Test
+    void damagedRecordFollowedByMoreIsRefused() throws IOException {
+        byte[] damaged = bytes.clone();
+        damaged[ByteBuffer.wrap(bytes).getInt(0) + 20] ^= 1;
+        Files.write(file, damaged);
+        assertThrows(UncheckedIOException.class, () -> Journal.open(file, new AccountStore(), 0));
+        assertEquals(damaged.length, Files.size(file));
+    }
+
+    @Test
+    void recordsCoveredByASnapshotAreSkipped() {
+        AccountStore store = new AccountStore();
+        store.put(key, "Alice", 6000_00);
+        try (Journal journal = Journal.open(file, store, 2)) {
+            assertEquals(3, journal.lastLsn());
+        }
+        assertEquals(7000_00, store.getBalance(key));
+    }
+
+    private AccountStore replay(byte[] journal) {
+        try {
+            Files.write(file, journal);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        AccountStore store = new AccountStore();
+        Journal.open(file, store, 0).close();
+        return store;
+    }
+
+    private int lastRecordSize() {
+        ByteBuffer records = ByteBuffer.wrap(bytes);
+        int start = 0;
+        while (start + records.getInt(start) < bytes.length) start += records.getInt(start);
+        return bytes.length - start;
+    }
+}
@@ -0,0 +1,176 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// The halves of a transfer between shards, as ShardedBank sends them to the sender's and the receiver's shard,
+// each an engine with its own journal. A shard is restarted by closing its journal without a checkpoint, as a
+// crash after the last answer would leave it, and recovering a new engine from its files.
+class ShardedTransferTest {
+
+    @TempDir
+    Path senderDir;
+
+    @TempDir
+    Path receiverDir;
+
+    private Shard sender;
+    private Shard receiver;
+    private int from;
+    private int to;
+
+    @BeforeEach
+    void openShards() {
+        sender = new Shard(senderDir);
+        receiver = new Shard(receiverDir);
+        from = (int) sender.engine.openAccount("Sam", 10000_00);
+        to = (int) receiver.engine.openAccount("Rita", 10000_00);
+    }
+
+    @AfterEach
+    void closeShards() {
+        sender.journal.close();
+        receiver.journal.close();
+    }
+
+    @Test
+    void transferMovesTheAmountAndChargesTheFee() {
+        assertEquals(10000_00, receiver.engine.prepareTransferIn("t1", to, from, 1000_00));
+        assertEquals(10000_00 - 1000_00 - Money.transferFee(1000_00), sender.engine.transferOut("t1", from, to, 1000_00));
+        assertEquals(11000_00, receiver.engine.transferIn("t1", to, from, 1000_00));
+    }
+
+    @Test
+    void resentHalvesGetTheFirstAnswerAfterARestart() {
+        receiver.engine.prepareTransferIn("t1", to, from, 1000_00);
+        long debited = sender.engine.transferOut("t1", from, to, 1000_00);
+        receiver.engine.transferIn("t1", to, from, 1000_00);
+        sender.restart();
+        receiver.restart();
+
+        assertEquals(debited, sender.engine.transferOut("t1", from, to, 1000_00));
+        assertEquals(11000_00, receiver.engine.transferIn("t1", to, from, 1000_00));
+        assertEquals(debited, sender.engine.balance(from));
+        assertEquals(11000_00, receiver.engine.balance(to));
+    }
+
+    @Test
+    void preparedReceiverStaysPinnedAfterARestart() {
+        receiver.engine.prepareTransferIn("t1", to, from, 1000_00);
+        receiver.restart();
+
+        assertEquals(BankingEngine.ACCOUNT_BUSY, receiver.engine.deleteAccount(to));
+        assertEquals(11000_00, receiver.engine.transferIn("t1", to, from, 1000_00));
+        assertEquals(11000_00, receiver.engine.deleteAccount(to));
+    }
+
+    @Test
+    void creditWithoutAPrepareIsRefusedForGood() {
+        assertEquals(BankingEngine.TRANSFER_NOT_PREPARED, receiver.engine.transferIn("t1", to, from, 1000_00));
+        assertEquals(BankingEngine.TRANSFER_NOT_PREPARED, receiver.engine.prepareTransferIn("t1", to, from, 1000_00));
+        receiver.restart();
+
+        assertEquals(BankingEngine.TRANSFER_NOT_PREPARED, receiver.engine.transferIn("t1", to, from, 1000_00));
+        assertEquals(10000_00, receiver.engine.balance(to));
+    }
+
+    @Test
+    void abortedTransferIsRefundedOnce() {
+        receiver.engine.prepareTransferIn("t1", to, from, 1000_00);
+        sender.engine.transferOut("t1", from, to, 1000_00);
+        receiver.engine.abortTransferIn("t1");
+        receiver.restart();
+
+        assertEquals(BankingEngine.TRANSFER_NOT_PREPARED, receiver.engine.transferIn("t1", to, from, 1000_00));
+        assertEquals(10000_00, sender.engine.refundTransferOut("t1", from, to, 1000_00));
+        sender.restart();
+        assertEquals(10000_00, sender.engine.refundTransferOut("t1", from, to, 1000_00));
+        assertEquals(10000_00, sender.engine.balance(from));
+        assertEquals(10000_00, receiver.engine.balance(to));
+    }
+
+    @Test
+    void refundNeedsADebit() {
+        assertEquals(BankingEngine.TRANSFER_NOT_PREPARED, sender.engine.refundTransferOut("t1", from, to, 1000_00));
+        assertEquals(BankingEngine.INSUFFICIENT_FUNDS, sender.engine.transferOut("t2", from, to, 100_000_00));
+        assertEquals(BankingEngine.TRANSFER_NOT_PREPARED, sender.engine.refundTransferOut("t2", from, to, 100_000_00));
+        assertEquals(10000_00, sender.engine.balance(from));
+    }
+
+    @Test
+    void rejectedDebitCanBeSentAgain() {
+        assertEquals(BankingEngine.INSUFFICIENT_FUNDS, sender.engine.transferOut("t1", from, to, 10000_00));
+        sender.engine.deposit(from, 5000_00);
+        assertEquals(15000_00 - 10000_00 - Money.transferFee(10000_00), sender.engine.transferOut("t1", from, to, 10000_00));
+    }
+
+    @Test
+    void reusedTransferIdConflicts() {
+        receiver.engine.prepareTransferIn("t1", to, from, 1000_00);
+        sender.engine.transferOut("t1", from, to, 1000_00);
+        assertEquals(BankingEngine.REQUEST_ID_CONFLICT, receiver.engine.prepareTransferIn("t1", to, from, 2000_00));
+        assertEquals(BankingEngine.REQUEST_ID_CONFLICT, receiver.engine.transferIn("t1", to, from, 2000_00));
+        assertEquals(BankingEngine.REQUEST_ID_CONFLICT, sender.engine.transferOut("t1", from, to, 2000_00));
+        assertEquals(BankingEngine.REQUEST_ID_CONFLICT, sender.engine.refundTransferOut("t1", from, to, 2000_00));
+        assertEquals(11000_00, receiver.engine.transferIn("t1", to, from, 1000_00));
+    }
+
+    // A checkpoint empties the journal, which must keep the halves it has not settled for good.
+    @Test
+    void halvesSurviveCheckpoints() {
+        receiver.engine.prepareTransferIn("t1", to, from, 1000_00);
+        receiver.engine.prepareTransferIn("t2", to, from, 500_00);
+        long debited = sender.engine.transferOut("t1", from, to, 1000_00);
+        receiver.engine.transferIn("t1", to, from, 1000_00);
+        for (int i = 0; i < 2; i++) {
+            receiver.engine.checkpoint();
+            sender.engine.checkpoint();
+        }
+        sender.restart();
+        receiver.restart();
+
+        assertEquals(debited, sender.engine.transferOut("t1", from, to, 1000_00));
+        assertEquals(11000_00, receiver.engine.transferIn("t1", to, from, 1000_00));
+        assertEquals(BankingEngine.ACCOUNT_BUSY, receiver.engine.deleteAccount(to));
+        assertEquals(11500_00, receiver.engine.transferIn("t2", to, from, 500_00));
+    }
+
+    @Test
+    void shardTakesHalvesOnlyFromAuthenticatedPeers() {
+        BankingServer shard = new BankingServer(receiver.engine, 0, true, "secret");
+        String prepare = "PREPARE_TRANSFER_IN t1 " + AccountStore.formatAccountNumber(to) + " "
+                + AccountStore.formatAccountNumber(from) + " 1000";
+        assertEquals("ERR Unknown command PREPARE_TRANSFER_IN", shard.handle(prepare, false));
+        assertEquals("OK 10000.00", shard.handle(prepare, true));
+        assertEquals("ERR Invalid transfer ID", shard.handle("ABORT_TRANSFER_IN " + "x".repeat(65), true));
+    }
+
+    // One shard's engine, recovered from its snapshot and journal as SmartBankingApp does.
+    private static final class Shard {
+        private final Path dir;
+        private Journal journal;
+        BankingEngine engine;
+
+        Shard(Path dir) {
+            this.dir = dir;
+            restart();
+        }
+
+        void restart() {
+            if (journal != null) journal.close();
+            AccountStore store = new AccountStore();
+            Snapshot snapshot = Snapshot.map(dir.resolve("accounts.snapshot"));
+            long lsn = 0;
+            if (snapshot != null) {
+                snapshot.loadInto(store);
+                lsn = snapshot.lsn();
+            }
+            journal = Journal.open(dir.resolve("transactions.journal"), store, lsn);
+            engine = new BankingEngine(store, journal, dir.resolve("accounts.snapshot"), Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Recovery from a snapshot and the journal records after it, as SmartBankingApp recovers on start.
+class SnapshotRecoveryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void checkpointLeavesASnapshotAndAnEmptyJournal() throws Exception {
+        AccountStore store = new AccountStore();
+        Journal journal = Journal.open(journalFile(), store, 0);
+        BankingEngine engine = new BankingEngine(store, journal, snapshotFile(), Long.MAX_VALUE);
+        int alice = (int) engine.openAccount("Alice", 5000_00);
+        int bob = (int) engine.openAccount("Bob", 8000_00);
+        engine.transfer(bob, alice, 1000_00);
+        engine.checkpoint();
+        journal.close();
+
+        assertEquals(0, Files.size(journalFile()));
+        Snapshot snapshot = Snapshot.map(snapshotFile());
+        assertEquals(2, snapshot.count());
+        assertEquals(3, snapshot.lsn());
+        assertEquals(6000_00, snapshot.balanceAt(snapshot.find(alice)));
+        assertEquals("Bob", snapshot.nameAt(snapshot.find(bob)));
+
+        AccountStore recovered = recover();
+        assertEquals(6000_00, recovered.getBalance(alice));
+        assertEquals(store.getBalance(bob), recovered.getBalance(bob));
+    }
+
+    @Test
+    void changesAfterTheSnapshotAreReplayedOnTopOfIt() {
+        AccountStore store = new AccountStore();
+        Journal journal = Journal.open(journalFile(), store, 0);
+        BankingEngine engine = new BankingEngine(store, journal, snapshotFile(), Long.MAX_VALUE);
+        int alice = (int) engine.openAccount("Alice", 5000_00);
+        int bob = (int) engine.openAccount("Bob", 8000_00);
+        engine.checkpoint();
+        engine.deposit(alice, 700_00);
+        engine.deleteAccount(bob);
+        int carol = (int) engine.openAccount("Carol", 6000_00);
+        journal.close();
+
+        AccountStore recovered = recover();
+        assertEquals(5700_00, recovered.getBalance(alice));
+        assertEquals(-1, recovered.getBalance(bob));
+        assertEquals(6000_00, recovered.getBalance(carol));
+        assertEquals(2, recovered.size());
+    }
+
+    // A crash after the snapshot is written and before the journal is emptied leaves records the snapshot
+    // already has, which must not be applied twice.
+    @Test
+    void crashBeforeTheJournalIsEmptiedAppliesNothingTwice() {
+        AccountStore store = new AccountStore();
+        Journal journal = Journal.open(journalFile(), store, 0);
+        BankingEngine engine = new BankingEngine(store, journal, snapshotFile(), Long.MAX_VALUE);
+        int alice = (int) engine.openAccount("Alice", 5000_00);
+        engine.deposit(alice, 700_00);
+        Snapshot.write(snapshotFile(), store, journal.lastLsn());
+        engine.deposit(alice, 800_00);
+        journal.close();
+
+        assertEquals(6500_00, recover().getBalance(alice));
+    }
+
+    @Test
+    void checkpointsAreTakenEverySnapshotInterval() throws Exception {
+        AccountStore store = new AccountStore();
+        Journal journal = Journal.open(journalFile(), store, 0);
+        BankingEngine engine = new BankingEngine(store, journal, snapshotFile(), 10);
+        int alice = (int) engine.openAccount("Alice", 5000_00);
+        for (int i = 0; i < 25; i++) engine.deposit(alice, 500_00);
+        journal.close();
+
+        assertEquals(6, journal.recordsSinceTruncate());
+        assertEquals(5000_00 + 25 * 500_00, recover().getBalance(alice));
+    }
+
+    @Test
+    void noSnapshotMapsToNull() {
+        assertNull(Snapshot.map(snapshotFile()));
+    }
+
+    private AccountStore recover() {
+        AccountStore store = new AccountStore();
+        Snapshot snapshot = Snapshot.map(snapshotFile());
+        long lsn = 0;
+        if (snapshot != null) {
+            snapshot.loadInto(store);
+            lsn = snapshot.lsn();
+        }
+        Journal.open(journalFile(), store, lsn).close();
+        return store;
+    }
+
+    private Path journalFile() {
+        return dir.resolve("transactions.journal");
+    }
+
+    private Path snapshotFile() {
+        return dir.resolve("accounts.snapshot");
+    }
+}
@@ -0,0 +1,75 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+// Velocity limits on withdrawals and outgoing transfers, in both engine modes.
+class VelocityLimitsTest {
+
+    private static final long WINDOW_MILLIS = 60 * 60 * 1000;
+
+    @ParameterizedTest
+    @EnumSource(BankingEngine.Mode.class)
+    void countLimitRefusesTheNextWithdrawal(BankingEngine.Mode mode) {
+        BankingEngine engine = engine(mode, new VelocityLimits(3, 1_000_000_00, WINDOW_MILLIS));
+        int key = (int) engine.openAccount("Alice", 100_000_00);
+        for (int i = 0; i < 3; i++) assertEquals(100_000_00 - (i + 1) * 100_00, engine.withdraw(key, 100_00));
+        assertEquals(BankingEngine.VELOCITY_LIMITED, engine.withdraw(key, 100_00));
+        assertEquals(99_700_00 + 500_00, engine.deposit(key, 500_00));
+        assertEquals(99_700_00 + 500_00, engine.balance(key));
+    }
+
+    @ParameterizedTest
+    @EnumSource(BankingEngine.Mode.class)
+    void amountLimitCountsTransfersWithoutTheirFee(BankingEngine.Mode mode) {
+        BankingEngine engine = engine(mode, new VelocityLimits(100, 1000_00, WINDOW_MILLIS));
+        int from = (int) engine.openAccount("Alice", 100_000_00);
+        int to = (int) engine.openAccount("Bob", 5000_00);
+        assertTrue(engine.transfer(from, to, 600_00) > 0);
+        assertEquals(BankingEngine.VELOCITY_LIMITED, engine.withdraw(from, 600_00));
+        assertEquals(BankingEngine.VELOCITY_LIMITED, engine.transfer(from, to, 600_00));
+        assertTrue(engine.withdraw(from, 300_00) > 0);
+        assertEquals(BankingEngine.VELOCITY_LIMITED, engine.withdraw(from, 200_00));
+        assertEquals(5600_00, engine.balance(to));
+    }
+
+    @ParameterizedTest
+    @EnumSource(BankingEngine.Mode.class)
+    void rejectedOperationsDoNotCount(BankingEngine.Mode mode) {
+        BankingEngine engine = engine(mode, new VelocityLimits(2, 1_000_000_00, WINDOW_MILLIS));
+        int key = (int) engine.openAccount("Alice", 5000_00);
+        for (int i = 0; i < 5; i++) assertEquals(BankingEngine.INSUFFICIENT_FUNDS, engine.withdraw(key, 4600_00));
+        engine.deposit(key, 2000_00);
+        assertEquals(6000_00, engine.withdraw(key, 1000_00));
+        assertEquals(5000_00, engine.withdraw(key, 1000_00));
+        assertEquals(BankingEngine.VELOCITY_LIMITED, engine.withdraw(key, 100_00));
+    }
+
+    @ParameterizedTest
+    @EnumSource(BankingEngine.Mode.class)
+    void limitsAreKeptPerAccount(BankingEngine.Mode mode) {
+        BankingEngine engine = engine(mode, new VelocityLimits(1, 1_000_000_00, WINDOW_MILLIS));
+        int alice = (int) engine.openAccount("Alice", 10000_00);
+        int bob = (int) engine.openAccount("Bob", 10000_00);
+        assertEquals(9000_00, engine.withdraw(alice, 1000_00));
+        assertEquals(BankingEngine.VELOCITY_LIMITED, engine.withdraw(alice, 1000_00));
+        assertEquals(9000_00, engine.withdraw(bob, 1000_00));
+    }
+
+    @ParameterizedTest
+    @EnumSource(BankingEngine.Mode.class)
+    void noLimitsOnceCleared(BankingEngine.Mode mode) {
+        BankingEngine engine = engine(mode, new VelocityLimits(1, 1_000_000_00, WINDOW_MILLIS));
+        int key = (int) engine.openAccount("Alice", 10000_00);
+        engine.withdraw(key, 1000_00);
+        engine.setVelocityLimits(null);
+        assertEquals(8000_00, engine.withdraw(key, 1000_00));
+    }
+
+    private static BankingEngine engine(BankingEngine.Mode mode, VelocityLimits limits) {
+        BankingEngine engine = new BankingEngine(mode, new AccountStore(), null, null, Long.MAX_VALUE);
+        engine.setVelocityLimits(limits);
+        return engine;
+    }
+}